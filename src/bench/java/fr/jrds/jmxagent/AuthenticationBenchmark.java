@@ -0,0 +1,66 @@
+package fr.jrds.jmxagent;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure the authenticators used by the connectors, without the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticationBenchmark {
+
+    private JmxStarter starter;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        Configuration conf = Configuration.getBuilder()
+                                          .port(Integer.toString(ConnectorBenchmark.freePort()))
+                                          .hostname("127.0.0.1")
+                                          .jaasName("jmxAuthentication")
+                                          .jaasConfiguration("target/test-classes/jaas.config")
+                                          .passwordFile("target/test-classes/passwd")
+                                          .build();
+        starter = new JmxStarter(conf);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        starter.stopServer();
+    }
+
+    @Benchmark
+    public Subject jaas() {
+        // The authenticator clears the password, so a new array is needed for each call
+        return starter.authenticate(new String[] {"login", "password"});
+    }
+
+    @Benchmark
+    public Subject passwordFile() {
+        return starter.checkPasswordFile(new String[] {"login", "password"});
+    }
+
+    @Benchmark
+    public Subject anonymous() {
+        return starter.anonymous(null);
+    }
+
+}
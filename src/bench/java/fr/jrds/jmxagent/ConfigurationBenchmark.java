@@ -0,0 +1,57 @@
+package fr.jrds.jmxagent;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure the parsing of the agent configuration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationBenchmark {
+
+    private Properties props;
+
+    @Setup
+    public void setup() {
+        props = new Properties();
+        props.put("com.sun.management.jmxremote.port", "9010");
+        props.put("java.rmi.server.hostname", "127.0.0.1");
+        props.put("com.sun.management.jmxremote.ssl.need.client.auth", "false");
+        props.put("com.sun.management.jmxremote.password.file", "target/test-classes/passwd");
+        props.put("protocol", "rmi");
+        props.put("strict", "true");
+        props.put("httpPatterns", "java.lang:*;java.nio:*");
+    }
+
+    @Benchmark
+    public Configuration.Builder readProperties() {
+        return Configuration.getBuilder().readProperties(props);
+    }
+
+    @Benchmark
+    public Configuration.Builder readBean() {
+        return Configuration.getBuilder().readBean("port", "9010").readBean("strict", null);
+    }
+
+    @Benchmark
+    public Configuration build() {
+        return Configuration.getBuilder().readProperties(props).build();
+    }
+
+}
@@ -0,0 +1,217 @@
+package fr.jrds.jmxagent;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.AttributeList;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure a round trip through a connector started by the agent, in the same JVM, to compare the protocols.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class ConnectorBenchmark {
+
+    public static class Rmi extends ConnectorBenchmark {
+        @Param({"strict", "password", "jaas"})
+        public String mode;
+
+        @Override
+        String mode() {
+            return mode;
+        }
+
+        @Override
+        String protocol() {
+            return "rmi";
+        }
+    }
+
+    /**
+     * Without a SASL profile, a jmxmp client doesn't send credentials, so only the strict mode is usable.
+     */
+    public static class Jmxmp extends ConnectorBenchmark {
+        @Override
+        String mode() {
+            return "strict";
+        }
+
+        @Override
+        String protocol() {
+            return "jmxmp";
+        }
+    }
+
+    /**
+     * The same calls with the agent's own protocol. The pipelined benchmark sends {@link #PIPELINE} reads before
+     * waiting for the responses, the time is given by read.
+     */
+    public static class Nio extends ConnectorBenchmark {
+        private static final int PIPELINE = 16;
+
+        @Param({"strict", "password", "jaas"})
+        public String mode;
+
+        private NioClient client;
+
+        @Override
+        String mode() {
+            return mode;
+        }
+
+        @Override
+        String protocol() {
+            return "nio";
+        }
+
+        @Override
+        void connect(String protocol, int port, String[] credentials) throws IOException {
+            client = NioClient.connect("127.0.0.1", port, credentials);
+        }
+
+        @Override
+        void disconnect() throws IOException {
+            client.close();
+        }
+
+        @Override
+        Object read(ObjectName name, String attribute) throws Exception {
+            return client.getAttribute(name, attribute);
+        }
+
+        @Override
+        AttributeList read(ObjectName name, String[] attributes) throws Exception {
+            return client.getAttributes(name, attributes);
+        }
+
+        @Benchmark
+        @OperationsPerInvocation(PIPELINE)
+        public Object pipelinedGetAttribute() throws Exception {
+            @SuppressWarnings("unchecked")
+            CompletableFuture<Object>[] reads = new CompletableFuture[PIPELINE];
+            for (int i = 0; i < PIPELINE; i++) {
+                reads[i] = client.getAttributeAsync(memory, "HeapMemoryUsage");
+            }
+            return CompletableFuture.allOf(reads).thenApply(v -> reads[PIPELINE - 1].join()).get();
+        }
+    }
+
+    private static final String[] ATTRIBUTES = new String[] {"HeapMemoryUsage", "NonHeapMemoryUsage", "ObjectPendingFinalizationCount"};
+
+    private JMXConnector connector;
+    private MBeanServerConnection mbsc;
+    ObjectName memory;
+
+    abstract String mode();
+
+    abstract String protocol();
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        String mode = mode();
+        String protocol = protocol();
+        int port = freePort();
+        StringBuilder args = new StringBuilder();
+        args.append("port=").append(port)
+            .append(File.pathSeparator).append("hostname=127.0.0.1")
+            .append(File.pathSeparator).append("protocol=").append(protocol);
+        String[] credentials = new String[] {"login", "password"};
+        switch (mode) {
+        case "strict":
+            credentials = null;
+            break;
+        case "password":
+            args.append(File.pathSeparator).append("passwordFile=target/test-classes/passwd");
+            break;
+        case "jaas":
+            args.append(File.pathSeparator).append("jaasName=jmxAuthentication")
+                .append(File.pathSeparator).append("jaasConfiguration=target/test-classes/jaas.config");
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        JmxStarter.premain(args.toString());
+        if (JmxStarter.getState() != JmxStarter.State.RUNNING) {
+            throw new IllegalStateException("Agent not started");
+        }
+        connect(protocol, port, credentials);
+        memory = new ObjectName("java.lang:type=Memory");
+    }
+
+    void connect(String protocol, int port, String[] credentials) throws IOException {
+        JMXServiceURL url;
+        if ("rmi".equals(protocol)) {
+            url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + port + "/jmxrmi");
+        } else {
+            url = new JMXServiceURL(protocol, "127.0.0.1", port);
+        }
+        Map<String, ?> env = credentials != null ? Collections.singletonMap(JMXConnector.CREDENTIALS, credentials) : Collections.emptyMap();
+        connector = JMXConnectorFactory.connect(url, env);
+        mbsc = connector.getMBeanServerConnection();
+    }
+
+    void disconnect() throws IOException {
+        connector.close();
+    }
+
+    Object read(ObjectName name, String attribute) throws Exception {
+        return mbsc.getAttribute(name, attribute);
+    }
+
+    AttributeList read(ObjectName name, String[] attributes) throws Exception {
+        return mbsc.getAttributes(name, attributes);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        disconnect();
+        JmxStarter.stop();
+    }
+
+    @Benchmark
+    public Object getAttribute() throws Exception {
+        return read(memory, "HeapMemoryUsage");
+    }
+
+    @Benchmark
+    public AttributeList getAttributes() throws Exception {
+        return read(memory, ATTRIBUTES);
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            ss.setReuseAddress(true);
+            return ss.getLocalPort();
+        }
+    }
+
+}
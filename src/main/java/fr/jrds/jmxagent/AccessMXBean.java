@@ -0,0 +1,12 @@
+package fr.jrds.jmxagent;
+
+public interface AccessMXBean {
+    String getSource();
+    int getRules();
+    long getDenied();
+    int getCachedDecisions();
+    long getReloads();
+    long getReloadFailures();
+    String getLastError();
+    void reload();
+}
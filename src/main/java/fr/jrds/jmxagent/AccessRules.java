@@ -0,0 +1,284 @@
+package fr.jrds.jmxagent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.security.auth.Subject;
+
+/**
+ * The compiled content of an access file. It understands the JDK's access file syntax:
+ * <pre>
+ * principal readonly|readwrite [create classNamePattern,...] [unregister]
+ * </pre>
+ * and extended rules, that allow or deny an access to the MBeans matching an ObjectName pattern, optionally restricted
+ * to some attributes or operations:
+ * <pre>
+ * principal allow|deny read|write|invoke objectNamePattern [member,...]
+ * </pre>
+ * A deny rule wins over an allow rule, that wins over the access level. Rules are indexed by principal, access and
+ * ObjectName domain, so a decision needs only a few lookups.
+ */
+class AccessRules {
+
+    enum Access {
+        READ,
+        WRITE,
+        INVOKE,
+    }
+
+    private static final class Rule {
+        private final ObjectName pattern;
+        private final Set<String> members;
+        private Rule(ObjectName pattern, Set<String> members) {
+            this.pattern = pattern;
+            this.members = members;
+        }
+    }
+
+    /**
+     * The rules for an access, indexed by domain. Rules with a domain pattern are checked for any name.
+     */
+    private static final class RuleIndex {
+        private final Map<String, List<Rule>> byDomain = new HashMap<>();
+        private final List<Rule> anyDomain = new ArrayList<>();
+
+        private void add(Rule r) {
+            if (r.pattern.isDomainPattern()) {
+                anyDomain.add(r);
+            } else {
+                byDomain.computeIfAbsent(r.pattern.getDomain(), k -> new ArrayList<>()).add(r);
+            }
+        }
+
+        private void addAll(RuleIndex other) {
+            other.byDomain.forEach((k, v) -> byDomain.computeIfAbsent(k, i -> new ArrayList<>()).addAll(v));
+            anyDomain.addAll(other.anyDomain);
+        }
+
+        private boolean isEmpty() {
+            return byDomain.isEmpty() && anyDomain.isEmpty();
+        }
+
+        /**
+         * @param any if true, a rule restricted to some members matches when no member is given
+         */
+        private boolean matches(ObjectName name, String member, boolean any) {
+            return matches(byDomain.getOrDefault(name.getDomain(), Collections.emptyList()), name, member, any)
+                   || matches(anyDomain, name, member, any);
+        }
+
+        private boolean matches(List<Rule> rules, ObjectName name, String member, boolean any) {
+            for (Rule r: rules) {
+                boolean memberMatch = r.members.isEmpty() || (member == null ? any : r.members.contains(member));
+                if (memberMatch && r.pattern.apply(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The rights of a principal, or the merged rights of all the principals of a subject.
+     */
+    static final class Role {
+        private int level = 0;
+        private boolean unregister = false;
+        private final List<Pattern> create = new ArrayList<>();
+        private final Map<Access, RuleIndex> allow = new EnumMap<>(Access.class);
+        private final Map<Access, RuleIndex> deny = new EnumMap<>(Access.class);
+
+        private Role() {
+            for (Access a: Access.values()) {
+                allow.put(a, new RuleIndex());
+                deny.put(a, new RuleIndex());
+            }
+        }
+
+        private void merge(Role other) {
+            level = Math.max(level, other.level);
+            unregister |= other.unregister;
+            create.addAll(other.create);
+            for (Access a: Access.values()) {
+                allow.get(a).addAll(other.allow.get(a));
+                deny.get(a).addAll(other.deny.get(a));
+            }
+        }
+
+        boolean isAllowed(Access access, ObjectName name, String member) {
+            if (deny.get(access).matches(name, member, false)) {
+                return false;
+            } else if (allow.get(access).matches(name, member, true)) {
+                return true;
+            } else {
+                return level >= (access == Access.READ ? 1 : 2);
+            }
+        }
+
+        /**
+         * @return true if a read access without an ObjectName is allowed, like <code>getDomains</code>
+         */
+        boolean canRead() {
+            return level >= 1 || ! allow.get(Access.READ).isEmpty();
+        }
+
+        /**
+         * @return true if any MBean can be read, so queries don't need to be filtered
+         */
+        boolean readsAll() {
+            return level >= 1 && deny.get(Access.READ).isEmpty();
+        }
+
+        boolean canWrite() {
+            return level >= 2;
+        }
+
+        boolean canCreate(String className) {
+            return level >= 2 && create.stream().anyMatch(p -> p.matcher(className).matches());
+        }
+
+        boolean canUnregister() {
+            return level >= 2 && unregister;
+        }
+    }
+
+    private static final Role NONE = new Role();
+
+    private final Map<String, Role> roles;
+    private final int count;
+
+    private AccessRules(Map<String, Role> roles, int count) {
+        this.roles = roles;
+        this.count = count;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Merge the roles of all the principals of a subject.
+     */
+    Role resolve(Subject subject) {
+        Role resolved = null;
+        boolean copied = false;
+        for (Principal p: subject.getPrincipals()) {
+            Role r = roles.get(p.getName());
+            if (r == null) {
+                continue;
+            } else if (resolved == null) {
+                resolved = r;
+            } else {
+                if (! copied) {
+                    Role merged = new Role();
+                    merged.merge(resolved);
+                    resolved = merged;
+                    copied = true;
+                }
+                resolved.merge(r);
+            }
+        }
+        return resolved != null ? resolved : NONE;
+    }
+
+    static AccessRules parse(Reader source) throws IOException {
+        Map<String, Role> roles = new HashMap<>();
+        int count = 0;
+        BufferedReader reader = new BufferedReader(source);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            if (tokens.length < 2) {
+                throw new IllegalArgumentException("Invalid access rule at line " + lineNumber + ": " + line);
+            }
+            Role role = roles.computeIfAbsent(tokens[0], k -> new Role());
+            try {
+                switch (tokens[1]) {
+                case "readonly":
+                case "readwrite":
+                    parseLevel(role, tokens);
+                    break;
+                case "allow":
+                case "deny":
+                    parseRule(role, tokens);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown access " + tokens[1]);
+                }
+            } catch (IllegalArgumentException | MalformedObjectNameException e) {
+                throw new IllegalArgumentException("Invalid access rule at line " + lineNumber + ": " + e.getMessage(), e);
+            }
+            count++;
+        }
+        return new AccessRules(roles, count);
+    }
+
+    private static void parseLevel(Role role, String[] tokens) {
+        role.level = Math.max(role.level, "readwrite".equals(tokens[1]) ? 2 : 1);
+        for (int i = 2; i < tokens.length; i++) {
+            if ("unregister".equals(tokens[i]) && role.level == 2) {
+                role.unregister = true;
+            } else if ("create".equals(tokens[i]) && role.level == 2 && i + 1 < tokens.length) {
+                for (String className: tokens[++i].split(",")) {
+                    role.create.add(classPattern(className));
+                }
+            } else {
+                throw new IllegalArgumentException("Unexpected " + tokens[i]);
+            }
+        }
+    }
+
+    /**
+     * Class name patterns use '*' for any string, like in the JDK's access file.
+     */
+    private static Pattern classPattern(String className) {
+        return Pattern.compile(Arrays.stream(className.split("\\*", -1))
+                                     .map(Pattern::quote)
+                                     .collect(Collectors.joining(".*")));
+    }
+
+    private static void parseRule(Role role, String[] tokens) throws MalformedObjectNameException {
+        if (tokens.length < 4) {
+            throw new IllegalArgumentException("Missing ObjectName pattern");
+        }
+        Access access;
+        try {
+            access = Access.valueOf(tokens[2].toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown access " + tokens[2]);
+        }
+        Set<String> members = new HashSet<>();
+        for (int i = 4; i < tokens.length; i++) {
+            for (String member: tokens[i].split(",")) {
+                if (! member.isEmpty()) {
+                    members.add(member);
+                }
+            }
+        }
+        Rule r = new Rule(new ObjectName(tokens[3]), members);
+        ("allow".equals(tokens[1]) ? role.allow : role.deny).get(access).add(r);
+    }
+
+}
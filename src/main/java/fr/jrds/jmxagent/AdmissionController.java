@@ -0,0 +1,459 @@
+package fr.jrds.jmxagent;
+
+import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.remote.JMXConnectionNotification;
+import javax.security.auth.Subject;
+
+/**
+ * A forwarder that limits the calls of each client with a token bucket. A client is a connection, or the principals
+ * of its subject when the connection is unknown, so the clients sharing a principal, like the <code>anonymous</code>
+ * one of the strict mode, don't share a bucket. Each call costs some tokens, queries and invocations being more
+ * expensive than reads. A call that would overdraw the bucket waits for the tokens to be refilled, or is rejected if
+ * the wait is too long.
+ * <p>
+ * Admitted calls then need one of the slots that bound the number of concurrent calls. The calls waiting for a slot
+ * are queued by client, and a freed slot goes to the next client in turn, so a client with many calls doesn't delay
+ * the others. As the tokens are taken first, a throttled client doesn't hold a slot while waiting.
+ * <p>
+ * A call running in a thread of the shared worker pool never waits, it's rejected instead, as a waiting call would
+ * hold a thread needed by the other clients. The statistics are kept by principal, the buckets of a connection are
+ * dropped when it's closed.
+ */
+class AdmissionController extends ForwardingMBeanServer implements AdmissionMXBean, NotificationListener {
+
+    static final int READ = 1;
+    static final int BULK_READ = 2;
+    static final int WRITE = 2;
+    static final int QUERY = 5;
+    static final int INVOKE = 5;
+
+    private static final String UNAUTHENTICATED = "";
+    private static final double NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final class Bucket {
+        private double tokens = burst;
+        private long last = System.nanoTime();
+
+        /**
+         * Take the tokens for a call. Tokens can be taken in advance, so later calls will wait longer.
+         * @return how long to wait in ns before the call, or -1 if the call must be rejected
+         */
+        private synchronized long reserve(double cost, long now, boolean mayWait) {
+            tokens = Math.min(burst, tokens + (now - last) * rateLimit / NANOS);
+            last = now;
+            if (tokens >= cost) {
+                tokens -= cost;
+                return 0;
+            }
+            long wait = (long) Math.ceil((cost - tokens) * NANOS / rateLimit);
+            if (wait > maxWait || ! mayWait) {
+                return -1;
+            }
+            tokens -= cost;
+            return wait;
+        }
+    }
+
+    private static final class Client {
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+    }
+
+    /**
+     * A call waiting for a slot.
+     */
+    private static final class Waiter {
+        private final Condition granted;
+        private boolean done = false;
+        private Waiter(Condition granted) {
+            this.granted = granted;
+        }
+    }
+
+    private final double rateLimit;
+    private final double burst;
+    private final int maxConcurrentCalls;
+    private final long maxWait;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final ReentrantLock slotsLock = new ReentrantLock();
+    // The calls waiting for a slot, by client, in the order the clients will be served; guarded by slotsLock
+    private final Map<String, Deque<Waiter>> waiting = new LinkedHashMap<>();
+    private int active = 0;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyHistogram waits = new LatencyHistogram();
+
+    /**
+     * @param rateLimit the tokens added each second to a client's bucket, 0 to disable the rate limit
+     * @param burst the size of the buckets, 0 to use the rate limit
+     * @param maxConcurrentCalls the maximum number of calls running together, 0 for no limit
+     * @param maxWait the maximum time in ms a call waits for tokens or a slot
+     */
+    AdmissionController(double rateLimit, double burst, int maxConcurrentCalls, long maxWait) {
+        this.rateLimit = rateLimit;
+        this.burst = burst > 0 ? burst : Math.max(rateLimit, INVOKE);
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    private static String principalName(Subject subject) {
+        if (subject == null) {
+            return UNAUTHENTICATED;
+        }
+        // The connection is not a part of the principal's name
+        return subject.getPrincipals().stream().filter(p -> ! (p instanceof ConnectionPrincipal)).map(Principal::getName).sorted().collect(Collectors.joining(","));
+    }
+
+    /**
+     * Wait for the tokens and a slot needed by a call.
+     * @param cost the tokens used by the call
+     * @return true if a slot was taken and must be released
+     * @throws SecurityException if the call is rejected
+     */
+    private boolean admit(int cost) {
+        long start = System.nanoTime();
+        Subject subject = Subject.getSubject(java.security.AccessController.getContext());
+        String principal = principalName(subject);
+        // The connection id already holds the principal
+        String connection = ConnectionPrincipal.current();
+        String key = connection != null ? connection : principal;
+        boolean mayWait = ! WorkerPool.isWorkerThread();
+        if (rateLimit > 0) {
+            long wait = buckets.computeIfAbsent(key, k -> new Bucket()).reserve(Math.min(cost, burst), start, mayWait);
+            if (wait < 0) {
+                reject(principal, start, "Too many requests");
+            } else if (wait > 0) {
+                throttled.increment();
+                client(principal).throttled.increment();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    reject(principal, start, "Interrupted while throttled");
+                }
+            }
+        }
+        if (maxConcurrentCalls > 0 && ! acquire(key, start + maxWait, mayWait)) {
+            reject(principal, start, "Too many concurrent requests");
+        }
+        waits.record(System.nanoTime() - start, false);
+        admitted.increment();
+        return maxConcurrentCalls > 0;
+    }
+
+    private Client client(String principal) {
+        return clients.computeIfAbsent(principal, k -> new Client());
+    }
+
+    /**
+     * Take a slot, waiting behind the calls of the same client.
+     * @return true if a slot was taken
+     */
+    private boolean acquire(String key, long deadline, boolean mayWait) {
+        slotsLock.lock();
+        try {
+            if (active < maxConcurrentCalls && waiting.isEmpty()) {
+                active++;
+                return true;
+            } else if (! mayWait) {
+                return false;
+            }
+            Waiter w = new Waiter(slotsLock.newCondition());
+            waiting.computeIfAbsent(key, k -> new ArrayDeque<>()).add(w);
+            queued.incrementAndGet();
+            try {
+                long remaining;
+                while (! w.done && (remaining = deadline - System.nanoTime()) > 0) {
+                    w.granted.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                queued.decrementAndGet();
+            }
+            if (! w.done) {
+                Deque<Waiter> calls = waiting.get(key);
+                calls.remove(w);
+                if (calls.isEmpty()) {
+                    waiting.remove(key);
+                }
+            }
+            return w.done;
+        } finally {
+            slotsLock.unlock();
+        }
+    }
+
+    private void reject(String principal, long start, String message) {
+        rejected.increment();
+        client(principal).rejected.increment();
+        waits.record(System.nanoTime() - start, true);
+        throw new SecurityException(message);
+    }
+
+    /**
+     * Give the slot to the first call of the next waiting client, that goes back to the end of the line.
+     */
+    private void release(boolean slot) {
+        if (! slot) {
+            return;
+        }
+        slotsLock.lock();
+        try {
+            Iterator<Map.Entry<String, Deque<Waiter>>> i = waiting.entrySet().iterator();
+            if (i.hasNext()) {
+                Map.Entry<String, Deque<Waiter>> next = i.next();
+                i.remove();
+                Waiter w = next.getValue().poll();
+                if (! next.getValue().isEmpty()) {
+                    waiting.put(next.getKey(), next.getValue());
+                }
+                w.done = true;
+                w.granted.signal();
+            } else {
+                active--;
+            }
+        } finally {
+            slotsLock.unlock();
+        }
+    }
+
+    /**
+     * Receives the {@link JMXConnectionNotification} of the connector server, to drop the buckets of the closed
+     * connections.
+     */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof JMXConnectionNotification
+            && (JMXConnectionNotification.CLOSED.equals(notification.getType()) || JMXConnectionNotification.FAILED.equals(notification.getType()))) {
+            buckets.remove(((JMXConnectionNotification) notification).getConnectionId());
+        }
+    }
+
+    @Override
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        boolean slot = admit(READ);
+        try {
+            return super.getAttribute(name, attribute);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        boolean slot = admit(attributes != null && attributes.length > 1 ? BULK_READ : READ);
+        try {
+            return super.getAttributes(name, attributes);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public void setAttribute(ObjectName name, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+            MBeanException, ReflectionException {
+        boolean slot = admit(WRITE);
+        try {
+            super.setAttribute(name, attribute);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public AttributeList setAttributes(ObjectName name, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        boolean slot = admit(WRITE);
+        try {
+            return super.setAttributes(name, attributes);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        boolean slot = admit(INVOKE);
+        try {
+            return super.invoke(name, operationName, params, signature);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        boolean slot = admit(QUERY);
+        try {
+            return super.queryMBeans(name, query);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        boolean slot = admit(QUERY);
+        try {
+            return super.queryNames(name, query);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException {
+        boolean slot = admit(READ);
+        try {
+            return super.getObjectInstance(name);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public boolean isRegistered(ObjectName name) {
+        boolean slot = admit(READ);
+        try {
+            return super.isRegistered(name);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public Integer getMBeanCount() {
+        boolean slot = admit(READ);
+        try {
+            return super.getMBeanCount();
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public String[] getDomains() {
+        boolean slot = admit(READ);
+        try {
+            return super.getDomains();
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(ObjectName name)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        boolean slot = admit(READ);
+        try {
+            return super.getMBeanInfo(name);
+        } finally {
+            release(slot);
+        }
+    }
+
+    @Override
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    @Override
+    public double getBurst() {
+        return burst;
+    }
+
+    @Override
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    @Override
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int getActiveCalls() {
+        slotsLock.lock();
+        try {
+            return active;
+        } finally {
+            slotsLock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueuedCalls() {
+        return queued.get();
+    }
+
+    @Override
+    public LatencyStatistics getWaits() {
+        return waits.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getThrottledByClient() {
+        return byClient(c -> c.throttled.sum());
+    }
+
+    @Override
+    public Map<String, Long> getRejectedByClient() {
+        return byClient(c -> c.rejected.sum());
+    }
+
+    private Map<String, Long> byClient(Function<Client, Long> counter) {
+        Map<String, Long> values = new TreeMap<>();
+        clients.forEach((k, v) -> values.put(k.isEmpty() ? "<unauthenticated>" : k, counter.apply(v)));
+        return values;
+    }
+
+}
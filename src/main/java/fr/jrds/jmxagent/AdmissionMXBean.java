@@ -0,0 +1,17 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+public interface AdmissionMXBean {
+    double getRateLimit();
+    double getBurst();
+    int getMaxConcurrentCalls();
+    long getAdmitted();
+    long getThrottled();
+    long getRejected();
+    int getActiveCalls();
+    int getQueuedCalls();
+    LatencyStatistics getWaits();
+    Map<String, Long> getThrottledByClient();
+    Map<String, Long> getRejectedByClient();
+}
@@ -0,0 +1,20 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+public interface AgentMXBean {
+    long getAcceptedConnections();
+    long getClosedConnections();
+    int getOpenConnections();
+    long getBytesIn();
+    long getBytesOut();
+    Map<String, ClientStatistics> getClients();
+    long getOpenedSessions();
+    long getClosedSessions();
+    long getFailedSessions();
+    int getActiveSessions();
+    LatencyStatistics getSessionDurations();
+    long getAuthenticationSuccesses();
+    long getAuthenticationFailures();
+    double getAuthenticationFailureRatio();
+}
@@ -0,0 +1,293 @@
+package fr.jrds.jmxagent;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXAuthenticator;
+import javax.management.remote.JMXConnectionNotification;
+import javax.security.auth.Subject;
+
+/**
+ * What the agent costs: the connections and bytes of the accepted sockets, the sessions announced by the
+ * connector server and the outcome of the authentications. The counters are lock-free, only the first connection
+ * from an address allocates.
+ * <p>
+ * As the sockets are counted above the other socket factories, the bytes are the ones exchanged with RMI, before
+ * compression and encryption. The <code>nio</code> connector counts its channels directly.
+ */
+class AgentMonitor implements AgentMXBean, NotificationListener {
+
+    private static final int MAX_CLIENTS = 1024;
+
+    /**
+     * The counters of a client address.
+     */
+    final class Client {
+        private final LongAdder connections = new LongAdder();
+        private final AtomicInteger open = new AtomicInteger();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+
+        void read(int n) {
+            AgentMonitor.this.bytesIn.add(n);
+            bytesIn.add(n);
+        }
+
+        void written(int n) {
+            AgentMonitor.this.bytesOut.add(n);
+            bytesOut.add(n);
+        }
+
+        void closed() {
+            AgentMonitor.this.closed.increment();
+            open.decrementAndGet();
+        }
+    }
+
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final Map<String, Long> sessions = new ConcurrentHashMap<>();
+    private final LongAdder openedSessions = new LongAdder();
+    private final LongAdder closedSessions = new LongAdder();
+    private final LongAdder failedSessions = new LongAdder();
+    private final LatencyHistogram sessionDurations = new LatencyHistogram();
+    private final LongAdder authenticationSuccesses = new LongAdder();
+    private final LongAdder authenticationFailures = new LongAdder();
+
+    private Client client(InetAddress address) {
+        String key = address != null ? address.getHostAddress() : "";
+        Client c = clients.get(key);
+        if (c == null) {
+            if (clients.size() >= MAX_CLIENTS) {
+                evict();
+            }
+            c = clients.computeIfAbsent(key, k -> new Client());
+        }
+        return c;
+    }
+
+    /**
+     * Forget the clients without open connections.
+     */
+    private void evict() {
+        for (Iterator<Client> i = clients.values().iterator(); i.hasNext();) {
+            if (i.next().open.get() == 0) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Count a new connection, the caller counts its bytes and its closing with the returned client.
+     */
+    Client accepted(InetAddress address) {
+        Client c = client(address);
+        accepted.increment();
+        c.connections.increment();
+        c.open.incrementAndGet();
+        return c;
+    }
+
+    /**
+     * Wrap an accepted socket, to count its bytes.
+     */
+    Socket accepted(Socket s) {
+        Client c = accepted(s.getInetAddress());
+        AtomicBoolean isClosed = new AtomicBoolean(false);
+        return new DelegatingSocket(s) {
+            private InputStream countingIn = null;
+            private OutputStream countingOut = null;
+
+            @Override
+            public synchronized InputStream getInputStream() throws IOException {
+                if (countingIn == null) {
+                    countingIn = new FilterInputStream(super.getInputStream()) {
+                        @Override
+                        public int read() throws IOException {
+                            int b = super.read();
+                            if (b >= 0) {
+                                c.read(1);
+                            }
+                            return b;
+                        }
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            int n = super.read(b, off, len);
+                            if (n > 0) {
+                                c.read(n);
+                            }
+                            return n;
+                        }
+                    };
+                }
+                return countingIn;
+            }
+
+            @Override
+            public synchronized OutputStream getOutputStream() throws IOException {
+                if (countingOut == null) {
+                    countingOut = new FilterOutputStream(super.getOutputStream()) {
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.write(b);
+                            c.written(1);
+                        }
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            c.written(len);
+                        }
+                    };
+                }
+                return countingOut;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (isClosed.compareAndSet(false, true)) {
+                        c.closed();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Wrap an authenticator, to count its outcomes.
+     */
+    JMXAuthenticator authenticator(JMXAuthenticator authenticator) {
+        return credentials -> {
+            boolean success = false;
+            try {
+                Subject s = authenticator.authenticate(credentials);
+                success = true;
+                return s;
+            } finally {
+                (success ? authenticationSuccesses : authenticationFailures).increment();
+            }
+        };
+    }
+
+    /**
+     * Receives the {@link JMXConnectionNotification} of the connector server.
+     */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (! (notification instanceof JMXConnectionNotification)) {
+            return;
+        }
+        String id = ((JMXConnectionNotification) notification).getConnectionId();
+        switch (notification.getType()) {
+        case JMXConnectionNotification.OPENED:
+            sessions.put(id, System.nanoTime());
+            openedSessions.increment();
+            break;
+        case JMXConnectionNotification.CLOSED:
+        case JMXConnectionNotification.FAILED:
+            Long start = sessions.remove(id);
+            boolean failed = JMXConnectionNotification.FAILED.equals(notification.getType());
+            if (start != null) {
+                sessionDurations.record(System.nanoTime() - start, failed);
+            }
+            (failed ? failedSessions : closedSessions).increment();
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return closed.sum();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return (int) (accepted.sum() - closed.sum());
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public Map<String, ClientStatistics> getClients() {
+        Map<String, ClientStatistics> values = new TreeMap<>();
+        clients.forEach((k, v) -> values.put(k, new ClientStatistics(v.connections.sum(), v.open.get(), v.bytesIn.sum(), v.bytesOut.sum())));
+        return values;
+    }
+
+    @Override
+    public long getOpenedSessions() {
+        return openedSessions.sum();
+    }
+
+    @Override
+    public long getClosedSessions() {
+        return closedSessions.sum();
+    }
+
+    @Override
+    public long getFailedSessions() {
+        return failedSessions.sum();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public LatencyStatistics getSessionDurations() {
+        return sessionDurations.snapshot();
+    }
+
+    @Override
+    public long getAuthenticationSuccesses() {
+        return authenticationSuccesses.sum();
+    }
+
+    @Override
+    public long getAuthenticationFailures() {
+        return authenticationFailures.sum();
+    }
+
+    @Override
+    public double getAuthenticationFailureRatio() {
+        long failures = authenticationFailures.sum();
+        long total = failures + authenticationSuccesses.sum();
+        return total == 0 ? 0 : (double) failures / total;
+    }
+
+}
@@ -0,0 +1,174 @@
+package fr.jrds.jmxagent;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.remote.JMXAuthenticator;
+import javax.security.auth.Subject;
+
+/**
+ * Keeps the result of the authentications done by a {@link JMXAuthenticator}, so a client that reconnects doesn't
+ * run the full login again. Entries are keyed by the user and a salted hash of the password, that is never kept.
+ * Failed authentications are kept for a shorter time, and after too many failures for a user, any new try is
+ * rejected without calling the authenticator until the failures expire. The users with failures are given by the
+ * clients, so they are bounded like the cache.
+ */
+class AuthenticationCache implements JMXAuthenticator, AuthenticationMXBean {
+
+    private static final class Entry {
+        private final Subject subject;
+        private final long expiry;
+        private Entry(Subject subject, long expiry) {
+            this.subject = subject;
+            this.expiry = expiry;
+        }
+    }
+
+    private static final class Failures {
+        private final AtomicInteger count = new AtomicInteger();
+        private volatile long windowEnd;
+        private Failures(long windowEnd) {
+            this.windowEnd = windowEnd;
+        }
+    }
+
+    private final JMXAuthenticator authenticator;
+    private final long ttl;
+    private final long negativeTtl;
+    private final int maxSize;
+    private final int maxFailures;
+    private final byte[] salt = new byte[16];
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, Failures> failures = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LatencyHistogram logins = new LatencyHistogram();
+
+    AuthenticationCache(JMXAuthenticator authenticator, long ttl, long negativeTtl, int maxSize, int maxFailures) {
+        this.authenticator = authenticator;
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+        this.maxSize = maxSize;
+        this.maxFailures = maxFailures;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    @Override
+    public Subject authenticate(Object credentials) {
+        if (! (credentials instanceof String[]) || ((String[]) credentials).length != 2 || ((String[]) credentials)[1] == null) {
+            return authenticator.authenticate(credentials);
+        }
+        String user = ((String[]) credentials)[0];
+        String key = user + ":" + hash(((String[]) credentials)[1]);
+        long now = System.nanoTime();
+        Entry e = cache.get(key);
+        if (e != null && e.expiry - now > 0) {
+            hits.increment();
+            if (e.subject == null) {
+                rejected.increment();
+                throw new SecurityException("Invalid user");
+            }
+            return e.subject;
+        }
+        misses.increment();
+        Failures f = failures.get(user);
+        if (f != null && f.windowEnd - now > 0 && f.count.get() >= maxFailures) {
+            throttled.increment();
+            throw new SecurityException("Too many failed authentications");
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Subject s = authenticator.authenticate(credentials);
+            failed = false;
+            failures.remove(user);
+            store(key, new Entry(s, now + ttl), now);
+            return s;
+        } catch (SecurityException ex) {
+            store(key, new Entry(null, now + negativeTtl), now);
+            Failures userFailures = failures.computeIfAbsent(user, k -> new Failures(now + negativeTtl));
+            if (userFailures.windowEnd - now <= 0) {
+                userFailures.count.set(0);
+                userFailures.windowEnd = now + negativeTtl;
+            }
+            userFailures.count.incrementAndGet();
+            if (failures.size() > maxSize) {
+                Eviction.evict(failures, maxSize - maxSize / 10, now, old -> old.windowEnd);
+            }
+            throw ex;
+        } finally {
+            logins.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    private String hash(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return Base64.getEncoder().encodeToString(digest.digest(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    private void store(String key, Entry e, long now) {
+        cache.put(key, e);
+        if (cache.size() > maxSize) {
+            Eviction.evict(cache, maxSize - maxSize / 10, now, old -> old.expiry);
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public int getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public LatencyStatistics getLogins() {
+        return logins.snapshot();
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+        failures.clear();
+    }
+
+}
@@ -0,0 +1,12 @@
+package fr.jrds.jmxagent;
+
+public interface AuthenticationMXBean {
+    long getHits();
+    long getMisses();
+    long getRejected();
+    long getThrottled();
+    double getHitRate();
+    int getSize();
+    LatencyStatistics getLogins();
+    void clear();
+}
@@ -0,0 +1,53 @@
+package fr.jrds.jmxagent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+public class BulkReader implements BulkReaderMBean {
+
+    private final MBeanServer mbs;
+
+    public BulkReader(MBeanServer mbs) {
+        this.mbs = mbs;
+    }
+
+    @Override
+    public Map<ObjectName, AttributeList> readAttributes(ObjectName[] patterns, String[] attributes) {
+        if (patterns == null) {
+            return new HashMap<>();
+        }
+        Set<ObjectName> names = new LinkedHashSet<>();
+        for (ObjectName pattern: patterns) {
+            names.addAll(mbs.queryNames(pattern, null));
+        }
+        Map<ObjectName, AttributeList> values = new HashMap<>(names.size() * 2);
+        for (ObjectName name: names) {
+            try {
+                String[] toRead = attributes != null && attributes.length > 0 ? attributes : readableAttributes(name);
+                values.put(name, mbs.getAttributes(name, toRead));
+            } catch (InstanceNotFoundException | IntrospectionException | ReflectionException e) {
+                // The MBean vanished or is broken, skip it
+            }
+        }
+        return values;
+    }
+
+    private String[] readableAttributes(ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        return Arrays.stream(mbs.getMBeanInfo(name).getAttributes())
+                     .filter(MBeanAttributeInfo::isReadable)
+                     .map(MBeanAttributeInfo::getName)
+                     .toArray(String[]::new);
+    }
+
+}
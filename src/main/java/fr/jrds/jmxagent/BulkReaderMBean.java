@@ -0,0 +1,18 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+import javax.management.AttributeList;
+import javax.management.ObjectName;
+
+public interface BulkReaderMBean {
+
+    /**
+     * Read many attributes from many MBeans in a single call.
+     * @param patterns the ObjectName patterns to resolve, nothing is read if null.
+     * @param attributes the attributes to read, all the readable attributes if null or empty.
+     * @return the attributes read, for each MBean found. Unknown attributes are silently skipped.
+     */
+    Map<ObjectName, AttributeList> readAttributes(ObjectName[] patterns, String[] attributes);
+
+}
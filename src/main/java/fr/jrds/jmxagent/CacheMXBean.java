@@ -0,0 +1,10 @@
+package fr.jrds.jmxagent;
+
+public interface CacheMXBean {
+    long getHits();
+    long getMisses();
+    long getEvictions();
+    int getSize();
+    long getTtl();
+    void clear();
+}
@@ -0,0 +1,259 @@
+package fr.jrds.jmxagent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * A forwarder that keeps a snapshot of the attributes read from MBeans matching the configured patterns.
+ * A value is kept until the TTL expires. Concurrent reads of a missing value wait for a single read of the
+ * attribute. When the cache is full, it's shrunk by {@link Eviction}.
+ */
+class CachingForwarder extends ForwardingMBeanServer implements CacheMXBean {
+
+    private static final Object ABSENT = new Object();
+
+    private static final class Key {
+        private final ObjectName name;
+        private final String attribute;
+        private Key(ObjectName name, String attribute) {
+            this.name = name;
+            this.attribute = attribute;
+        }
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, attribute);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return name.equals(other.name) && attribute.equals(other.attribute);
+        }
+    }
+
+    private static final class Entry {
+        private final long expiry;
+        private final CompletableFuture<Object> value = new CompletableFuture<>();
+        private Entry(long expiry) {
+            this.expiry = expiry;
+        }
+        private boolean isValid(long now) {
+            return expiry - now > 0;
+        }
+    }
+
+    private final List<ObjectName> patterns;
+    private final long ttl;
+    private final int maxSize;
+    private final Map<Key, Entry> cache = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    CachingForwarder(List<ObjectName> patterns, long ttl, int maxSize) {
+        this.patterns = patterns;
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxSize = maxSize;
+    }
+
+    private boolean isCached(ObjectName name) {
+        for (ObjectName p: patterns) {
+            if (p.apply(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find a valid entry, or create a new one that the caller must resolve.
+     */
+    private Entry lookup(Key key, long now, Entry[] created) {
+        Entry e = cache.compute(key, (k, old) -> old != null && old.isValid(now) ? old : (created[0] = new Entry(now + ttl)));
+        if (e == created[0]) {
+            misses.increment();
+            if (cache.size() > maxSize) {
+                evict(now);
+            }
+        } else {
+            hits.increment();
+        }
+        return e;
+    }
+
+    private void evict(long now) {
+        evictions.add(Eviction.evict(cache, maxSize - maxSize / 10, now, e -> e.expiry));
+    }
+
+    private Object value(Entry e) throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        try {
+            return e.value.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ReflectionException(ex, "Interrupted while waiting for the attribute");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof MBeanException) {
+                throw (MBeanException) cause;
+            } else if (cause instanceof AttributeNotFoundException) {
+                throw (AttributeNotFoundException) cause;
+            } else if (cause instanceof InstanceNotFoundException) {
+                throw (InstanceNotFoundException) cause;
+            } else if (cause instanceof ReflectionException) {
+                throw (ReflectionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new ReflectionException((Exception) cause);
+            }
+        }
+    }
+
+    private void failed(Key key, Entry e, Throwable ex) {
+        cache.remove(key, e);
+        e.value.completeExceptionally(ex);
+    }
+
+    @Override
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        if (! isCached(name)) {
+            return super.getAttribute(name, attribute);
+        }
+        Key key = new Key(name, attribute);
+        Entry[] created = new Entry[1];
+        Entry e = lookup(key, System.nanoTime(), created);
+        if (e == created[0]) {
+            try {
+                e.value.complete(super.getAttribute(name, attribute));
+            } catch (MBeanException | AttributeNotFoundException | InstanceNotFoundException | ReflectionException | RuntimeException | Error ex) {
+                failed(key, e, ex);
+                throw ex;
+            }
+        }
+        Object value = value(e);
+        // Not returned by a getAttributes, the real read will provide the failure
+        return value != ABSENT ? value : super.getAttribute(name, attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        if (! isCached(name)) {
+            return super.getAttributes(name, attributes);
+        }
+        long now = System.nanoTime();
+        Key[] keys = new Key[attributes.length];
+        Entry[] entries = new Entry[attributes.length];
+        Map<String, Entry> toRead = new LinkedHashMap<>();
+        for (int i = 0; i < attributes.length; i++) {
+            keys[i] = new Key(name, attributes[i]);
+            Entry[] created = new Entry[1];
+            entries[i] = lookup(keys[i], now, created);
+            if (created[0] != null) {
+                toRead.put(attributes[i], created[0]);
+            }
+        }
+        if (! toRead.isEmpty()) {
+            try {
+                for (Attribute a: super.getAttributes(name, toRead.keySet().toArray(new String[toRead.size()])).asList()) {
+                    Entry e = toRead.remove(a.getName());
+                    if (e != null) {
+                        e.value.complete(a.getValue());
+                    }
+                }
+                // Attributes not returned are not readable, don't keep them
+                for (Map.Entry<String, Entry> e: toRead.entrySet()) {
+                    cache.remove(new Key(name, e.getKey()), e.getValue());
+                    e.getValue().value.complete(ABSENT);
+                }
+            } catch (InstanceNotFoundException | ReflectionException | RuntimeException | Error ex) {
+                for (Map.Entry<String, Entry> e: toRead.entrySet()) {
+                    failed(new Key(name, e.getKey()), e.getValue(), ex);
+                }
+                throw ex;
+            }
+        }
+        List<Attribute> values = new ArrayList<>(attributes.length);
+        for (int i = 0; i < attributes.length; i++) {
+            try {
+                Object value = value(entries[i]);
+                if (value != ABSENT) {
+                    values.add(new Attribute(attributes[i], value));
+                }
+            } catch (MBeanException | AttributeNotFoundException e) {
+                // getAttributes silently skip failing attributes
+            }
+        }
+        return new AttributeList(values);
+    }
+
+    @Override
+    public void setAttribute(ObjectName name, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+            MBeanException, ReflectionException {
+        cache.remove(new Key(name, attribute.getName()));
+        super.setAttribute(name, attribute);
+    }
+
+    @Override
+    public AttributeList setAttributes(ObjectName name, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        for (Attribute a: attributes.asList()) {
+            cache.remove(new Key(name, a.getName()));
+        }
+        return super.setAttributes(name, attributes);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public int getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getTtl() {
+        return TimeUnit.NANOSECONDS.toMillis(ttl);
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+    }
+
+}
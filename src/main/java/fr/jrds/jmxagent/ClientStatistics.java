@@ -0,0 +1,39 @@
+package fr.jrds.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The traffic of the connections from a client address.
+ */
+public class ClientStatistics {
+
+    private final long connections;
+    private final int openConnections;
+    private final long bytesIn;
+    private final long bytesOut;
+
+    @ConstructorProperties({"connections", "openConnections", "bytesIn", "bytesOut"})
+    public ClientStatistics(long connections, int openConnections, long bytesIn, long bytesOut) {
+        this.connections = connections;
+        this.openConnections = openConnections;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+
+    public long getConnections() {
+        return connections;
+    }
+
+    public int getOpenConnections() {
+        return openConnections;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+}
@@ -0,0 +1,48 @@
+package fr.jrds.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The collections done by a garbage collector, since the agent started.
+ */
+public class CollectorStatistics {
+
+    private final LatencyStatistics pauses;
+    private final long reclaimed;
+    private final String lastCause;
+    private final long lastDuration;
+
+    @ConstructorProperties({"pauses", "reclaimed", "lastCause", "lastDuration"})
+    public CollectorStatistics(LatencyStatistics pauses, long reclaimed, String lastCause, long lastDuration) {
+        this.pauses = pauses;
+        this.reclaimed = reclaimed;
+        this.lastCause = lastCause;
+        this.lastDuration = lastDuration;
+    }
+
+    /**
+     * @return the histogram of the collections duration, in µs
+     */
+    public LatencyStatistics getPauses() {
+        return pauses;
+    }
+
+    /**
+     * @return the bytes freed in the heap by the collections
+     */
+    public long getReclaimed() {
+        return reclaimed;
+    }
+
+    public String getLastCause() {
+        return lastCause;
+    }
+
+    /**
+     * @return the duration of the last collection, in ms
+     */
+    public long getLastDuration() {
+        return lastDuration;
+    }
+
+}
@@ -0,0 +1,54 @@
+package fr.jrds.jmxagent;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.util.Objects;
+
+/**
+ * The client side of {@link Compression}. It's sent to the clients within the connector stub, so they need the agent's
+ * jar in their class path.
+ */
+class CompressingClientSocketFactory implements RMIClientSocketFactory, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final RMIClientSocketFactory delegate;
+    private final int threshold;
+    private transient volatile Compression compression;
+
+    CompressingClientSocketFactory(RMIClientSocketFactory delegate, int threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        if (compression == null) {
+            compression = new Compression(threshold);
+        }
+        Socket s = delegate != null ? delegate.createSocket(host, port) : new Socket(host, port);
+        try {
+            return compression.client(s);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(delegate, threshold);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (! (obj instanceof CompressingClientSocketFactory)) {
+            return false;
+        }
+        CompressingClientSocketFactory other = (CompressingClientSocketFactory) obj;
+        return threshold == other.threshold && Objects.equals(delegate, other.delegate);
+    }
+
+}
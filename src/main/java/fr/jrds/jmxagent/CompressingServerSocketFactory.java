@@ -0,0 +1,23 @@
+package fr.jrds.jmxagent;
+
+import java.net.Socket;
+import java.rmi.server.RMIServerSocketFactory;
+
+/**
+ * Accepts both compressed and plain connections, see {@link Compression}.
+ */
+class CompressingServerSocketFactory extends ForwardingServerSocketFactory {
+
+    private final Compression compression;
+
+    CompressingServerSocketFactory(RMIServerSocketFactory delegate, Compression compression) {
+        super(delegate);
+        this.compression = compression;
+    }
+
+    @Override
+    protected Socket accepted(Socket s) {
+        return compression.server(s);
+    }
+
+}
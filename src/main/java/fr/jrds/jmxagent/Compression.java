@@ -0,0 +1,398 @@
+package fr.jrds.jmxagent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the streams of RMI sockets.
+ * <p>
+ * A compressed connection starts with a magic number sent by the client, followed by frames. A frame is written
+ * on each flush, so for each RMI call or response. Frames smaller than the threshold are sent unmodified, the other
+ * ones are deflated, using a single deflater for the whole connection, so the dictionary is shared between frames.
+ * <p>
+ * The server side detects the magic number, so the same port can still be used by plain clients, like the RMI
+ * registry lookup done by the standard JMX client.
+ */
+class Compression implements CompressionMXBean {
+
+    private static final byte[] MAGIC = new byte[] {'J', 'M', 'X', 'Z'};
+    private static final int PLAIN = 0;
+    private static final int DEFLATED = 1;
+    private static final int MAX_FRAME = 64 * 1024;
+
+    private final int threshold;
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder wireBytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder wireBytesOut = new LongAdder();
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder plainFrames = new LongAdder();
+
+    Compression(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Wrap a socket created by a client, the connection is always compressed.
+     */
+    Socket client(Socket s) throws IOException {
+        CompressedSocket cs = new CompressedSocket(s);
+        OutputStream raw = s.getOutputStream();
+        raw.write(MAGIC);
+        cs.in = new FramedInputStream(s.getInputStream());
+        cs.out = new FramedOutputStream(raw);
+        connections.increment();
+        return cs;
+    }
+
+    /**
+     * Wrap a socket accepted by a server, the connection is compressed only if the client asks for it.
+     */
+    Socket server(Socket s) {
+        return new CompressedSocket(s);
+    }
+
+    private class CompressedSocket extends DelegatingSocket {
+        // Resolved on first use, for a server socket it needs to read from the client
+        private InputStream in = null;
+        private OutputStream out = null;
+        private final InputStream inProxy = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return detect().in.read();
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return detect().in.read(b, off, len);
+            }
+            @Override
+            public int available() throws IOException {
+                return detect().in.available();
+            }
+            @Override
+            public void close() throws IOException {
+                CompressedSocket.this.close();
+            }
+        };
+        private final OutputStream outProxy = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                detect().out.write(b);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                detect().out.write(b, off, len);
+            }
+            @Override
+            public void flush() throws IOException {
+                OutputStream current = out;
+                if (current != null) {
+                    current.flush();
+                }
+            }
+            @Override
+            public void close() throws IOException {
+                CompressedSocket.this.close();
+            }
+        };
+
+        private CompressedSocket(Socket delegate) {
+            super(delegate);
+        }
+
+        private synchronized CompressedSocket detect() throws IOException {
+            if (in == null) {
+                PushbackInputStream pin = new PushbackInputStream(delegate.getInputStream(), MAGIC.length);
+                byte[] header = new byte[MAGIC.length];
+                int read = 0;
+                while (read < header.length) {
+                    int n = pin.read(header, read, header.length - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+                if (read == MAGIC.length && Arrays.equals(header, MAGIC)) {
+                    in = new FramedInputStream(pin);
+                    out = new FramedOutputStream(delegate.getOutputStream());
+                    connections.increment();
+                } else {
+                    pin.unread(header, 0, read);
+                    in = pin;
+                    out = delegate.getOutputStream();
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inProxy;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outProxy;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                synchronized (this) {
+                    if (in instanceof FramedInputStream) {
+                        ((FramedInputStream) in).inflater.end();
+                    }
+                    if (out instanceof FramedOutputStream) {
+                        ((FramedOutputStream) out).deflater.end();
+                    }
+                }
+            }
+        }
+    }
+
+    private class FramedOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private byte[] buffer = new byte[8192];
+        private byte[] deflated = new byte[8192];
+        private int count = 0;
+
+        private FramedOutputStream(OutputStream out) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                grow(1);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    grow(len);
+                }
+                int chunk = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, chunk);
+                count += chunk;
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        private void grow(int needed) throws IOException {
+            if (buffer.length >= MAX_FRAME) {
+                frame();
+            } else {
+                buffer = Arrays.copyOf(buffer, Math.min(MAX_FRAME, Math.max(buffer.length * 2, count + needed)));
+            }
+        }
+
+        private void frame() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            if (count < threshold) {
+                out.writeByte(PLAIN);
+                out.writeInt(count);
+                out.write(buffer, 0, count);
+                plainFrames.increment();
+                wireBytesOut.add(5 + count);
+            } else {
+                deflater.setInput(buffer, 0, count);
+                int length = 0;
+                while (true) {
+                    length += deflater.deflate(deflated, length, deflated.length - length, Deflater.SYNC_FLUSH);
+                    if (length < deflated.length) {
+                        break;
+                    }
+                    deflated = Arrays.copyOf(deflated, deflated.length * 2);
+                }
+                out.writeByte(DEFLATED);
+                out.writeInt(length);
+                out.writeInt(count);
+                out.write(deflated, 0, length);
+                compressedFrames.increment();
+                wireBytesOut.add(9 + length);
+            }
+            bytesOut.add(count);
+            count = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            frame();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private class FramedInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buffer = new byte[8192];
+        private byte[] wire = new byte[8192];
+        private int pos = 0;
+        private int limit = 0;
+
+        private FramedInputStream(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /**
+         * Read the next frame if the current one is consumed.
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            while (pos == limit) {
+                int type = in.read();
+                if (type < 0) {
+                    return false;
+                }
+                try {
+                    if (type == PLAIN) {
+                        int length = checkLength(in.readInt());
+                        buffer = ensure(buffer, length);
+                        in.readFully(buffer, 0, length);
+                        limit = length;
+                        plainFrames.increment();
+                        wireBytesIn.add(5 + length);
+                    } else if (type == DEFLATED) {
+                        int length = checkLength(in.readInt());
+                        int rawLength = checkLength(in.readInt());
+                        wire = ensure(wire, length);
+                        in.readFully(wire, 0, length);
+                        buffer = ensure(buffer, rawLength);
+                        inflater.setInput(wire, 0, length);
+                        int produced = 0;
+                        while (produced < rawLength) {
+                            int n = inflater.inflate(buffer, produced, rawLength - produced);
+                            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+                                throw new IOException("Truncated compressed frame");
+                            }
+                            produced += n;
+                        }
+                        limit = rawLength;
+                        compressedFrames.increment();
+                        wireBytesIn.add(9 + length);
+                    } else {
+                        throw new IOException("Invalid frame type " + type);
+                    }
+                } catch (EOFException e) {
+                    throw new IOException("Truncated frame", e);
+                } catch (DataFormatException e) {
+                    throw new IOException("Invalid compressed frame: " + e.getMessage(), e);
+                }
+                pos = 0;
+                bytesIn.add(limit);
+            }
+            return true;
+        }
+
+        private int checkLength(int length) throws IOException {
+            if (length < 0 || length > MAX_FRAME * 2) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            return length;
+        }
+
+        private byte[] ensure(byte[] b, int length) {
+            return b.length >= length ? b : new byte[length];
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (! fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    @Override
+    public int getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getWireBytesIn() {
+        return wireBytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getWireBytesOut() {
+        return wireBytesOut.sum();
+    }
+
+    @Override
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    @Override
+    public long getPlainFrames() {
+        return plainFrames.sum();
+    }
+
+}
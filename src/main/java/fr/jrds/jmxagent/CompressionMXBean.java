@@ -0,0 +1,12 @@
+package fr.jrds.jmxagent;
+
+public interface CompressionMXBean {
+    int getThreshold();
+    long getConnections();
+    long getBytesIn();
+    long getWireBytesIn();
+    long getBytesOut();
+    long getWireBytesOut();
+    long getCompressedFrames();
+    long getPlainFrames();
+}
@@ -7,15 +7,16 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.rmi.server.RMIServerSocketFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.URIParameter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
@@ -23,8 +24,10 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.rmi.ssl.SslRMIServerSocketFactory;
 
 import lombok.Setter;
@@ -49,6 +52,14 @@ public class Configuration {
         @Setter
         private String withSsl = null;
         @Setter
+        private String sslProtocols = null;
+        @Setter
+        private String sslCipherSuites = null;
+        @Setter
+        private String sslSessionCacheSize = null;
+        @Setter
+        private String sslSessionTimeout = null;
+        @Setter
         private String jaasName = null;
         @Setter
         private String jaasConfiguration = null;
@@ -60,11 +71,97 @@ public class Configuration {
         private String accessFile = null;
         @Setter
         private String strict = "true";
+        @Setter
+        private String httpPatterns = "*:*";
+        @Setter
+        private String httpAuthCacheTtl = "60000";
+        @Setter
+        private String executionModel = WorkerPool.MODEL.bounded.name();
+        @Setter
+        private String workerThreads = "4";
+        @Setter
+        private String workerQueue = "64";
+        @Setter
+        private String maxConnections = "0";
+        @Setter
+        private String handshakeTimeout = "10000";
+        @Setter
+        private String compression = "false";
+        @Setter
+        private String compressionThreshold = "1024";
+        @Setter
+        private String authCacheTtl = "0";
+        @Setter
+        private String authNegativeTtl = "5000";
+        @Setter
+        private String authCacheSize = "1000";
+        @Setter
+        private String authMaxFailures = "5";
+        @Setter
+        private String instrument = "false";
+        @Setter
+        private String index = "false";
+        @Setter
+        private String cachePatterns = null;
+        @Setter
+        private String cacheTtl = "1000";
+        @Setter
+        private String cacheSize = "10000";
+        @Setter
+        private String maxSubscriptions = "16";
+        @Setter
+        private String attributeTimeout = "0";
+        @Setter
+        private String staleValues = "true";
+        @Setter
+        private String slowRefresh = "5000";
+        @Setter
+        private String timeoutThreads = "4";
+        @Setter
+        private String timeoutQueue = "64";
+        @Setter
+        private String rateLimit = "0";
+        @Setter
+        private String rateBurst = "0";
+        @Setter
+        private String maxConcurrentCalls = "0";
+        @Setter
+        private String admissionWait = "100";
+        @Setter
+        private String exportFile = null;
+        @Setter
+        private String exportPatterns = "java.lang:*";
+        @Setter
+        private String exportInterval = "1000";
+        @Setter
+        private String exportCapacity = "4096";
+        @Setter
+        private String historyAttributes = null;
+        @Setter
+        private String historyInterval = "250";
+        @Setter
+        private String historySize = "3600";
+        @Setter
+        private String threadSummaryInterval = "0";
+        @Setter
+        private String threadSummaryTop = "10";
+        @Setter
+        private String threadSummaryDeadlocks = "10";
+        @Setter
+        private String gcNotifications = "false";
+        @Setter
+        private String idleTimeout = "0";
+        @Setter
+        private String maxSessionsPerPrincipal = "0";
+        @Setter
+        private String rmiLease = "0";
+        @Setter
+        private String dgcInterval = "0";
+        @Setter
+        private String useLocalHostname = "false";
+        @Setter
+        private String async = "false";
         private Builder() {
-            try {
-                hostname = InetAddress.getLocalHost().getHostAddress();
-            } catch (UnknownHostException e) {
-            }
         }
         public Builder readSystemProperties() {
             Properties props = new Properties();
@@ -105,12 +202,8 @@ public class Configuration {
                 }
                 switch(e.getKey().toString()) {
                 case "java.rmi.server.useLocalHostname":
-                    if ("true".equals(e.getValue().toString().toLowerCase(Locale.ENGLISH))) {
-                        try {
-                            hostname = InetAddress.getLocalHost().getCanonicalHostName();
-                        } catch (UnknownHostException e1) {
-                        }
-                    }
+                    useLocalHostname(e.getValue().toString());
+                    break;
                 case "java.rmi.server.hostname":
                     hostname(e.getValue().toString());
                     break;
@@ -124,6 +217,10 @@ public class Configuration {
                     withSsl(e.getValue().toString());
                     break;
                 case "com.sun.management.jmxremote.ssl.enabled.protocols":
+                    sslProtocols(e.getValue().toString());
+                    break;
+                case "com.sun.management.jmxremote.ssl.enabled.cipher.suites":
+                    sslCipherSuites(e.getValue().toString());
                     break;
                 case "com.sun.management.jmxremote.ssl.need.client.auth":
                     clientAuthentication(e.getValue().toString());
@@ -192,11 +289,16 @@ public class Configuration {
     };
 
     static private String[] booleanPropertiesArray = new String[] {
-            "java.rmi.server.useLocalHostname",
             "com.sun.management.jmxremote.ssl.need.client.auth",
             "com.sun.management.jmxremote.authenticate",
             "clientAuthentication",
             "strict",
+            "async",
+            "useLocalHostname",
+            "instrument",
+            "index",
+            "staleValues",
+            "compression",
             "withSsl"
     };
     static private final Set<String> booleanProperties = Arrays.stream(booleanPropertiesArray).collect(Collectors.toSet());
@@ -205,31 +307,136 @@ public class Configuration {
     public static enum PROTOCOL {
         rmi,
         jmxmp,
+        http,
+        nio,
     }
 
     public final PROTOCOL protocol;
     public final int port;
     public final String hostname;
+    public final boolean useLocalHostname;
+    public final boolean async;
     public final boolean withSsl;
+    public final SSLContext sslContext;
+    public final String[] sslProtocols;
+    public final String[] sslCipherSuites;
+    public final int sslSessionCacheSize;
+    public final int sslSessionTimeout;
     public final String jaasName;
     public final String passwordFile;
     public final String accessFile;
     public final javax.security.auth.login.Configuration jaasConfig;
     public final boolean clientAuthentication;
     public final boolean strict;
+    public final List<ObjectName> httpPatterns;
+    public final long httpAuthCacheTtl;
+    public final WorkerPool.MODEL executionModel;
+    public final int workerThreads;
+    public final int workerQueue;
+    public final int maxConnections;
+    public final long handshakeTimeout;
+    public final boolean compression;
+    public final int compressionThreshold;
+    public final long authCacheTtl;
+    public final long authNegativeTtl;
+    public final int authCacheSize;
+    public final int authMaxFailures;
+    public final boolean instrument;
+    public final boolean index;
+    public final List<ObjectName> cachePatterns;
+    public final long cacheTtl;
+    public final int cacheSize;
+    public final int maxSubscriptions;
+    public final long attributeTimeout;
+    public final boolean staleValues;
+    public final long slowRefresh;
+    public final int timeoutThreads;
+    public final int timeoutQueue;
+    public final double rateLimit;
+    public final double rateBurst;
+    public final int maxConcurrentCalls;
+    public final long admissionWait;
+    public final String exportFile;
+    public final List<ObjectName> exportPatterns;
+    public final long exportInterval;
+    public final int exportCapacity;
+    public final List<String> historyAttributes;
+    public final long historyInterval;
+    public final int historySize;
+    public final long threadSummaryInterval;
+    public final int threadSummaryTop;
+    public final int threadSummaryDeadlocks;
+    public final boolean gcNotifications;
+    public final long idleTimeout;
+    public final int maxSessionsPerPrincipal;
+    public final long rmiLease;
+    public final long dgcInterval;
 
     private final Map<ObjectName, Object> mbeans = new HashMap<>();
+    // The agent's own default SSL context, created when needed
+    private SSLContext defaultSslContext = null;
 
     private Configuration(Builder builder) {
         protocol = PROTOCOL.valueOf(builder.protocol.toLowerCase(Locale.ENGLISH));
         port = Integer.parseInt(builder.port);
         hostname = builder.hostname;
+        useLocalHostname = "true".equalsIgnoreCase(builder.useLocalHostname);
+        async = "true".equalsIgnoreCase(builder.async);
         withSsl = "true".equalsIgnoreCase(builder.withSsl);
+        sslContext = builder.sslContext;
+        sslProtocols = list(builder.sslProtocols);
+        sslCipherSuites = list(builder.sslCipherSuites);
+        sslSessionCacheSize = builder.sslSessionCacheSize != null ? Integer.parseInt(builder.sslSessionCacheSize) : -1;
+        sslSessionTimeout = builder.sslSessionTimeout != null ? Integer.parseInt(builder.sslSessionTimeout) : -1;
         jaasName = builder.jaasName;
         clientAuthentication = "true".equalsIgnoreCase(builder.clientAuthentication);
         passwordFile = builder.passwordFile;
         accessFile = builder.accessFile;
         strict = "true".equalsIgnoreCase(builder.strict);
+        httpPatterns = patterns(builder.httpPatterns);
+        httpAuthCacheTtl = Long.parseLong(builder.httpAuthCacheTtl);
+        executionModel = WorkerPool.MODEL.valueOf(builder.executionModel.toLowerCase(Locale.ENGLISH));
+        workerThreads = Integer.parseInt(builder.workerThreads);
+        workerQueue = Integer.parseInt(builder.workerQueue);
+        maxConnections = Integer.parseInt(builder.maxConnections);
+        handshakeTimeout = Long.parseLong(builder.handshakeTimeout);
+        compression = "true".equalsIgnoreCase(builder.compression);
+        compressionThreshold = Integer.parseInt(builder.compressionThreshold);
+        authCacheTtl = Long.parseLong(builder.authCacheTtl);
+        authNegativeTtl = Long.parseLong(builder.authNegativeTtl);
+        authCacheSize = Integer.parseInt(builder.authCacheSize);
+        authMaxFailures = Integer.parseInt(builder.authMaxFailures);
+        instrument = "true".equalsIgnoreCase(builder.instrument);
+        index = "true".equalsIgnoreCase(builder.index);
+        cachePatterns = patterns(builder.cachePatterns);
+        cacheTtl = Long.parseLong(builder.cacheTtl);
+        cacheSize = Integer.parseInt(builder.cacheSize);
+        maxSubscriptions = Integer.parseInt(builder.maxSubscriptions);
+        attributeTimeout = Long.parseLong(builder.attributeTimeout);
+        staleValues = "true".equalsIgnoreCase(builder.staleValues);
+        slowRefresh = Long.parseLong(builder.slowRefresh);
+        timeoutThreads = Integer.parseInt(builder.timeoutThreads);
+        timeoutQueue = Integer.parseInt(builder.timeoutQueue);
+        rateLimit = Double.parseDouble(builder.rateLimit);
+        rateBurst = Double.parseDouble(builder.rateBurst);
+        maxConcurrentCalls = Integer.parseInt(builder.maxConcurrentCalls);
+        admissionWait = Long.parseLong(builder.admissionWait);
+        exportFile = builder.exportFile;
+        exportPatterns = patterns(builder.exportPatterns);
+        exportInterval = Long.parseLong(builder.exportInterval);
+        exportCapacity = Integer.parseInt(builder.exportCapacity);
+        historyAttributes = builder.historyAttributes == null ? Collections.emptyList()
+                : Arrays.stream(builder.historyAttributes.split(";")).map(String::trim).filter(s -> ! s.isEmpty()).collect(Collectors.toList());
+        historyInterval = Long.parseLong(builder.historyInterval);
+        historySize = Integer.parseInt(builder.historySize);
+        threadSummaryInterval = Long.parseLong(builder.threadSummaryInterval);
+        threadSummaryTop = Integer.parseInt(builder.threadSummaryTop);
+        threadSummaryDeadlocks = Integer.parseInt(builder.threadSummaryDeadlocks);
+        gcNotifications = "true".equalsIgnoreCase(builder.gcNotifications);
+        idleTimeout = Long.parseLong(builder.idleTimeout);
+        maxSessionsPerPrincipal = Integer.parseInt(builder.maxSessionsPerPrincipal);
+        rmiLease = Long.parseLong(builder.rmiLease);
+        dgcInterval = Long.parseLong(builder.dgcInterval);
         if (builder.jaasConfiguration != null) {
             URIParameter cp = new URIParameter(Paths.get(builder.jaasConfiguration).toUri());
             try {
@@ -242,13 +449,89 @@ public class Configuration {
         }
     }
 
+    /**
+     * Parse a list of ObjectName patterns, separated by a ';'.
+     * @param patterns the patterns list
+     * @return the parsed patterns
+     */
+    static List<ObjectName> patterns(String patterns) {
+        if (patterns == null) {
+            return Collections.emptyList();
+        }
+        List<ObjectName> parsed = new ArrayList<>();
+        for (String pattern: patterns.split(";")) {
+            if (pattern.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                parsed.add(new ObjectName(pattern.trim()));
+            } catch (MalformedObjectNameException e) {
+                throw new IllegalArgumentException("Invalid ObjectName pattern '" + pattern + "': " + e.getMessage(), e);
+            }
+        }
+        return Collections.unmodifiableList(parsed);
+    }
+
+    /**
+     * Parse a list of values separated by a ',', like the JDK's SSL properties.
+     * @param values the values list
+     * @return the values, or null if none are given
+     */
+    static String[] list(String values) {
+        if (values == null) {
+            return null;
+        }
+        String[] parsed = Arrays.stream(values.split(","))
+                                .map(String::trim)
+                                .filter(v -> ! v.isEmpty())
+                                .toArray(String[]::new);
+        return parsed.length > 0 ? parsed : null;
+    }
+
     public Configuration register(ObjectName key, Object value) {
         mbeans.put(key, value);
         return this;
     }
+
+    Map<ObjectName, Object> getMBeans() {
+        return Collections.unmodifiableMap(mbeans);
+    }
     
+    /**
+     * If no SSL context was given, the agent uses its own instance of the default one, with the same keys and trust
+     * stores, so tuning its session cache doesn't change the TLS of the application's servers.
+     * @return the SSL context to use
+     */
+    public synchronized SSLContext getSslContext() {
+        if (sslContext != null) {
+            return sslContext;
+        }
+        if (defaultSslContext == null) {
+            try {
+                defaultSslContext = SSLContext.getInstance("Default");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("No default SSL context", e);
+            }
+        }
+        return defaultSslContext;
+    }
+
+    /**
+     * Create the SSL server socket factory, using the configured protocols and cipher suites. The server session cache of
+     * the SSL context is sized as configured, so clients can resume their sessions.
+     * @return the server socket factory
+     * @throws IllegalArgumentException if a protocol or a cipher suite is not supported
+     */
     public RMIServerSocketFactory getSslSocketFactory() {
-        return new SslRMIServerSocketFactory(null, null, null, clientAuthentication);
+        SSLContext context = getSslContext();
+        SSLSessionContext sessions = context.getServerSessionContext();
+        if (sslSessionCacheSize >= 0) {
+            sessions.setSessionCacheSize(sslSessionCacheSize);
+        }
+        if (sslSessionTimeout >= 0) {
+            sessions.setSessionTimeout(sslSessionTimeout);
+        }
+        return new SslRMIServerSocketFactory(context, sslCipherSuites, sslProtocols, clientAuthentication);
     }
 
 }
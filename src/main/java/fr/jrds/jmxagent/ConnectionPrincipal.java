@@ -0,0 +1,76 @@
+package fr.jrds.jmxagent;
+
+import java.io.Serializable;
+import java.security.AccessController;
+import java.security.Principal;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+
+/**
+ * The connection of a call. The connectors run the calls of each connection with a copy of the authenticated subject
+ * that also holds this principal, so an MBean can find the connection of its caller. Its name is the connection id,
+ * that contains spaces, so it can't match a principal of the access rules.
+ */
+final class ConnectionPrincipal implements Principal, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String connectionId;
+
+    private ConnectionPrincipal(String connectionId) {
+        this.connectionId = connectionId;
+    }
+
+    @Override
+    public String getName() {
+        return connectionId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ConnectionPrincipal && connectionId.equals(((ConnectionPrincipal) o).connectionId);
+    }
+
+    @Override
+    public int hashCode() {
+        return connectionId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPrincipal: " + connectionId;
+    }
+
+    /**
+     * @param connectionId the id of the connection
+     * @param subject the authenticated subject, can be null
+     * @return a new read only subject, with the principals and credentials of the authenticated one
+     */
+    static Subject connected(String connectionId, Subject subject) {
+        Set<Principal> principals = new HashSet<>();
+        principals.add(new ConnectionPrincipal(connectionId));
+        if (subject == null) {
+            return new Subject(true, principals, new HashSet<>(), new HashSet<>());
+        } else {
+            principals.addAll(subject.getPrincipals());
+            return new Subject(true, principals, subject.getPublicCredentials(), subject.getPrivateCredentials());
+        }
+    }
+
+    /**
+     * @return the connection id of the current caller, or null for a local call
+     */
+    static String current() {
+        Subject subject = Subject.getSubject(AccessController.getContext());
+        if (subject == null) {
+            return null;
+        }
+        for (ConnectionPrincipal p: subject.getPrincipals(ConnectionPrincipal.class)) {
+            return p.connectionId;
+        }
+        return null;
+    }
+
+}
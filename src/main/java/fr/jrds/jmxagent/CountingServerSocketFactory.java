@@ -0,0 +1,23 @@
+package fr.jrds.jmxagent;
+
+import java.net.Socket;
+import java.rmi.server.RMIServerSocketFactory;
+
+/**
+ * Counts the connections and the bytes of the accepted sockets, see {@link AgentMonitor}.
+ */
+class CountingServerSocketFactory extends ForwardingServerSocketFactory {
+
+    private final AgentMonitor monitor;
+
+    CountingServerSocketFactory(RMIServerSocketFactory delegate, AgentMonitor monitor) {
+        super(delegate);
+        this.monitor = monitor;
+    }
+
+    @Override
+    protected Socket accepted(Socket s) {
+        return monitor.accepted(s);
+    }
+
+}
@@ -0,0 +1,52 @@
+package fr.jrds.jmxagent;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Shrinks the caches of the agent when they are full. The expired entries are removed first, then, if it's not
+ * enough, the ones that expire first, so a burst of new entries doesn't remove the recent ones.
+ */
+final class Eviction {
+
+    private Eviction() {
+    }
+
+    /**
+     * @param entries the cache, it can be modified concurrently
+     * @param target the size to reach
+     * @param now the current time, from {@link System#nanoTime()}
+     * @param expiry the expiry of an entry, from {@link System#nanoTime()}
+     * @return the number of removed entries
+     */
+    static <V> int evict(Map<?, V> entries, int target, long now, ToLongFunction<V> expiry) {
+        int removed = 0;
+        for (Iterator<V> i = entries.values().iterator(); i.hasNext();) {
+            if (expiry.applyAsLong(i.next()) - now <= 0) {
+                i.remove();
+                removed++;
+            }
+        }
+        int excess = entries.size() - target;
+        if (excess <= 0) {
+            return removed;
+        }
+        // Relative to now, so the order is right even if nanoTime overflows
+        long[] remaining = entries.values().stream().mapToLong(e -> expiry.applyAsLong(e) - now).toArray();
+        if (remaining.length == 0) {
+            return removed;
+        }
+        Arrays.sort(remaining);
+        long limit = remaining[Math.min(excess, remaining.length) - 1];
+        for (Iterator<V> i = entries.values().iterator(); i.hasNext() && entries.size() > target;) {
+            if (expiry.applyAsLong(i.next()) - now <= limit) {
+                i.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+}
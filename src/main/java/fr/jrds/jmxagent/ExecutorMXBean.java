@@ -0,0 +1,10 @@
+package fr.jrds.jmxagent;
+
+public interface ExecutorMXBean {
+    String getExecutionModel();
+    int getActiveTasks();
+    long getCompletedTasks();
+    long getRejectedTasks();
+    int getActiveConnections();
+    long getRejectedConnections();
+}
@@ -0,0 +1,115 @@
+package fr.jrds.jmxagent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+
+/**
+ * The layout of the export file, shared by {@link MetricsExporter} and {@link ExportReader}. All the values are
+ * little endian.
+ * <pre>
+ * offset size  header
+ *  0      4    magic, "JMXE"
+ *  4      4    format version
+ *  8      8    sequence, odd while the file is written
+ * 16      8    sample time, in ms since the epoch
+ * 24      4    layout generation, incremented when the name table changes
+ * 28      4    entry count
+ * 32      4    capacity, the maximum entry count
+ * 36      4    name table offset
+ * 40      4    name table size
+ * 44      4    values offset
+ * 48     16    reserved
+ * </pre>
+ * The name table holds for each entry its type (1 byte, 0 for a long, 1 for a double), then the ObjectName and the
+ * attribute name, both as an unsigned short length followed by the UTF-8 bytes. The values are 8 bytes slots, in the
+ * same order, holding a long or the bits of a double. An unavailable value is {@link Long#MIN_VALUE} or NaN.
+ * <p>
+ * The file is updated as a seqlock: a reader reads the sequence, then the content, then the sequence again. The
+ * snapshot is consistent if both sequences are equal and even.
+ */
+final class ExportLayout {
+
+    static final byte[] MAGIC = new byte[] {'J', 'M', 'X', 'E'};
+    static final int FORMAT_VERSION = 1;
+
+    static final int VERSION = 4;
+    static final int SEQUENCE = 8;
+    static final int TIME = 16;
+    static final int GENERATION = 24;
+    static final int COUNT = 28;
+    static final int CAPACITY = 32;
+    static final int NAMES_OFFSET = 36;
+    static final int NAMES_SIZE = 40;
+    static final int VALUES_OFFSET = 44;
+    static final int HEADER_SIZE = 64;
+
+    static final byte LONG = 0;
+    static final byte DOUBLE = 1;
+
+    /**
+     * The mean size reserved in the name table for an entry.
+     */
+    static final int NAME_SIZE = 128;
+
+    // Java 8 has no other way to order accesses to a mapped buffer than the fences of sun.misc.Unsafe. It's found
+    // by reflection, so the compiler doesn't warn about an internal API. Without it, a volatile access is used, that
+    // is a fence on the usual JVMs.
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+    private static volatile int fence;
+    static {
+        MethodHandle loadFence = null;
+        MethodHandle storeFence = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            loadFence = lookup.unreflect(unsafeClass.getMethod("loadFence")).bindTo(unsafe);
+            storeFence = lookup.unreflect(unsafeClass.getMethod("storeFence")).bindTo(unsafe);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            loadFence = null;
+            storeFence = null;
+        }
+        LOAD_FENCE = loadFence;
+        STORE_FENCE = storeFence;
+    }
+
+    private ExportLayout() {
+    }
+
+    /**
+     * Loads before the fence are not reordered with loads after it.
+     */
+    static void loadFence() {
+        if (LOAD_FENCE != null) {
+            invoke(LOAD_FENCE);
+        } else {
+            int unused = fence;
+        }
+    }
+
+    /**
+     * Stores before the fence are not reordered with stores after it.
+     */
+    static void storeFence() {
+        if (STORE_FENCE != null) {
+            invoke(STORE_FENCE);
+        } else {
+            fence = 0;
+        }
+    }
+
+    private static void invoke(MethodHandle mh) {
+        try {
+            mh.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
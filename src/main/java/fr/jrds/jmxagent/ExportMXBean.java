@@ -0,0 +1,13 @@
+package fr.jrds.jmxagent;
+
+public interface ExportMXBean {
+    String getFile();
+    long getInterval();
+    int getCapacity();
+    int getEntries();
+    int getDropped();
+    long getSamples();
+    long getFailures();
+    int getLayoutChanges();
+    LatencyStatistics getSampleTime();
+}
@@ -0,0 +1,205 @@
+package fr.jrds.jmxagent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the file written by the agent when <code>exportFile</code> is defined. Once the file is mapped, a snapshot is
+ * read from memory only, without any system call or any call to the JVM that writes it.
+ * <p>
+ * A reader is not thread safe, but many readers can read the same file.
+ */
+public class ExportReader implements Closeable {
+
+    private static final int MAX_ATTEMPTS = 100_000;
+
+    /**
+     * A consistent copy of the exported values.
+     */
+    public static class Snapshot {
+        private final long sequence;
+        private final long time;
+        private final Names names;
+        private final long[] values;
+
+        private Snapshot(long sequence, long time, Names names, long[] values) {
+            this.sequence = sequence;
+            this.time = time;
+            this.names = names;
+            this.values = values;
+        }
+
+        /**
+         * @return the sequence of the sample, it grows with each sample
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the time of the sample, in ms since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        public String getObjectName(int i) {
+            return names.objectNames[i];
+        }
+
+        public String getAttribute(int i) {
+            return names.attributes[i];
+        }
+
+        /**
+         * @return the value as a Long or a Double, null if the agent was not able to read it
+         */
+        public Number getValue(int i) {
+            if (names.types[i] == ExportLayout.DOUBLE) {
+                double d = Double.longBitsToDouble(values[i]);
+                return Double.isNaN(d) ? null : d;
+            } else {
+                return values[i] == Long.MIN_VALUE ? null : values[i];
+            }
+        }
+
+        /**
+         * @return the values, by ObjectName and attribute
+         */
+        public Map<String, Map<String, Number>> asMap() {
+            Map<String, Map<String, Number>> map = new HashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                map.computeIfAbsent(names.objectNames[i], k -> new HashMap<>()).put(names.attributes[i], getValue(i));
+            }
+            return map;
+        }
+    }
+
+    private static final class Names {
+        private final int generation;
+        private final byte[] types;
+        private final String[] objectNames;
+        private final String[] attributes;
+        private Names(int generation, int count) {
+            this.generation = generation;
+            this.types = new byte[count];
+            this.objectNames = new String[count];
+            this.attributes = new String[count];
+        }
+    }
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private Names names = null;
+
+    /**
+     * Map the export file.
+     * @param file the export file
+     * @throws IOException if the file can't be mapped or is not an export file
+     */
+    public ExportReader(Path file) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < ExportLayout.HEADER_SIZE) {
+            throw new IOException("Not an export file: " + file);
+        }
+        for (int i = 0; i < ExportLayout.MAGIC.length; i++) {
+            if (buffer.get(i) != ExportLayout.MAGIC[i]) {
+                throw new IOException("Not an export file: " + file);
+            }
+        }
+        ExportLayout.loadFence();
+        if (buffer.getInt(ExportLayout.VERSION) != ExportLayout.FORMAT_VERSION) {
+            throw new IOException("Unsupported export file version " + buffer.getInt(ExportLayout.VERSION) + ": " + file);
+        }
+    }
+
+    /**
+     * Read a consistent snapshot, retrying while the file is written.
+     * @return the snapshot
+     * @throws IllegalStateException if no consistent snapshot can be read, the writer might have died while writing
+     */
+    public Snapshot read() {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long sequence = buffer.getLong(ExportLayout.SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            ExportLayout.loadFence();
+            try {
+                int generation = buffer.getInt(ExportLayout.GENERATION);
+                int count = buffer.getInt(ExportLayout.COUNT);
+                if (count < 0 || count > buffer.getInt(ExportLayout.CAPACITY)) {
+                    continue;
+                }
+                long time = buffer.getLong(ExportLayout.TIME);
+                Names current = names;
+                if (current == null || current.generation != generation || current.types.length != count) {
+                    current = readNames(generation, count);
+                }
+                int valuesOffset = buffer.getInt(ExportLayout.VALUES_OFFSET);
+                long[] values = new long[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = buffer.getLong(valuesOffset + i * 8);
+                }
+                ExportLayout.loadFence();
+                if (buffer.getLong(ExportLayout.SEQUENCE) == sequence) {
+                    names = current;
+                    return new Snapshot(sequence, time, current, values);
+                }
+            } catch (IndexOutOfBoundsException | BufferUnderflowException | NegativeArraySizeException e) {
+                // A name table being written, the sequence will have changed
+            }
+        }
+        throw new IllegalStateException("No consistent snapshot in " + file);
+    }
+
+    private Names readNames(int generation, int count) {
+        Names read = new Names(generation, count);
+        int position = buffer.getInt(ExportLayout.NAMES_OFFSET);
+        for (int i = 0; i < count; i++) {
+            read.types[i] = buffer.get(position++);
+            int length = buffer.getShort(position) & 0xffff;
+            read.objectNames[i] = getString(position + 2, length);
+            position += 2 + length;
+            length = buffer.getShort(position) & 0xffff;
+            read.attributes[i] = getString(position + 2, length);
+            position += 2 + length;
+        }
+        return read;
+    }
+
+    private String getString(int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Nothing to release, the mapping is released when the reader is garbage collected.
+     */
+    @Override
+    public void close() {
+        names = null;
+    }
+
+}
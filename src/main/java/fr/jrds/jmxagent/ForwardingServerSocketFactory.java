@@ -0,0 +1,126 @@
+package fr.jrds.jmxagent;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.rmi.server.RMIServerSocketFactory;
+
+/**
+ * A {@link RMIServerSocketFactory} that wraps the server sockets of another factory, or plain server sockets if
+ * there is none. Sub classes can decorate or refuse the accepted sockets. The same instance must be used for the
+ * registry and the connector, so they can share the port.
+ */
+class ForwardingServerSocketFactory implements RMIServerSocketFactory {
+
+    private final RMIServerSocketFactory delegate;
+
+    ForwardingServerSocketFactory(RMIServerSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Called for each accepted socket.
+     * @param s the accepted socket
+     * @return the socket to give to RMI, or null if the socket was refused and closed
+     * @throws IOException
+     */
+    protected Socket accepted(Socket s) throws IOException {
+        return s;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket ss = delegate != null ? delegate.createServerSocket(port) : new ServerSocket(port);
+        return new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+                while (true) {
+                    Socket s = accepted(ss.accept());
+                    if (s != null) {
+                        return s;
+                    }
+                }
+            }
+
+            @Override
+            public void bind(SocketAddress endpoint, int backlog) throws IOException {
+                ss.bind(endpoint, backlog);
+            }
+
+            @Override
+            public InetAddress getInetAddress() {
+                return ss.getInetAddress();
+            }
+
+            @Override
+            public int getLocalPort() {
+                return ss.getLocalPort();
+            }
+
+            @Override
+            public SocketAddress getLocalSocketAddress() {
+                return ss.getLocalSocketAddress();
+            }
+
+            @Override
+            public void close() throws IOException {
+                ss.close();
+            }
+
+            @Override
+            public ServerSocketChannel getChannel() {
+                return ss.getChannel();
+            }
+
+            @Override
+            public boolean isBound() {
+                return ss.isBound();
+            }
+
+            @Override
+            public boolean isClosed() {
+                return ss.isClosed();
+            }
+
+            @Override
+            public void setSoTimeout(int timeout) throws SocketException {
+                ss.setSoTimeout(timeout);
+            }
+
+            @Override
+            public int getSoTimeout() throws IOException {
+                return ss.getSoTimeout();
+            }
+
+            @Override
+            public void setReuseAddress(boolean on) throws SocketException {
+                ss.setReuseAddress(on);
+            }
+
+            @Override
+            public boolean getReuseAddress() throws SocketException {
+                return ss.getReuseAddress();
+            }
+
+            @Override
+            public void setReceiveBufferSize(int size) throws SocketException {
+                ss.setReceiveBufferSize(size);
+            }
+
+            @Override
+            public int getReceiveBufferSize() throws SocketException {
+                return ss.getReceiveBufferSize();
+            }
+
+            @Override
+            public String toString() {
+                return ss.toString();
+            }
+        };
+    }
+
+}
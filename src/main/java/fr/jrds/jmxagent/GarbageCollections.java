@@ -0,0 +1,202 @@
+package fr.jrds.jmxagent;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Aggregates the notifications of the garbage collectors, received in the JVM, so the pauses are not lost when no
+ * client listens to them. Each collector has a histogram of its durations and the bytes it reclaimed. The allocated
+ * bytes are the growth of the heap between the end of a collection and the start of the next one, the promoted bytes
+ * are the growth of the old pools during a collection.
+ * <p>
+ * The collectors and the heap pools are known when the agent starts, so a notification only updates preallocated
+ * counters. For concurrent collectors, like ZGC's cycles, the duration is the one of the whole cycle, not of a pause,
+ * so the concurrent cycles are kept out of the global pauses, in their own histogram. They are identified by the
+ * action of the notification, or by the collector, as the GC action is not consistent between JVMs.
+ * <p>
+ * The old pools are identified by their name, so a collector with a single heap pool, like Shenandoah or the non
+ * generational ZGC, has no promoted bytes.
+ */
+class GarbageCollections implements GarbageCollectionsMXBean, NotificationListener {
+
+    private static final class Collector {
+        private final LatencyHistogram pauses = new LatencyHistogram();
+        private final LongAdder reclaimed = new LongAdder();
+        private volatile String lastCause = "";
+        private volatile long lastDuration = 0;
+    }
+
+    private static final class Pool {
+        private final String name;
+        private final boolean old;
+        private volatile long before = 0;
+        private volatile long after = 0;
+        private volatile long maxAfter = 0;
+        private Pool(String name) {
+            this.name = name;
+            this.old = name.contains("Old") || name.contains("Tenured");
+        }
+    }
+
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final Map<String, Collector> collectors = new HashMap<>();
+    private final Pool[] pools;
+    private final LatencyHistogram pauses = new LatencyHistogram();
+    private final LatencyHistogram cycles = new LatencyHistogram();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder promoted = new LongAdder();
+    private final LongAdder notifications = new LongAdder();
+    // The heap used after the previous collection, only used with the lock of this object
+    private long previousAfter;
+
+    GarbageCollections() {
+        for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+            collectors.put(gc.getName(), new Collector());
+            if (gc instanceof NotificationEmitter) {
+                emitters.add((NotificationEmitter) gc);
+            }
+        }
+        List<Pool> heapPools = new ArrayList<>();
+        long used = 0;
+        for (MemoryPoolMXBean mp: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (mp.getType() == MemoryType.HEAP && mp.isValid()) {
+                heapPools.add(new Pool(mp.getName()));
+                used += mp.getUsage().getUsed();
+            }
+        }
+        pools = heapPools.toArray(new Pool[0]);
+        previousAfter = used;
+    }
+
+    void start() {
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION);
+        for (NotificationEmitter emitter: emitters) {
+            emitter.addNotificationListener(this, filter, null);
+        }
+    }
+
+    void close() {
+        for (NotificationEmitter emitter: emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // Not started
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (! GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        record(info.getGcName(), info.getGcCause(), isPause(info.getGcName(), info.getGcAction()), info.getGcInfo());
+    }
+
+    /**
+     * HotSpot's stop the world collections end with "end of minor GC" or "end of major GC", ZGC and Shenandoah have
+     * distinct collectors for the pauses and the cycles, and G1 reports its concurrent cycle separately.
+     */
+    static boolean isPause(String name, String action) {
+        String a = action.toLowerCase(Locale.ENGLISH);
+        return ! (a.contains("cycle") || a.contains("concurrent") || name.endsWith(" Cycles") || name.contains("Concurrent"));
+    }
+
+    private synchronized void record(String name, String cause, boolean pause, GcInfo gcInfo) {
+        notifications.increment();
+        Map<String, MemoryUsage> usageBefore = gcInfo.getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> usageAfter = gcInfo.getMemoryUsageAfterGc();
+        long before = 0;
+        long after = 0;
+        for (Pool p: pools) {
+            MemoryUsage b = usageBefore.get(p.name);
+            MemoryUsage a = usageAfter.get(p.name);
+            if (b == null || a == null) {
+                continue;
+            }
+            before += b.getUsed();
+            after += a.getUsed();
+            p.before = b.getUsed();
+            p.after = a.getUsed();
+            p.maxAfter = Math.max(p.maxAfter, a.getUsed());
+            if (p.old && a.getUsed() > b.getUsed()) {
+                promoted.add(a.getUsed() - b.getUsed());
+            }
+        }
+        allocated.add(Math.max(0, before - previousAfter));
+        previousAfter = after;
+        long duration = gcInfo.getDuration();
+        (pause ? pauses : cycles).record(duration * 1_000_000, false);
+        Collector c = collectors.get(name);
+        if (c != null) {
+            c.pauses.record(duration * 1_000_000, false);
+            c.reclaimed.add(Math.max(0, before - after));
+            c.lastCause = cause;
+            c.lastDuration = duration;
+        }
+    }
+
+    @Override
+    public Map<String, CollectorStatistics> getCollectors() {
+        Map<String, CollectorStatistics> values = new TreeMap<>();
+        collectors.forEach((k, v) -> values.put(k, new CollectorStatistics(v.pauses.snapshot(), v.reclaimed.sum(), v.lastCause, v.lastDuration)));
+        return values;
+    }
+
+    @Override
+    public Map<String, PoolStatistics> getPools() {
+        Map<String, PoolStatistics> values = new TreeMap<>();
+        for (Pool p: pools) {
+            values.put(p.name, new PoolStatistics(p.before, p.after, p.maxAfter));
+        }
+        return values;
+    }
+
+    @Override
+    public LatencyStatistics getPauses() {
+        return pauses.snapshot();
+    }
+
+    @Override
+    public LatencyStatistics getCycles() {
+        return cycles.snapshot();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return allocated.sum();
+    }
+
+    @Override
+    public long getPromotedBytes() {
+        return promoted.sum();
+    }
+
+    @Override
+    public long getNotifications() {
+        return notifications.sum();
+    }
+
+}
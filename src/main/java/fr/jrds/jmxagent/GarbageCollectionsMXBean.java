@@ -0,0 +1,13 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+public interface GarbageCollectionsMXBean {
+    Map<String, CollectorStatistics> getCollectors();
+    Map<String, PoolStatistics> getPools();
+    LatencyStatistics getPauses();
+    LatencyStatistics getCycles();
+    long getAllocatedBytes();
+    long getPromotedBytes();
+    long getNotifications();
+}
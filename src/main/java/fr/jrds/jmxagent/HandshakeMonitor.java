@@ -0,0 +1,75 @@
+package fr.jrds.jmxagent;
+
+import java.net.Socket;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Watches the TLS handshakes of the accepted sockets. A session created before the socket was accepted was resumed
+ * from the server session cache. The latency is measured from the accept to the end of the handshake.
+ */
+class HandshakeMonitor extends ForwardingServerSocketFactory implements TlsMXBean {
+
+    private final SSLSessionContext sessions;
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    HandshakeMonitor(RMIServerSocketFactory delegate, SSLSessionContext sessions) {
+        super(delegate);
+        this.sessions = sessions;
+    }
+
+    @Override
+    protected Socket accepted(Socket s) {
+        if (s instanceof SSLSocket) {
+            long start = System.nanoTime();
+            long acceptedAt = System.currentTimeMillis();
+            ((SSLSocket) s).addHandshakeCompletedListener(e -> {
+                latency.record(System.nanoTime() - start, false);
+                handshakes.increment();
+                SSLSession session = e.getSession();
+                if (session.getCreationTime() < acceptedAt) {
+                    resumed.increment();
+                }
+            });
+        }
+        return s;
+    }
+
+    @Override
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    @Override
+    public long getResumed() {
+        return resumed.sum();
+    }
+
+    @Override
+    public double getResumptionRatio() {
+        long count = handshakes.sum();
+        return count == 0 ? 0 : (double) resumed.sum() / count;
+    }
+
+    @Override
+    public LatencyStatistics getHandshakeLatency() {
+        return latency.snapshot();
+    }
+
+    @Override
+    public int getSessionCacheSize() {
+        return sessions.getSessionCacheSize();
+    }
+
+    @Override
+    public int getSessionTimeout() {
+        return sessions.getSessionTimeout();
+    }
+
+}
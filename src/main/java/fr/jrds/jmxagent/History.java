@@ -0,0 +1,361 @@
+package fr.jrds.jmxagent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+import javax.management.Attribute;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Samples some numeric attributes at a short interval and keeps their recent values in ring buffers, so a poller
+ * can get all the samples since its last call in a single request, and see the spikes between its polls.
+ * <p>
+ * An attribute is given as <code>ObjectName#attribute</code>, or <code>ObjectName#attribute.item</code> for an item
+ * of a CompositeData. The ObjectName can be a pattern, each matching MBean has its own series. The values are kept
+ * as doubles in arrays of <code>size</code> slots, sharing a single array of sample times. A series and its key are
+ * created once, then found by its ObjectName, so a sample only allocates what is needed to query and read the MBeans.
+ * <p>
+ * The MBeans are sampled by the agent, a caller only gets the series it's allowed to read.
+ * <p>
+ * The sampling runs in a single thread, that is the only writer. The number of samples is published after the slots
+ * are written, a reader copies the slots then checks that the writer didn't reuse those it copied.
+ */
+class History implements HistoryMXBean {
+
+    private static final int MAX_SERIES = 1024;
+
+    private static final class Selector {
+        private final ObjectName pattern;
+        private final String attribute;
+        private final String item;
+        private Selector(String selector) {
+            int sharp = selector.lastIndexOf('#');
+            if (sharp <= 0 || sharp == selector.length() - 1) {
+                throw new IllegalArgumentException("Invalid history attribute '" + selector + "', should be ObjectName#attribute");
+            }
+            try {
+                pattern = new ObjectName(selector.substring(0, sharp));
+            } catch (MalformedObjectNameException e) {
+                throw new IllegalArgumentException("Invalid history attribute '" + selector + "': " + e.getMessage(), e);
+            }
+            String path = selector.substring(sharp + 1);
+            int dot = path.indexOf('.');
+            attribute = dot > 0 ? path.substring(0, dot) : path;
+            item = dot > 0 ? path.substring(dot + 1) : null;
+        }
+        private boolean matches(Series s) {
+            return pattern.apply(s.name) && ("*".equals(attribute) || attribute.equals(s.attribute)) && (item == null || item.equals(s.item));
+        }
+    }
+
+    private static final class Series {
+        private final ObjectName name;
+        private final String attribute;
+        private final String item;
+        private final String key;
+        private final double[] values;
+        private long last;
+        private Series(ObjectName name, String attribute, String item, int size, long created) {
+            this.key = name.getCanonicalName() + "#" + attribute + (item != null ? "." + item : "");
+            this.name = name;
+            this.attribute = attribute;
+            this.item = item;
+            this.values = new double[size];
+            this.last = created;
+            Arrays.fill(values, Double.NaN);
+        }
+    }
+
+    private final MBeanServer mbs;
+    private final List<Selector> selectors = new ArrayList<>();
+    private final long interval;
+    private final int size;
+    private final long[] times;
+    private final Map<String, Series> series = new ConcurrentSkipListMap<>();
+    // The series of each MBean, by selector index, only used by the sampling thread
+    private final Map<ObjectName, Series[]> byName = new HashMap<>();
+    private final BiPredicate<ObjectName, String> readable;
+    private final ScheduledExecutorService sampler;
+    // The number of samples written, the next one goes in slot count % size
+    private volatile long count = 0;
+
+    private volatile int dropped = 0;
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram sampleTime = new LatencyHistogram();
+
+    /**
+     * @param mbs the MBeanServer to read
+     * @param attributes the sampled attributes, as <code>ObjectName#attribute[.item]</code>
+     * @param interval the sampling interval, in ms
+     * @param size the number of samples kept for each attribute
+     * @param readable checks if the caller can read an attribute
+     */
+    History(MBeanServer mbs, List<String> attributes, long interval, int size, BiPredicate<ObjectName, String> readable) {
+        this.mbs = mbs;
+        this.readable = readable;
+        for (String a: attributes) {
+            selectors.add(new Selector(a));
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid history size " + size);
+        }
+        this.interval = interval;
+        this.size = size;
+        this.times = new long[size];
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "JmxAgent-history");
+            t.setDaemon(true);
+            return t;
+        });
+        stpe.setRemoveOnCancelPolicy(true);
+        sampler = stpe;
+    }
+
+    void start() {
+        sampler.scheduleAtFixedRate(this::sample, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        sampler.shutdownNow();
+    }
+
+    private void sample() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        long index = count;
+        int slot = (int) (index % size);
+        try {
+            // The slot is not visible to the readers until the count is updated
+            for (Series s: series.values()) {
+                s.values[slot] = Double.NaN;
+            }
+            Map<ObjectName, Set<String>> wanted = new HashMap<>();
+            for (Selector sel: selectors) {
+                Set<ObjectName> names = sel.pattern.isPattern() ? mbs.queryNames(sel.pattern, null) : Collections.singleton(sel.pattern);
+                for (ObjectName name: names) {
+                    wanted.computeIfAbsent(name, k -> new LinkedHashSet<>()).add(sel.attribute);
+                }
+            }
+            int missed = 0;
+            for (Map.Entry<ObjectName, Set<String>> e: wanted.entrySet()) {
+                missed += read(e.getKey(), e.getValue(), index, slot);
+            }
+            dropped = missed;
+            // Forget the series without a value during a whole window
+            if (series.values().removeIf(s -> index - s.last >= size)) {
+                byName.values().removeIf(byIndex -> {
+                    boolean empty = true;
+                    for (int i = 0; i < byIndex.length; i++) {
+                        if (byIndex[i] != null && index - byIndex[i].last >= size) {
+                            byIndex[i] = null;
+                        }
+                        empty &= byIndex[i] == null;
+                    }
+                    return empty;
+                });
+            }
+            failed = false;
+        } catch (RuntimeException e) {
+            failures.increment();
+        } finally {
+            times[slot] = System.currentTimeMillis();
+            count = index + 1;
+            samples.increment();
+            sampleTime.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * @return the number of values dropped because there are too many series
+     */
+    private int read(ObjectName name, Set<String> attributes, long index, int slot) {
+        Map<String, Object> found = new HashMap<>(attributes.size() * 2);
+        try {
+            for (Attribute a: mbs.getAttributes(name, attributes.toArray(new String[attributes.size()])).asList()) {
+                found.put(a.getName(), a.getValue());
+            }
+        } catch (InstanceNotFoundException | ReflectionException e) {
+            return 0;
+        }
+        int missed = 0;
+        Series[] byIndex = byName.get(name);
+        for (int i = 0; i < selectors.size(); i++) {
+            Selector sel = selectors.get(i);
+            if (! found.containsKey(sel.attribute) || ! sel.pattern.apply(name)) {
+                continue;
+            }
+            double value = value(found.get(sel.attribute), sel.item);
+            Series s = byIndex != null ? byIndex[i] : null;
+            if (s == null) {
+                if (series.size() >= MAX_SERIES) {
+                    missed++;
+                    continue;
+                }
+                s = new Series(name, sel.attribute, sel.item, size, index);
+                // Two selectors can select the same series
+                Series previous = series.putIfAbsent(s.key, s);
+                s = previous != null ? previous : s;
+                if (byIndex == null) {
+                    byIndex = new Series[selectors.size()];
+                    byName.put(name, byIndex);
+                }
+                byIndex[i] = s;
+            }
+            s.values[slot] = value;
+            if (! Double.isNaN(value)) {
+                s.last = index;
+            }
+        }
+        return missed;
+    }
+
+    private static double value(Object value, String item) {
+        if (item != null) {
+            return value instanceof CompositeData && ((CompositeData) value).containsKey(item) ? value(((CompositeData) value).get(item), null) : Double.NaN;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        } else {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Return the samples of the selected series, more recent than a time.
+     * @param selected the series, as <code>ObjectName#attribute[.item]</code>, the ObjectName can be a pattern and
+     *        the attribute can be <code>*</code>. All the series if empty
+     * @param since only the samples after this time, in ms since the epoch, are returned
+     * @param buckets if greater than 0, the samples are downsampled to this number of buckets
+     * @return the windows, by series
+     */
+    @Override
+    public Map<String, HistoryWindow> samples(String[] selected, long since, int buckets) {
+        List<Selector> wanted = new ArrayList<>();
+        for (String s: selected != null ? selected : new String[0]) {
+            wanted.add(new Selector(s));
+        }
+        long end = count;
+        // The oldest slot is the next one to be written
+        long first = Math.max(0, end - size + 1);
+        long[] copiedTimes = new long[(int) (end - first)];
+        for (long i = first; i < end; i++) {
+            copiedTimes[(int) (i - first)] = times[(int) (i % size)];
+        }
+        Map<String, double[]> copied = new TreeMap<>();
+        for (Map.Entry<String, Series> e: series.entrySet()) {
+            Series s = e.getValue();
+            if (! wanted.isEmpty() && wanted.stream().noneMatch(sel -> sel.matches(s))) {
+                continue;
+            }
+            if (! readable.test(s.name, s.attribute)) {
+                continue;
+            }
+            double[] values = new double[copiedTimes.length];
+            for (long i = first; i < end; i++) {
+                values[(int) (i - first)] = s.values[(int) (i % size)];
+            }
+            copied.put(e.getKey(), values);
+        }
+        // The slots written since the copy started are not consistent
+        long valid = Math.max(first, count - size + 1);
+        int from = (int) (valid - first);
+        while (from < copiedTimes.length && copiedTimes[from] <= since) {
+            from++;
+        }
+        long[] windowTimes = Arrays.copyOfRange(copiedTimes, Math.min(from, copiedTimes.length), copiedTimes.length);
+        Map<String, HistoryWindow> windows = new TreeMap<>();
+        for (Map.Entry<String, double[]> e: copied.entrySet()) {
+            double[] values = Arrays.copyOfRange(e.getValue(), Math.min(from, copiedTimes.length), copiedTimes.length);
+            windows.put(e.getKey(), window(windowTimes, values, buckets));
+        }
+        return windows;
+    }
+
+    private static HistoryWindow window(long[] times, double[] values, int buckets) {
+        int n = values.length;
+        if (buckets <= 0 || buckets >= n) {
+            return new HistoryWindow(times, values, new double[0], new double[0]);
+        }
+        long[] bucketTimes = new long[buckets];
+        double[] mean = new double[buckets];
+        double[] min = new double[buckets];
+        double[] max = new double[buckets];
+        for (int b = 0; b < buckets; b++) {
+            int from = (int) ((long) b * n / buckets);
+            int to = (int) ((long) (b + 1) * n / buckets);
+            bucketTimes[b] = times[from];
+            double sum = 0;
+            int found = 0;
+            min[b] = Double.NaN;
+            max[b] = Double.NaN;
+            for (int i = from; i < to; i++) {
+                double v = values[i];
+                if (Double.isNaN(v)) {
+                    continue;
+                }
+                sum += v;
+                min[b] = found == 0 ? v : Math.min(min[b], v);
+                max[b] = found == 0 ? v : Math.max(max[b], v);
+                found++;
+            }
+            mean[b] = found == 0 ? Double.NaN : sum / found;
+        }
+        return new HistoryWindow(bucketTimes, mean, min, max);
+    }
+
+    @Override
+    public long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String[] getSeries() {
+        return series.values().stream().filter(s -> readable.test(s.name, s.attribute)).map(s -> s.key).toArray(String[]::new);
+    }
+
+    @Override
+    public int getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public LatencyStatistics getSampleTime() {
+        return sampleTime.snapshot();
+    }
+
+}
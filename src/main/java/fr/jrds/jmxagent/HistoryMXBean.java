@@ -0,0 +1,14 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+public interface HistoryMXBean {
+    long getInterval();
+    int getSize();
+    String[] getSeries();
+    int getDropped();
+    long getSamples();
+    long getFailures();
+    LatencyStatistics getSampleTime();
+    Map<String, HistoryWindow> samples(String[] series, long since, int buckets);
+}
@@ -0,0 +1,41 @@
+package fr.jrds.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The samples of an attribute's history. When downsampled, each value is the mean of a bucket and min and max hold
+ * its extremes, otherwise they are empty. The time is the one of the first sample of a bucket, in ms since the epoch.
+ * A missing sample is NaN.
+ */
+public class HistoryWindow {
+
+    private final long[] times;
+    private final double[] values;
+    private final double[] min;
+    private final double[] max;
+
+    @ConstructorProperties({"times", "values", "min", "max"})
+    public HistoryWindow(long[] times, double[] values, double[] min, double[] max) {
+        this.times = times;
+        this.values = values;
+        this.min = min;
+        this.max = max;
+    }
+
+    public long[] getTimes() {
+        return times.clone();
+    }
+
+    public double[] getValues() {
+        return values.clone();
+    }
+
+    public double[] getMin() {
+        return min.clone();
+    }
+
+    public double[] getMax() {
+        return max.clone();
+    }
+
+}
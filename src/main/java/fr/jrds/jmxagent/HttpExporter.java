@@ -0,0 +1,418 @@
+package fr.jrds.jmxagent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import javax.management.remote.JMXAuthenticator;
+import javax.security.auth.Subject;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves MBeans attributes over HTTP, using the JDK's HTTP server.
+ * <ul>
+ * <li><code>/metrics</code> returns the numeric attributes in the Prometheus text format.</li>
+ * <li><code>/json</code> returns all the attributes as a JSON object.</li>
+ * </ul>
+ * The query parameters <code>name</code> and <code>attribute</code> can be repeated to restrict the MBeans and the
+ * attributes returned. Only MBeans matching the configured patterns are ever returned. The JSON response is streamed
+ * as MBeans are read. The Prometheus one is written at the end, as the samples of a metric family must be contiguous
+ * and the families of an MBean are only known once it's read, so the whole body is held in memory. It's a deliberate
+ * trade-off, its size is bounded by the MBeans selected by the patterns.
+ * With an authentication, the MBeans are read with the access rights of the authenticated subject, the MBeans it can't
+ * read are skipped.
+ */
+class HttpExporter {
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final String SUBJECT = HttpExporter.class.getName() + ".subject";
+
+    private interface Formatter {
+        void start(Writer w) throws IOException;
+        void mbean(Writer w, ObjectName name, AttributeList attributes, boolean first) throws IOException;
+        void end(Writer w) throws IOException;
+    }
+
+    private final MBeanServer mbs;
+    private final List<ObjectName> patterns;
+    private final HttpServer server;
+
+    HttpExporter(InetSocketAddress address, MBeanServer mbs, List<ObjectName> patterns, JMXAuthenticator authenticator, Executor executor) throws IOException {
+        this.mbs = mbs;
+        this.patterns = patterns;
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        HttpContext metrics = server.createContext("/metrics", e -> serve(e, PROMETHEUS_CONTENT_TYPE, new Prometheus()));
+        HttpContext json = server.createContext("/json", e -> serve(e, JSON_CONTENT_TYPE, new Json()));
+        if (authenticator != null) {
+            Authenticator basic = new SubjectAuthenticator(authenticator);
+            metrics.setAuthenticator(basic);
+            json.setAuthenticator(basic);
+        }
+    }
+
+    /**
+     * A HTTP basic authentication, that keeps the authenticated subject in the exchange, so the MBeans are read with
+     * its access rights.
+     */
+    private static class SubjectAuthenticator extends Authenticator {
+        private static final String REALM = "jmx";
+        private final JMXAuthenticator authenticator;
+
+        private SubjectAuthenticator(JMXAuthenticator authenticator) {
+            this.authenticator = authenticator;
+        }
+
+        @Override
+        public Result authenticate(HttpExchange exchange) {
+            String header = exchange.getRequestHeaders().getFirst("Authorization");
+            if (header == null || ! header.regionMatches(true, 0, "Basic ", 0, 6)) {
+                return unauthorized(exchange);
+            }
+            String decoded;
+            try {
+                decoded = new String(Base64.getDecoder().decode(header.substring(6).trim()), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                return unauthorized(exchange);
+            }
+            int colon = decoded.indexOf(':');
+            if (colon < 0) {
+                return unauthorized(exchange);
+            }
+            String username = decoded.substring(0, colon);
+            try {
+                Subject subject = authenticator.authenticate(new String[] {username, decoded.substring(colon + 1)});
+                if (subject == null) {
+                    return unauthorized(exchange);
+                }
+                exchange.setAttribute(SUBJECT, subject);
+                return new Success(new HttpPrincipal(username, REALM));
+            } catch (SecurityException e) {
+                return unauthorized(exchange);
+            }
+        }
+
+        private Result unauthorized(HttpExchange exchange) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"" + REALM + "\"");
+            return new Retry(401);
+        }
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange, String contentType, Formatter formatter) throws IOException {
+        Subject subject = (Subject) exchange.getAttribute(SUBJECT);
+        if (subject == null) {
+            respond(exchange, contentType, formatter);
+        } else {
+            try {
+                Subject.doAsPrivileged(subject, (PrivilegedExceptionAction<Void>) () -> {
+                    respond(exchange, contentType, formatter);
+                    return null;
+                }, null);
+            } catch (PrivilegedActionException e) {
+                throw (IOException) e.getException();
+            }
+        }
+    }
+
+    private void respond(HttpExchange exchange, String contentType, Formatter formatter) throws IOException {
+        try {
+            if (! "GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            List<ObjectName> requested = new ArrayList<>();
+            List<String> attributes = new ArrayList<>();
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String param: query.split("&")) {
+                    String[] kv = param.split("=", 2);
+                    if (kv.length != 2) {
+                        continue;
+                    }
+                    String value = decode(kv[1]);
+                    if ("name".equals(kv[0])) {
+                        requested.add(new ObjectName(value));
+                    } else if ("attribute".equals(kv[0])) {
+                        attributes.add(value);
+                    }
+                }
+            }
+            Set<ObjectName> names = new LinkedHashSet<>();
+            for (ObjectName pattern: requested.isEmpty() ? patterns : requested) {
+                for (ObjectName name: mbs.queryNames(pattern, null)) {
+                    if (patterns.stream().anyMatch(p -> p.apply(name))) {
+                        names.add(name);
+                    }
+                }
+            }
+            // A subject that can't read anything already failed in the query, once the headers are sent the status
+            // can't change
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, 0);
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                formatter.start(w);
+                boolean first = true;
+                for (ObjectName name: names) {
+                    try {
+                        String[] toRead = attributes.isEmpty() ? readableAttributes(name) : attributes.toArray(new String[attributes.size()]);
+                        formatter.mbean(w, name, mbs.getAttributes(name, toRead), first);
+                        first = false;
+                    } catch (InstanceNotFoundException | IntrospectionException | ReflectionException e) {
+                        // The MBean vanished or is broken, skip it
+                    } catch (SecurityException e) {
+                        // Not readable by this subject, skip it like the queries do
+                    }
+                }
+                formatter.end(w);
+            }
+        } catch (MalformedObjectNameException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } catch (SecurityException e) {
+            exchange.sendResponseHeaders(403, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String[] readableAttributes(ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        return Arrays.stream(mbs.getMBeanInfo(name).getAttributes())
+                     .filter(MBeanAttributeInfo::isReadable)
+                     .map(MBeanAttributeInfo::getName)
+                     .toArray(String[]::new);
+    }
+
+    private static class Prometheus implements Formatter {
+        // The samples by metric, in the order they were first found, the whole response is kept until the end
+        private final Map<String, StringBuilder> families = new LinkedHashMap<>();
+
+        @Override
+        public void start(Writer w) {
+        }
+
+        @Override
+        public void mbean(Writer w, ObjectName name, AttributeList attributes, boolean first) throws IOException {
+            StringBuilder labels = new StringBuilder();
+            for (Map.Entry<String, String> e: new TreeMap<>(name.getKeyPropertyList()).entrySet()) {
+                labels.append(labels.length() == 0 ? "{" : ",");
+                labels.append(sanitize(e.getKey())).append("=\"");
+                String value = e.getValue().startsWith("\"") ? ObjectName.unquote(e.getValue()) : e.getValue();
+                labels.append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+                labels.append('"');
+            }
+            if (labels.length() > 0) {
+                labels.append('}');
+            }
+            String prefix = sanitize(name.getDomain()) + "_";
+            for (Attribute a: attributes.asList()) {
+                String metric = prefix + sanitize(a.getName());
+                Object value = a.getValue();
+                if (value instanceof CompositeData) {
+                    CompositeData cd = (CompositeData) value;
+                    for (String key: cd.getCompositeType().keySet()) {
+                        sample(metric + "_" + sanitize(key), labels, cd.get(key));
+                    }
+                } else {
+                    sample(metric, labels, value);
+                }
+            }
+        }
+
+        private void sample(String metric, CharSequence labels, Object value) {
+            String formatted;
+            if (value instanceof Number) {
+                formatted = Double.toString(((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                formatted = (Boolean) value ? "1" : "0";
+            } else {
+                return;
+            }
+            families.computeIfAbsent(metric, k -> new StringBuilder()).append(metric).append(labels).append(' ').append(formatted).append('\n');
+        }
+
+        private String sanitize(String name) {
+            StringBuilder buffer = new StringBuilder(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                buffer.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9' && i > 0) || c == '_' ? c : '_');
+            }
+            return buffer.toString();
+        }
+
+        @Override
+        public void end(Writer w) throws IOException {
+            for (StringBuilder samples: families.values()) {
+                w.append(samples);
+            }
+        }
+    }
+
+    private static class Json implements Formatter {
+        @Override
+        public void start(Writer w) throws IOException {
+            w.append('{');
+        }
+
+        @Override
+        public void mbean(Writer w, ObjectName name, AttributeList attributes, boolean first) throws IOException {
+            if (! first) {
+                w.append(',');
+            }
+            string(w, name.getCanonicalName());
+            w.append(":{");
+            boolean firstAttribute = true;
+            for (Attribute a: attributes.asList()) {
+                if (! firstAttribute) {
+                    w.append(',');
+                }
+                firstAttribute = false;
+                string(w, a.getName());
+                w.append(':');
+                value(w, a.getValue());
+            }
+            w.append('}');
+        }
+
+        private void value(Writer w, Object value) throws IOException {
+            if (value == null) {
+                w.append("null");
+            } else if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+                w.append("null");
+            } else if (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite())) {
+                w.append("null");
+            } else if (value instanceof Number || value instanceof Boolean) {
+                w.append(value.toString());
+            } else if (value instanceof CompositeData) {
+                CompositeData cd = (CompositeData) value;
+                w.append('{');
+                boolean first = true;
+                for (String key: cd.getCompositeType().keySet()) {
+                    if (! first) {
+                        w.append(',');
+                    }
+                    first = false;
+                    string(w, key);
+                    w.append(':');
+                    value(w, cd.get(key));
+                }
+                w.append('}');
+            } else if (value instanceof TabularData) {
+                sequence(w, ((TabularData) value).values());
+            } else if (value instanceof Collection) {
+                sequence(w, (Collection<?>) value);
+            } else if (value.getClass().isArray()) {
+                w.append('[');
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    if (i > 0) {
+                        w.append(',');
+                    }
+                    value(w, Array.get(value, i));
+                }
+                w.append(']');
+            } else {
+                string(w, value.toString());
+            }
+        }
+
+        private void sequence(Writer w, Collection<?> values) throws IOException {
+            w.append('[');
+            boolean first = true;
+            for (Object o: values) {
+                if (! first) {
+                    w.append(',');
+                }
+                first = false;
+                value(w, o);
+            }
+            w.append(']');
+        }
+
+        private void string(Writer w, String value) throws IOException {
+            w.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                case '"':
+                    w.append("\\\"");
+                    break;
+                case '\\':
+                    w.append("\\\\");
+                    break;
+                case '\n':
+                    w.append("\\n");
+                    break;
+                case '\r':
+                    w.append("\\r");
+                    break;
+                case '\t':
+                    w.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        w.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        w.append(c);
+                    }
+                }
+            }
+            w.append('"');
+        }
+
+        @Override
+        public void end(Writer w) throws IOException {
+            w.append('}');
+        }
+    }
+
+}
@@ -0,0 +1,9 @@
+package fr.jrds.jmxagent;
+
+public interface IndexMXBean {
+    int getSize();
+    int getDomainCount();
+    long getIndexedQueries();
+    long getFallbacks();
+    long getRebuilds();
+}
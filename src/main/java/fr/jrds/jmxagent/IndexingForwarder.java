@@ -0,0 +1,295 @@
+package fr.jrds.jmxagent;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+/**
+ * Answers <code>queryNames</code> and <code>queryMBeans</code> from an index of the registered MBeans, by domain and by
+ * key property value, so the cost of a query depends on the number of MBeans found, not on the number of MBeans
+ * registered.
+ * <p>
+ * The index is updated by the registration notifications of the {@link MBeanServerDelegate}, they are sent
+ * synchronously by the registration. Queries with a {@link QueryExp} are forwarded. When the index size and the MBean
+ * count don't match, the query is forwarded too, and the index is rebuilt if the mismatch persists.
+ */
+class IndexingForwarder extends ForwardingMBeanServer implements IndexMXBean, NotificationListener {
+
+    private static final int MISMATCHES_BEFORE_REBUILD = 3;
+
+    private static final class DomainIndex {
+        private final Set<ObjectName> names = ConcurrentHashMap.newKeySet();
+        private final Map<String, Map<String, Set<ObjectName>>> properties = new ConcurrentHashMap<>();
+
+        private void add(ObjectName name) {
+            names.add(name);
+            for (Map.Entry<String, String> e: name.getKeyPropertyList().entrySet()) {
+                properties.computeIfAbsent(e.getKey(), k -> new ConcurrentHashMap<>())
+                          .computeIfAbsent(e.getValue(), k -> ConcurrentHashMap.newKeySet())
+                          .add(name);
+            }
+        }
+
+        private void remove(ObjectName name) {
+            names.remove(name);
+            for (Map.Entry<String, String> e: name.getKeyPropertyList().entrySet()) {
+                Map<String, Set<ObjectName>> values = properties.get(e.getKey());
+                if (values != null) {
+                    values.computeIfPresent(e.getValue(), (k, v) -> {
+                        v.remove(name);
+                        return v.isEmpty() ? null : v;
+                    });
+                }
+            }
+        }
+
+        /**
+         * Find the smallest set of candidates, using the key properties with an explicit value.
+         */
+        private Set<ObjectName> candidates(ObjectName pattern) {
+            Set<ObjectName> candidates = names;
+            for (Map.Entry<String, String> e: pattern.getKeyPropertyList().entrySet()) {
+                if (pattern.isPropertyValuePattern(e.getKey())) {
+                    continue;
+                }
+                Set<ObjectName> found = properties.getOrDefault(e.getKey(), Collections.emptyMap()).get(e.getValue());
+                if (found == null) {
+                    return Collections.emptySet();
+                } else if (found.size() < candidates.size()) {
+                    candidates = found;
+                }
+            }
+            return candidates;
+        }
+    }
+
+    private final Map<String, DomainIndex> domains = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger mismatches = new AtomicInteger();
+    private final ReentrantLock rebuilding = new ReentrantLock();
+    private final LongAdder indexedQueries = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    @Override
+    public void setMBeanServer(MBeanServer mbs) {
+        super.setMBeanServer(mbs);
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        try {
+            // Listen first, so no registration is missed while the index is filled
+            mbs.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+        } catch (InstanceNotFoundException e) {
+            throw new IllegalStateException("No MBeanServerDelegate", e);
+        }
+        rebuild();
+    }
+
+    /**
+     * Stop following the registrations.
+     */
+    void close() {
+        try {
+            getMBeanServer().removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+        } catch (InstanceNotFoundException | ListenerNotFoundException e) {
+            // Already removed
+        }
+        domains.clear();
+        size.set(0);
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (! (notification instanceof MBeanServerNotification)) {
+            return;
+        }
+        ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            add(name);
+        } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            remove(name);
+        }
+    }
+
+    private void add(ObjectName name) {
+        DomainIndex di = domains.computeIfAbsent(name.getDomain(), k -> new DomainIndex());
+        synchronized (di) {
+            if (! di.names.contains(name)) {
+                di.add(name);
+                size.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(ObjectName name) {
+        DomainIndex di = domains.get(name.getDomain());
+        if (di != null) {
+            synchronized (di) {
+                if (di.names.contains(name)) {
+                    di.remove(name);
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reconcile the index with the registered MBeans.
+     */
+    private void rebuild() {
+        if (! rebuilding.tryLock()) {
+            return;
+        }
+        try {
+            Set<ObjectName> registered = super.queryNames(null, null);
+            registered.forEach(this::add);
+            for (DomainIndex di: domains.values()) {
+                for (ObjectName name: di.names) {
+                    if (! registered.contains(name)) {
+                        remove(name);
+                    }
+                }
+            }
+            mismatches.set(0);
+            rebuilds.increment();
+        } finally {
+            rebuilding.unlock();
+        }
+    }
+
+    /**
+     * @return the names found in the index, or null if the index can't answer
+     */
+    private Set<ObjectName> lookup(ObjectName pattern, QueryExp query) {
+        if (query != null || (pattern != null && pattern.getDomain().isEmpty())) {
+            // Query expressions and the default domain are left to the MBeanServer
+            return null;
+        }
+        if (size.get() != super.getMBeanCount()) {
+            if (mismatches.incrementAndGet() >= MISMATCHES_BEFORE_REBUILD) {
+                rebuild();
+            }
+            return null;
+        }
+        mismatches.set(0);
+        Set<ObjectName> found = new HashSet<>();
+        if (pattern == null) {
+            domains.values().forEach(di -> found.addAll(di.names));
+        } else if (! pattern.isDomainPattern()) {
+            DomainIndex di = domains.get(pattern.getDomain());
+            if (di != null) {
+                search(di, pattern, found);
+            }
+        } else {
+            Pattern domainPattern = domainPattern(pattern.getDomain());
+            for (Map.Entry<String, DomainIndex> e: domains.entrySet()) {
+                if (domainPattern.matcher(e.getKey()).matches()) {
+                    search(e.getValue(), pattern, found);
+                }
+            }
+        }
+        return found;
+    }
+
+    private void search(DomainIndex di, ObjectName pattern, Set<ObjectName> found) {
+        if (! pattern.isPattern()) {
+            if (di.names.contains(pattern)) {
+                found.add(pattern);
+            }
+        } else {
+            for (ObjectName name: di.candidates(pattern)) {
+                if (pattern.apply(name)) {
+                    found.add(name);
+                }
+            }
+        }
+    }
+
+    private static Pattern domainPattern(String domain) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c: domain.toCharArray()) {
+            if (c == '*' || c == '?') {
+                regex.append(Pattern.quote(literal.toString())).append(c == '*' ? ".*" : ".");
+                literal.setLength(0);
+            } else {
+                literal.append(c);
+            }
+        }
+        return Pattern.compile(regex.append(Pattern.quote(literal.toString())).toString());
+    }
+
+    @Override
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        Set<ObjectName> found = lookup(name, query);
+        if (found == null) {
+            fallbacks.increment();
+            return super.queryNames(name, query);
+        }
+        indexedQueries.increment();
+        return found;
+    }
+
+    @Override
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        Set<ObjectName> found = lookup(name, query);
+        if (found == null) {
+            fallbacks.increment();
+            return super.queryMBeans(name, query);
+        }
+        indexedQueries.increment();
+        Set<ObjectInstance> instances = new HashSet<>(found.size() * 2);
+        for (ObjectName on: found) {
+            try {
+                instances.add(super.getObjectInstance(on));
+            } catch (InstanceNotFoundException e) {
+                // Unregistered since the lookup
+            }
+        }
+        return instances;
+    }
+
+    @Override
+    public int getSize() {
+        return size.get();
+    }
+
+    @Override
+    public int getDomainCount() {
+        return (int) domains.values().stream().filter(di -> ! di.names.isEmpty()).count();
+    }
+
+    @Override
+    public long getIndexedQueries() {
+        return indexedQueries.sum();
+    }
+
+    @Override
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    @Override
+    public long getRebuilds() {
+        return rebuilds.sum();
+    }
+
+}
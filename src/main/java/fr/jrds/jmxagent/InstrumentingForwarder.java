@@ -0,0 +1,283 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+
+/**
+ * A forwarder that records the latency of MBeanServer calls, by operation and by ObjectName domain. As it's the
+ * head of the forwarders chain, the latency includes the access checks.
+ * <p>
+ * The domains are given by the clients, so a new domain is only added by a successful call, and only the first
+ * {@link #MAX_DOMAINS} ones are kept, the others are counted in {@link #OTHER}.
+ */
+class InstrumentingForwarder extends ForwardingMBeanServer implements OperationsMXBean {
+
+    static final int MAX_DOMAINS = 64;
+    static final String OTHER = "other";
+    private static final String NODOMAIN = "*";
+
+    private final ConcurrentMap<String, LatencyHistogram> operations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> domains = new ConcurrentHashMap<>();
+
+    private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms, String key) {
+        // get first, computeIfAbsent might lock even when the key is present
+        LatencyHistogram h = histograms.get(key);
+        return h != null ? h : histograms.computeIfAbsent(key, k -> new LatencyHistogram());
+    }
+
+    private void record(String operation, ObjectName name, long start, boolean failed) {
+        long duration = System.nanoTime() - start;
+        histogram(operations, operation).record(duration, failed);
+        domain(name == null ? NODOMAIN : name.getDomain(), failed).record(duration, failed);
+    }
+
+    private LatencyHistogram domain(String domain, boolean failed) {
+        LatencyHistogram h = domains.get(domain);
+        if (h != null) {
+            return h;
+        } else if (failed || domains.size() >= MAX_DOMAINS - 1) {
+            return histogram(domains, OTHER);
+        } else {
+            return histogram(domains, domain);
+        }
+    }
+
+    @Override
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object value = super.getAttribute(name, attribute);
+            failed = false;
+            return value;
+        } finally {
+            record("getAttribute", name, start, failed);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            AttributeList values = super.getAttributes(name, attributes);
+            failed = false;
+            return values;
+        } finally {
+            record("getAttributes", name, start, failed);
+        }
+    }
+
+    @Override
+    public void setAttribute(ObjectName name, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+            MBeanException, ReflectionException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.setAttribute(name, attribute);
+            failed = false;
+        } finally {
+            record("setAttribute", name, start, failed);
+        }
+    }
+
+    @Override
+    public AttributeList setAttributes(ObjectName name, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            AttributeList values = super.setAttributes(name, attributes);
+            failed = false;
+            return values;
+        } finally {
+            record("setAttributes", name, start, failed);
+        }
+    }
+
+    @Override
+    public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object value = super.invoke(name, operationName, params, signature);
+            failed = false;
+            return value;
+        } finally {
+            record("invoke", name, start, failed);
+        }
+    }
+
+    @Override
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Set<ObjectInstance> values = super.queryMBeans(name, query);
+            failed = false;
+            return values;
+        } finally {
+            record("queryMBeans", name, start, failed);
+        }
+    }
+
+    @Override
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Set<ObjectName> values = super.queryNames(name, query);
+            failed = false;
+            return values;
+        } finally {
+            record("queryNames", name, start, failed);
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(ObjectName name)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            MBeanInfo value = super.getMBeanInfo(name);
+            failed = false;
+            return value;
+        } finally {
+            record("getMBeanInfo", name, start, failed);
+        }
+    }
+
+    @Override
+    public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ObjectInstance value = super.getObjectInstance(name);
+            failed = false;
+            return value;
+        } finally {
+            record("getObjectInstance", name, start, failed);
+        }
+    }
+
+    @Override
+    public boolean isRegistered(ObjectName name) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean value = super.isRegistered(name);
+            failed = false;
+            return value;
+        } finally {
+            record("isRegistered", name, start, failed);
+        }
+    }
+
+    @Override
+    public boolean isInstanceOf(ObjectName name, String className) throws InstanceNotFoundException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean value = super.isInstanceOf(name, className);
+            failed = false;
+            return value;
+        } finally {
+            record("isInstanceOf", name, start, failed);
+        }
+    }
+
+    @Override
+    public Integer getMBeanCount() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Integer value = super.getMBeanCount();
+            failed = false;
+            return value;
+        } finally {
+            record("getMBeanCount", null, start, failed);
+        }
+    }
+
+    @Override
+    public String[] getDomains() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            String[] value = super.getDomains();
+            failed = false;
+            return value;
+        } finally {
+            record("getDomains", null, start, failed);
+        }
+    }
+
+    @Override
+    public void addNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter,
+                                        Object handback)
+            throws InstanceNotFoundException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.addNotificationListener(name, listener, filter, handback);
+            failed = false;
+        } finally {
+            record("addNotificationListener", name, start, failed);
+        }
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener,
+                                           NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.removeNotificationListener(name, listener, filter, handback);
+            failed = false;
+        } finally {
+            record("removeNotificationListener", name, start, failed);
+        }
+    }
+
+    @Override
+    public Map<String, LatencyStatistics> getByOperation() {
+        return snapshot(operations);
+    }
+
+    @Override
+    public Map<String, LatencyStatistics> getByDomain() {
+        return snapshot(domains);
+    }
+
+    private Map<String, LatencyStatistics> snapshot(Map<String, LatencyHistogram> histograms) {
+        Map<String, LatencyStatistics> statistics = new TreeMap<>();
+        histograms.forEach((k, v) -> statistics.put(k, v.snapshot()));
+        return statistics;
+    }
+
+}
@@ -2,30 +2,44 @@ package fr.jrds.jmxagent;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
 import java.lang.management.ManagementFactory;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.rmi.NoSuchObjectException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
 import java.rmi.server.RMIClientSocketFactory;
 import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
 
+import javax.management.InstanceAlreadyExistsException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanRegistrationException;
 import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
 import javax.management.remote.JMXAuthenticator;
 import javax.management.remote.JMXConnectorServer;
 import javax.management.remote.JMXConnectorServerFactory;
 import javax.management.remote.JMXPrincipal;
 import javax.management.remote.JMXServiceURL;
+import javax.management.remote.MBeanServerForwarder;
 import javax.management.remote.rmi.RMIConnectorServer;
+import javax.rmi.ssl.SslRMIClientSocketFactory;
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
@@ -39,107 +53,443 @@ import fr.jrds.jmxagent.Configuration.PROTOCOL;
 
 public class JmxStarter {
 
-    private static Optional<JmxStarter> instance;
+    /**
+     * The domain of the MBeans registered by the agent
+     */
+    public static final String DOMAIN = "fr.jrds.jmxagent";
+
+    /**
+     * The state of the agent
+     */
+    public enum State {
+        STOPPED,
+        STARTING,
+        RUNNING,
+        FAILED,
+    }
+
+    private static volatile Optional<JmxStarter> instance = Optional.empty();
+    private static volatile State state = State.STOPPED;
+    private static volatile CountDownLatch ready = new CountDownLatch(0);
+    private static Thread starter = null;
 
     public static void premain(String agentArgs) {
         try {
-            Configuration.Builder builder = Configuration.getBuilder().readSystemProperties();
-            if (agentArgs != null && ! agentArgs.isEmpty()) {
-                String[] args  = agentArgs.split(File.pathSeparator);
-                for (String arg: args) {
-                    if(arg.isEmpty()) {
-                        continue;
-                    }
-                    String[] argDetails = arg.split("=");
-                    if (argDetails.length == 2) {
-                        builder.readBean(argDetails[0], argDetails[1]);
-                    } else {
-                        builder.readBean(argDetails[0], "true");
-                    }
-                }
+            Configuration conf = parse(agentArgs);
+            if (conf.async) {
+                startAsync(conf);
+            } else if (starting()) {
+                start(conf);
             }
-            Configuration conf = builder.build();
-            instance = Optional.ofNullable(new JmxStarter(conf)) ;
-        } catch (IOException | SecurityException | IllegalArgumentException | MBeanRegistrationException | InstanceNotFoundException | MalformedObjectNameException e) {
-            instance = Optional.empty();
-            // TODO Auto-generated catch block
+        } catch (IllegalArgumentException e) {
+            state = State.FAILED;
             e.printStackTrace();
         }
     }
-    
+
+    /**
+     * Used when the agent is attached to a running JVM, it's always started asynchronously.
+     * @param agentArgs the agent arguments
+     * @param inst not used
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        try {
+            startAsync(parse(agentArgs));
+        } catch (IllegalArgumentException e) {
+            state = State.FAILED;
+            e.printStackTrace();
+        }
+    }
+
+    private static Configuration parse(String agentArgs) {
+        Configuration.Builder builder = Configuration.getBuilder().readSystemProperties();
+        if (agentArgs != null && ! agentArgs.isEmpty()) {
+            String[] args  = agentArgs.split(File.pathSeparator);
+            for (String arg: args) {
+                if(arg.isEmpty()) {
+                    continue;
+                }
+                String[] argDetails = arg.split("=");
+                if (argDetails.length == 2) {
+                    builder.readBean(argDetails[0], argDetails[1]);
+                } else {
+                    builder.readBean(argDetails[0], "true");
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static synchronized void startAsync(Configuration conf) {
+        if (starting()) {
+            starter = new Thread(() -> start(conf), "JmxAgent-starter");
+            starter.setDaemon(true);
+            starter.start();
+        }
+    }
+
+    /**
+     * A second start, like an agentmain on a running agent, is refused and keeps the running agent.
+     * @return true if the agent can be started
+     */
+    private static synchronized boolean starting() {
+        if (instance.isPresent() || state == State.STARTING) {
+            System.err.println("JMX agent already " + state.name().toLowerCase());
+            return false;
+        } else {
+            ready = new CountDownLatch(1);
+            state = State.STARTING;
+            return true;
+        }
+    }
+
+    /**
+     * Start the agent, the instance is only set if it succeeded, a failed start stops what it started.
+     */
+    private static void start(Configuration conf) {
+        try {
+            JmxStarter started = new JmxStarter(conf);
+            synchronized (JmxStarter.class) {
+                instance = Optional.of(started);
+                state = State.RUNNING;
+            }
+        } catch (IOException | SecurityException | IllegalArgumentException | MBeanRegistrationException | InstanceNotFoundException | MalformedObjectNameException | InstanceAlreadyExistsException | NotCompliantMBeanException e) {
+            synchronized (JmxStarter.class) {
+                state = State.FAILED;
+            }
+            System.err.println("JMX agent failed to start: " + e);
+        } finally {
+            ready.countDown();
+        }
+    }
+
+    public static State getState() {
+        return state;
+    }
+
+    /**
+     * Wait for the agent to be started.
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout
+     * @return true if the agent is running
+     * @throws InterruptedException
+     */
+    public static boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit) && state == State.RUNNING;
+    }
+
     public static void stop() {
-        instance.ifPresent(JmxStarter::stopServer);
+        Thread running;
+        synchronized (JmxStarter.class) {
+            running = starter;
+            starter = null;
+        }
+        // Joined outside of the lock, the starter needs it to publish the agent
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (JmxStarter.class) {
+            instance.ifPresent(JmxStarter::stopServer);
+            instance = Optional.empty();
+            state = State.STOPPED;
+        }
     }
 
     private final Configuration props;
     private final JMXConnectorServer cs;
+    private final HttpExporter http;
+    private final NioConnectorServer nio;
+    private final WorkerPool workers;
+    private final Subscriptions subscriptions;
+    private final IndexingForwarder index;
+    private final MetricsExporter exporter;
+    private final TimeoutForwarder timeouts;
+    private final History history;
+    private final ThreadSummary threadSummary;
+    private final GarbageCollections garbageCollections;
+    private final List<ObjectName> registered = new ArrayList<>();
+    private Registry registry = null;
 
-    JmxStarter(Configuration props) throws IOException, MBeanRegistrationException, InstanceNotFoundException, MalformedObjectNameException {
+    JmxStarter(Configuration props) throws IOException, MBeanRegistrationException, InstanceNotFoundException, MalformedObjectNameException, InstanceAlreadyExistsException, NotCompliantMBeanException {
         this.props = props;
-        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-        Map<String, Object> env = new HashMap<>();
-        RMIClientSocketFactory csf = null;
-        RMIServerSocketFactory ssf = null;
-        if (props.hostname != null) {
-            // No other way to set that, resolution is hidded deeply in sun.rmi.transport.tcp.TCPEndpoint, in a static attribute
-            System.setProperty("java.rmi.server.hostname", props.hostname);
-            System.setProperty("java.rmi.server.useLocalHostname", "false");
-        }
-        if (props.withSsl) {
-            env.put(RMIConnectorServer.RMI_SERVER_SOCKET_FACTORY_ATTRIBUTE, props.getSslSocketFactory());
-        }
-        boolean withAuthentication = false;
-        if (props.jaasConfig != null && props.jaasName != null) {
-            JMXAuthenticator authenticator = this::authenticate;
-            env.put(JMXConnectorServer.AUTHENTICATOR, authenticator);
-            withAuthentication = true;
-        } else if (props.jaasName != null) {
-            env.put("jmx.remote.x.login.config", props.jaasName);
-            withAuthentication = true;
-        } else if (props.passwordFile != null) {
-            env.put("jmx.remote.x.password.file", props.passwordFile);
-            withAuthentication = true;
-        }
-        Optional<Path> tempFile = Optional.empty();
-        if (withAuthentication && props.accessFile != null) {
-            env.put("jmx.remote.x.access.file", props.accessFile);
-        } else if (!withAuthentication && props.strict) {
-            for (String on: new String[] {"com.sun.management:type=DiagnosticCommand",
-                                          "com.sun.management:type=HotSpotDiagnostic",
-                                          "jdk.management.jfr:type=FlightRecorder"}) {
-                try {
-                    mbs.unregisterMBean(new ObjectName(on));
-                } catch (InstanceNotFoundException | MBeanRegistrationException ex) {
+        // What was started is stopped if the agent fails to start
+        boolean started = false;
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            Map<String, Object> env = new HashMap<>();
+            RMIClientSocketFactory csf = null;
+            RMIServerSocketFactory ssf = null;
+            String hostname = resolveHostname();
+            if (hostname != null) {
+                // No other way to set that, resolution is hidded deeply in sun.rmi.transport.tcp.TCPEndpoint, in a static attribute
+                System.setProperty("java.rmi.server.hostname", hostname);
+                System.setProperty("java.rmi.server.useLocalHostname", "false");
+            }
+            if (props.withSsl && props.protocol == PROTOCOL.nio) {
+                throw new IllegalArgumentException("The nio protocol doesn't support SSL");
+            }
+            workers = new WorkerPool(props.executionModel, props.workerThreads, props.workerQueue);
+            props.register(new ObjectName(DOMAIN, "type", "Executor"), workers);
+            if (props.withSsl) {
+                HandshakeMonitor handshakes = new HandshakeMonitor(props.getSslSocketFactory(), props.getSslContext().getServerSessionContext());
+                props.register(new ObjectName(DOMAIN, "type", "Tls"), handshakes);
+                ssf = handshakes;
+                csf = new SslRMIClientSocketFactory();
+                env.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, csf);
+            }
+            if (props.compression && props.protocol == PROTOCOL.rmi) {
+                Compression compression = new Compression(props.compressionThreshold);
+                props.register(new ObjectName(DOMAIN, "type", "Compression"), compression);
+                csf = new CompressingClientSocketFactory(csf, props.compressionThreshold);
+                ssf = new CompressingServerSocketFactory(ssf, compression);
+                env.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, csf);
+            }
+            if (props.maxConnections > 0 && props.protocol != PROTOCOL.nio) {
+                LimitingServerSocketFactory limiting = new LimitingServerSocketFactory(ssf, props.maxConnections);
+                workers.setConnections(limiting);
+                ssf = limiting;
+            }
+            AgentMonitor monitor = null;
+            if (props.protocol != PROTOCOL.http) {
+                monitor = new AgentMonitor();
+                props.register(new ObjectName(DOMAIN, "type", "Agent"), monitor);
+                if (props.protocol == PROTOCOL.rmi) {
+                    ssf = new CountingServerSocketFactory(ssf, monitor);
                 }
             }
-            tempFile = Optional.of(Files.createTempFile(null, null));
-            try (InputStream access = JmxStarter.class.getClassLoader().getResourceAsStream("jmxremote.access")) {
-                Files.copy(access, tempFile.get(), StandardCopyOption.REPLACE_EXISTING);
+            if (ssf != null) {
+                env.put(RMIConnectorServer.RMI_SERVER_SOCKET_FACTORY_ATTRIBUTE, ssf);
+            }
+            // Used by JMXMP
+            env.put("jmx.remote.x.server.max.threads", props.workerThreads);
+            JMXAuthenticator authenticator = null;
+            if ((props.jaasConfig != null || props.authCacheTtl > 0) && props.jaasName != null) {
+                authenticator = this::authenticate;
+                if (props.authCacheTtl > 0) {
+                    AuthenticationCache cache = new AuthenticationCache(authenticator, props.authCacheTtl, props.authNegativeTtl, props.authCacheSize, props.authMaxFailures);
+                    props.register(new ObjectName(DOMAIN, "type", "Authentication"), cache);
+                    authenticator = cache;
+                }
+                env.put(JMXConnectorServer.AUTHENTICATOR, authenticator);
+            } else if (props.jaasName != null) {
+                env.put("jmx.remote.x.login.config", props.jaasName);
+                authenticator = this::authenticate;
+            } else if (props.passwordFile != null) {
+                env.put("jmx.remote.x.password.file", props.passwordFile);
+                authenticator = new PasswordFile(Paths.get(props.passwordFile));
+            }
+            boolean withAuthentication = authenticator != null;
+            if (withAuthentication && props.protocol == PROTOCOL.http && ! (authenticator instanceof AuthenticationCache) && props.httpAuthCacheTtl > 0) {
+                // Each HTTP request is authenticated, the login is not done again for each scrape
+                AuthenticationCache cache = new AuthenticationCache(authenticator, props.httpAuthCacheTtl, props.authNegativeTtl, props.authCacheSize, props.authMaxFailures);
+                props.register(new ObjectName(DOMAIN, "type", "Authentication"), cache);
+                authenticator = cache;
+            }
+            if (withAuthentication && monitor != null) {
+                // The connector uses the same authentication as the JDK's defaults, but with counted outcomes
+                authenticator = monitor.authenticator(authenticator);
+                env.put(JMXConnectorServer.AUTHENTICATOR, authenticator);
+            }
+            MBeanServer server = mbs;
+            if (props.index) {
+                index = new IndexingForwarder();
+                props.register(new ObjectName(DOMAIN, "type", "Index"), index);
+                server = forward(server, index);
+            } else {
+                index = null;
+            }
+            if (! props.cachePatterns.isEmpty()) {
+                CachingForwarder cache = new CachingForwarder(props.cachePatterns, props.cacheTtl, props.cacheSize);
+                props.register(new ObjectName(DOMAIN, "type", "Cache"), cache);
+                server = forward(server, cache);
+            }
+            if (props.attributeTimeout > 0) {
+                // Below the access controller, so the reads done in the pool don't need the caller's subject
+                timeouts = new TimeoutForwarder(props.attributeTimeout, props.staleValues, props.slowRefresh, props.timeoutThreads, props.timeoutQueue);
+                props.register(new ObjectName(DOMAIN, "type", "Timeouts"), timeouts);
+                server = forward(server, timeouts);
+            } else {
+                timeouts = null;
+            }
+            RulesAccessController access = null;
+            if (withAuthentication && props.accessFile != null) {
+                access = new RulesAccessController(Paths.get(props.accessFile));
+            } else if (!withAuthentication && props.strict) {
+                for (String on: new String[] {"com.sun.management:type=DiagnosticCommand",
+                                              "com.sun.management:type=HotSpotDiagnostic",
+                                              "jdk.management.jfr:type=FlightRecorder"}) {
+                    try {
+                        mbs.unregisterMBean(new ObjectName(on));
+                    } catch (InstanceNotFoundException | MBeanRegistrationException ex) {
+                    }
+                }
+                access = new RulesAccessController(null);
+                authenticator = monitor != null ? monitor.authenticator(this::anonymous) : this::anonymous;
+                env.put(JMXConnectorServer.AUTHENTICATOR, authenticator);
+            }
+            if (access != null) {
+                props.register(new ObjectName(DOMAIN, "type", "Access"), access);
+                server = forward(server, access);
+            }
+            BiPredicate<ObjectName, String> readable = access != null ? access::isReadable : (n, a) -> true;
+            // Agent MBeans read attributes with the access rights of the caller, but are not instrumented or throttled
+            MBeanServer reader = server;
+            AdmissionController admission = null;
+            if (props.rateLimit > 0 || props.maxConcurrentCalls > 0) {
+                admission = new AdmissionController(props.rateLimit, props.rateBurst, props.maxConcurrentCalls, props.admissionWait);
+                props.register(new ObjectName(DOMAIN, "type", "Admission"), admission);
+                server = forward(server, admission);
+            }
+            if (props.instrument) {
+                InstrumentingForwarder instrumentation = new InstrumentingForwarder();
+                props.register(new ObjectName(DOMAIN, "type", "Operations"), instrumentation);
+                server = forward(server, instrumentation);
+            }
+            BulkReader bulkReader = new BulkReader(reader);
+            props.register(new ObjectName(DOMAIN, "type", "BulkReader"), bulkReader);
+            subscriptions = new Subscriptions(bulkReader, workers, props.maxSubscriptions);
+            props.register(new ObjectName(DOMAIN, "type", "Subscriptions"), subscriptions);
+            if (props.protocol == PROTOCOL.http) {
+                // The HTTP exporter only reads attributes, it's always read only
+                cs = null;
+                nio = null;
+                http = new HttpExporter(new InetSocketAddress(props.port), server, props.httpPatterns, withAuthentication ? authenticator : null, workers);
+                http.start();
+            } else if (props.protocol == PROTOCOL.nio) {
+                // The authenticator is the strict mode's one when there is no authentication
+                cs = null;
+                http = null;
+                nio = new NioConnectorServer(new InetSocketAddress(props.port), server, authenticator, workers, monitor, props.maxConnections, props.handshakeTimeout);
+                nio.addNotificationListener(monitor, null, null);
+                nio.addNotificationListener(subscriptions, null, null);
+                if (admission != null) {
+                    nio.addNotificationListener(admission, null, null);
+                }
+                nio.start();
+            } else {
+                String path = "/";
+                if (props.protocol == PROTOCOL.rmi) {
+                    setRmiProperties();
+                    registry = LocateRegistry.createRegistry(props.port, csf, ssf);
+                    if (csf != null) {
+                        // Needed to bind the connector in the registry
+                        env.put("com.sun.jndi.rmi.factory.socket", csf);
+                    }
+                    path = String.format("/jndi/rmi://0.0.0.0:%s/jmxrmi", props.port);
+                }
+                JMXServiceURL url = new JMXServiceURL(props.protocol.toString(), "0.0.0.0", props.port, path);
+                http = null;
+                nio = null;
+                if (props.protocol == PROTOCOL.rmi) {
+                    SessionController sessions = new SessionController(props.port, csf, ssf, env, props.idleTimeout, props.maxSessionsPerPrincipal, subscriptions);
+                    props.register(new ObjectName(DOMAIN, "type", "Sessions"), sessions);
+                    cs = new RMIConnectorServer(url, env, sessions, server);
+                } else {
+                    cs = JMXConnectorServerFactory.newJMXConnectorServer(url, env, server);
+                }
+                cs.addNotificationListener(monitor, null, null);
+                cs.addNotificationListener(subscriptions, null, null);
+                if (admission != null) {
+                    cs.addNotificationListener(admission, null, null);
+                }
+                cs.start();
+            }
+            if (props.exportFile != null) {
+                // Local collection reads the MBeans directly, the file is protected by the file system
+                exporter = new MetricsExporter(Paths.get(props.exportFile), mbs, props.exportPatterns, props.exportInterval, props.exportCapacity);
+                props.register(new ObjectName(DOMAIN, "type", "Export"), exporter);
+            } else {
+                exporter = null;
+            }
+            if (! props.historyAttributes.isEmpty()) {
+                history = new History(mbs, props.historyAttributes, props.historyInterval, props.historySize, readable);
+                props.register(new ObjectName(DOMAIN, "type", "History"), history);
+            } else {
+                history = null;
+            }
+            if (props.threadSummaryInterval > 0) {
+                threadSummary = new ThreadSummary(props.threadSummaryInterval, props.threadSummaryTop, props.threadSummaryDeadlocks);
+                props.register(new ObjectName(DOMAIN, "type", "Threads"), threadSummary);
+            } else {
+                threadSummary = null;
+            }
+            if (props.gcNotifications) {
+                garbageCollections = new GarbageCollections();
+                props.register(new ObjectName(DOMAIN, "type", "GarbageCollections"), garbageCollections);
+            } else {
+                garbageCollections = null;
+            }
+            registerMBeans(mbs);
+            if (exporter != null) {
+                exporter.start();
+            }
+            if (history != null) {
+                history.start();
+            }
+            if (threadSummary != null) {
+                threadSummary.start();
+            }
+            if (garbageCollections != null) {
+                garbageCollections.start();
+            }
+            started = true;
+        } finally {
+            if (! started) {
+                stopServer();
             }
-            env.put("jmx.remote.x.access.file", tempFile.get().toAbsolutePath().toString());
-            JMXAuthenticator authenticator = this::anonymous;
-            env.put(JMXConnectorServer.AUTHENTICATOR, authenticator);
+        }
+    }
+
+    /**
+     * The RMI runtime reads those properties when it's first used, so they are only effective if no other RMI object
+     * was exported before the agent starts.
+     */
+    private void setRmiProperties() {
+        if (props.rmiLease > 0) {
+            System.setProperty("java.rmi.dgc.leaseValue", Long.toString(props.rmiLease));
+        }
+        if (props.dgcInterval > 0) {
+            System.setProperty("sun.rmi.dgc.server.gcInterval", Long.toString(props.dgcInterval));
+            System.setProperty("sun.rmi.dgc.client.gcInterval", Long.toString(props.dgcInterval));
+        }
+        if (props.idleTimeout > 0 && System.getProperty("sun.rmi.transport.tcp.readTimeout") == null) {
+            // The threads serving idle sockets end too
+            System.setProperty("sun.rmi.transport.tcp.readTimeout", Long.toString(props.idleTimeout));
+        }
+    }
+
+    /**
+     * The name resolution is done here and not when parsing the configuration, as it can be slow.
+     */
+    private String resolveHostname() {
+        if (props.hostname != null) {
+            return props.hostname;
         }
         try {
-            String path = "/";
-            if (props.protocol == PROTOCOL.rmi) {
-                java.rmi.registry.LocateRegistry.createRegistry(props.port, csf, ssf);
-                path = String.format("/jndi/rmi://0.0.0.0:%s/jmxrmi", props.port);
-            }
-            JMXServiceURL url = new JMXServiceURL(props.protocol.toString(), "0.0.0.0", props.port, path);
-            cs = JMXConnectorServerFactory.newJMXConnectorServer(url, env, mbs);
-            cs.start();
-        } finally {
-            tempFile.ifPresent(t -> {
-                try {
-                    Files.deleteIfExists(t);
-                } catch (IOException e) {
-                }
-            });
+            InetAddress localhost = InetAddress.getLocalHost();
+            return props.useLocalHostname ? localhost.getCanonicalHostName() : localhost.getHostAddress();
+        } catch (UnknownHostException e) {
+            return null;
         }
     }
-    
-    private Subject authenticate(Object credentials) {
+
+    private MBeanServer forward(MBeanServer server, MBeanServerForwarder forwarder) {
+        forwarder.setMBeanServer(server);
+        return forwarder;
+    }
+
+    private void registerMBeans(MBeanServer mbs) throws InstanceAlreadyExistsException, MBeanRegistrationException, NotCompliantMBeanException {
+        for (Map.Entry<ObjectName, Object> e: props.getMBeans().entrySet()) {
+            mbs.registerMBean(e.getValue(), e.getKey());
+            registered.add(e.getKey());
+        }
+    }
+
+    Subject authenticate(Object credentials) {
         Subject s = null;
         if ((credentials instanceof String[])) {
             String[] loginPassword = (String[]) credentials;
@@ -161,7 +511,7 @@ public class JmxStarter {
         return s;
     }
 
-    private Subject anonymous(Object credentials) {
+    Subject anonymous(Object credentials) {
         Principal p = new JMXPrincipal("anonymous");
         return new Subject(true, Collections.singleton(p), Collections.emptySet(), Collections.emptySet());
     }
@@ -189,11 +539,57 @@ public class JmxStarter {
         return lc.getSubject();
     }
     
-    private void stopServer() {
-        try {
-            cs.stop();
-        } catch (IOException e) {
+    void stopServer() {
+        if (cs != null) {
+            try {
+                cs.stop();
+            } catch (IOException e) {
+            }
+        }
+        if (http != null) {
+            http.stop();
+        }
+        if (nio != null) {
+            nio.stop();
+        }
+        if (registry != null) {
+            try {
+                UnicastRemoteObject.unexportObject(registry, true);
+            } catch (NoSuchObjectException e) {
+            }
+        }
+        if (subscriptions != null) {
+            subscriptions.shutdown();
+        }
+        if (exporter != null) {
+            exporter.close();
+        }
+        if (history != null) {
+            history.close();
+        }
+        if (threadSummary != null) {
+            threadSummary.close();
+        }
+        if (garbageCollections != null) {
+            garbageCollections.close();
+        }
+        if (timeouts != null) {
+            timeouts.shutdown();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+        if (index != null) {
+            index.close();
+        }
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName on: registered) {
+            try {
+                mbs.unregisterMBean(on);
+            } catch (InstanceNotFoundException | MBeanRegistrationException e) {
+            }
         }
+        registered.clear();
     }
 
 }
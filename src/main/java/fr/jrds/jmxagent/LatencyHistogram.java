@@ -0,0 +1,47 @@
+package fr.jrds.jmxagent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram, using power of two buckets of microseconds. The bucket <code>i</code> counts durations
+ * in [2<sup>i-1</sup>, 2<sup>i</sup>[ µs, the last bucket counts everything above. Recording doesn't allocate and
+ * uses striped counters, so concurrent threads don't contend.
+ */
+class LatencyHistogram {
+
+    static final int BUCKETS = 32;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    static int bucket(long micros) {
+        return Math.min(64 - Long.numberOfLeadingZeros(Math.max(micros, 0)), BUCKETS - 1);
+    }
+
+    void record(long nanos, boolean failed) {
+        long micros = nanos / 1000;
+        buckets[bucket(micros)].increment();
+        totalTime.add(micros);
+        if (failed) {
+            failures.increment();
+        }
+    }
+
+    LatencyStatistics snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        return new LatencyStatistics(count, failures.sum(), totalTime.sum(), counts);
+    }
+
+}
@@ -0,0 +1,71 @@
+package fr.jrds.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of a {@link LatencyHistogram}. Durations are in µs, percentiles are the upper bound of the bucket
+ * that holds them.
+ */
+public class LatencyStatistics {
+
+    private final long count;
+    private final long failures;
+    private final long totalTime;
+    private final long[] buckets;
+
+    @ConstructorProperties({"count", "failures", "totalTime", "buckets"})
+    public LatencyStatistics(long count, long failures, long totalTime, long[] buckets) {
+        this.count = count;
+        this.failures = failures;
+        this.totalTime = totalTime;
+        this.buckets = buckets;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public long[] getBuckets() {
+        return buckets.clone();
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) totalTime / count;
+    }
+
+    public long getMedian() {
+        return percentile(0.5);
+    }
+
+    public long getP99() {
+        return percentile(0.99);
+    }
+
+    public long getP999() {
+        return percentile(0.999);
+    }
+
+    private long percentile(double rank) {
+        if (count == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(count * rank);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= threshold) {
+                return i == buckets.length - 1 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,56 @@
+package fr.jrds.jmxagent;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of connections accepted. As the RMI transport runs a thread for each connection, it also
+ * bounds the threads used by the clients. Connections above the limit are closed as soon as they are accepted.
+ */
+class LimitingServerSocketFactory extends ForwardingServerSocketFactory {
+
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final LongAdder rejected = new LongAdder();
+
+    LimitingServerSocketFactory(RMIServerSocketFactory delegate, int maxConnections) {
+        super(delegate);
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    @Override
+    protected Socket accepted(Socket s) throws IOException {
+        if (! permits.tryAcquire()) {
+            rejected.increment();
+            s.close();
+            return null;
+        }
+        AtomicBoolean released = new AtomicBoolean(false);
+        return new DelegatingSocket(s) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (released.compareAndSet(false, true)) {
+                        permits.release();
+                    }
+                }
+            }
+        };
+    }
+
+    int getActiveConnections() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    long getRejectedConnections() {
+        return rejected.sum();
+    }
+
+}
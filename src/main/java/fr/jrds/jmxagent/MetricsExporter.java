@@ -0,0 +1,338 @@
+package fr.jrds.jmxagent;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Samples the numeric and boolean attributes of the MBeans matching some patterns and writes them in a memory-mapped
+ * file, so a local collector can read them without any call to the JVM, see {@link ExportLayout} for the format and
+ * {@link ExportReader} for a reader.
+ * <p>
+ * The sampling runs in a single thread, that is the only writer of the file. The name table is rewritten only when the
+ * set of exported attributes changes. The file is deleted when the exporter is closed.
+ */
+class MetricsExporter implements ExportMXBean {
+
+    private static final Set<String> LONG_TYPES = new HashSet<>(Arrays.asList(
+            "long", "int", "short", "byte", "boolean",
+            Long.class.getName(), Integer.class.getName(), Short.class.getName(), Byte.class.getName(), Boolean.class.getName()));
+    private static final Set<String> DOUBLE_TYPES = new HashSet<>(Arrays.asList(
+            "double", "float", Double.class.getName(), Float.class.getName()));
+
+    private static final class Entry {
+        private final ObjectName name;
+        private final String attribute;
+        private final byte type;
+        private Entry(ObjectName name, String attribute, byte type) {
+            this.name = name;
+            this.attribute = attribute;
+            this.type = type;
+        }
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, attribute, type);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return name.equals(other.name) && attribute.equals(other.attribute) && type == other.type;
+        }
+    }
+
+    private final Path file;
+    private final MBeanServer mbs;
+    private final List<ObjectName> patterns;
+    private final long interval;
+    private final int capacity;
+    private final int namesSize;
+    private final int valuesOffset;
+    private final MappedByteBuffer buffer;
+    private final ScheduledExecutorService sampler;
+
+    // Only used by the sampling thread
+    private final Map<ObjectName, Map<String, Byte>> attributes = new HashMap<>();
+    private List<Entry> requested = new ArrayList<>();
+    private List<Entry> layout = new ArrayList<>();
+    private long sequence = 0;
+    private int generation = 0;
+
+    private volatile int dropped = 0;
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram sampleTime = new LatencyHistogram();
+
+    /**
+     * @param file the export file, it's truncated, or created only readable by the owner if the file system supports
+     *             POSIX permissions
+     * @param mbs the MBeanServer to read
+     * @param patterns the ObjectName patterns of the exported MBeans
+     * @param interval the sampling interval, in ms
+     * @param capacity the maximum number of exported attributes
+     * @throws IOException if the file can't be mapped
+     */
+    MetricsExporter(Path file, MBeanServer mbs, List<ObjectName> patterns, long interval, int capacity) throws IOException {
+        this.file = file;
+        this.mbs = mbs;
+        this.patterns = patterns;
+        this.interval = interval;
+        this.capacity = capacity;
+        this.namesSize = capacity * ExportLayout.NAME_SIZE;
+        this.valuesOffset = ExportLayout.HEADER_SIZE + namesSize;
+        Set<OpenOption> options = new HashSet<>(Arrays.asList(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        FileAttribute<?>[] attributes;
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            attributes = new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+        } else {
+            attributes = new FileAttribute<?>[0];
+        }
+        try (FileChannel channel = FileChannel.open(file, options, attributes)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) valuesOffset + capacity * 8L);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(ExportLayout.VERSION, ExportLayout.FORMAT_VERSION);
+        buffer.putLong(ExportLayout.SEQUENCE, 0);
+        buffer.putInt(ExportLayout.COUNT, 0);
+        buffer.putInt(ExportLayout.CAPACITY, capacity);
+        buffer.putInt(ExportLayout.NAMES_OFFSET, ExportLayout.HEADER_SIZE);
+        buffer.putInt(ExportLayout.NAMES_SIZE, namesSize);
+        buffer.putInt(ExportLayout.VALUES_OFFSET, valuesOffset);
+        // The magic is written last, so a reader never sees a partial header
+        ExportLayout.storeFence();
+        for (int i = 0; i < ExportLayout.MAGIC.length; i++) {
+            buffer.put(i, ExportLayout.MAGIC[i]);
+        }
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "JmxAgent-export");
+            t.setDaemon(true);
+            return t;
+        });
+        stpe.setRemoveOnCancelPolicy(true);
+        sampler = stpe;
+    }
+
+    void start() {
+        sampler.scheduleAtFixedRate(this::sample, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        sampler.shutdownNow();
+        try {
+            sampler.awaitTermination(interval, TimeUnit.MILLISECONDS);
+            Files.deleteIfExists(file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    private void sample() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Set<ObjectName> names = new TreeSet<>();
+            for (ObjectName p: patterns) {
+                names.addAll(mbs.queryNames(p, null));
+            }
+            attributes.keySet().retainAll(names);
+            List<Entry> entries = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
+            for (ObjectName name: names) {
+                read(name, entries, values);
+            }
+            write(entries, values);
+            failed = false;
+        } catch (RuntimeException e) {
+            failures.increment();
+        } finally {
+            samples.increment();
+            sampleTime.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    private void read(ObjectName name, List<Entry> entries, List<Object> values) {
+        try {
+            Map<String, Byte> types = attributes.get(name);
+            if (types == null) {
+                types = exportedAttributes(name);
+                attributes.put(name, types);
+            }
+            if (types.isEmpty()) {
+                return;
+            }
+            Map<String, Object> found = new HashMap<>(types.size() * 2);
+            for (Attribute a: mbs.getAttributes(name, types.keySet().toArray(new String[types.size()])).asList()) {
+                found.put(a.getName(), a.getValue());
+            }
+            for (Map.Entry<String, Byte> e: types.entrySet()) {
+                entries.add(new Entry(name, e.getKey(), e.getValue()));
+                values.add(found.get(e.getKey()));
+            }
+        } catch (InstanceNotFoundException | IntrospectionException | ReflectionException e) {
+            // Unregistered or unusable MBean, skipped
+        }
+    }
+
+    private Map<String, Byte> exportedAttributes(ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        Map<String, Byte> types = new TreeMap<>();
+        for (MBeanAttributeInfo info: mbs.getMBeanInfo(name).getAttributes()) {
+            if (! info.isReadable()) {
+                continue;
+            } else if (LONG_TYPES.contains(info.getType())) {
+                types.put(info.getName(), ExportLayout.LONG);
+            } else if (DOUBLE_TYPES.contains(info.getType())) {
+                types.put(info.getName(), ExportLayout.DOUBLE);
+            }
+        }
+        return types;
+    }
+
+    private void write(List<Entry> entries, List<Object> values) {
+        List<Entry> wanted = entries.subList(0, Math.min(entries.size(), capacity));
+        byte[] names = null;
+        if (! wanted.equals(requested)) {
+            requested = new ArrayList<>(wanted);
+            layout = new ArrayList<>(wanted);
+            // The name table can limit the count too
+            names = nameTable(layout);
+        }
+        int count = layout.size();
+        dropped = entries.size() - count;
+
+        buffer.putLong(ExportLayout.SEQUENCE, ++sequence);
+        ExportLayout.storeFence();
+        if (names != null) {
+            buffer.position(ExportLayout.HEADER_SIZE);
+            buffer.put(names);
+            buffer.putInt(ExportLayout.GENERATION, ++generation);
+        }
+        buffer.putInt(ExportLayout.COUNT, count);
+        buffer.putLong(ExportLayout.TIME, System.currentTimeMillis());
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(valuesOffset + i * 8, bits(layout.get(i).type, values.get(i)));
+        }
+        ExportLayout.storeFence();
+        buffer.putLong(ExportLayout.SEQUENCE, ++sequence);
+    }
+
+    /**
+     * Encode the name table, the entries that don't fit are removed.
+     */
+    private byte[] nameTable(List<Entry> entries) {
+        byte[] table = new byte[namesSize];
+        int position = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            byte[] name = e.name.getCanonicalName().getBytes(StandardCharsets.UTF_8);
+            byte[] attribute = e.attribute.getBytes(StandardCharsets.UTF_8);
+            int size = 5 + name.length + attribute.length;
+            if (position + size > table.length || name.length > 0xffff || attribute.length > 0xffff) {
+                entries.subList(i, entries.size()).clear();
+                break;
+            }
+            table[position++] = e.type;
+            position = putString(table, position, name);
+            position = putString(table, position, attribute);
+        }
+        return table;
+    }
+
+    private static int putString(byte[] table, int position, byte[] value) {
+        table[position++] = (byte) value.length;
+        table[position++] = (byte) (value.length >>> 8);
+        System.arraycopy(value, 0, table, position, value.length);
+        return position + value.length;
+    }
+
+    private static long bits(byte type, Object value) {
+        if (type == ExportLayout.DOUBLE) {
+            return Double.doubleToRawLongBits(value instanceof Number ? ((Number) value).doubleValue() : Double.NaN);
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    @Override
+    public String getFile() {
+        return file.toString();
+    }
+
+    @Override
+    public long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getEntries() {
+        return buffer.getInt(ExportLayout.COUNT);
+    }
+
+    @Override
+    public int getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public int getLayoutChanges() {
+        return buffer.getInt(ExportLayout.GENERATION);
+    }
+
+    @Override
+    public LatencyStatistics getSampleTime() {
+        return sampleTime.snapshot();
+    }
+
+}
@@ -0,0 +1,289 @@
+package fr.jrds.jmxagent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.RuntimeOperationsException;
+
+/**
+ * A client for the <code>nio</code> protocol of the agent. It's thread safe and many requests can be sent at the same
+ * time on the single connection, the <code>...Async</code> methods don't wait for the response. The synchronous
+ * methods throw the same exceptions as an {@link javax.management.MBeanServerConnection}, but the remote exceptions
+ * are rebuilt from their class and their message only.
+ * <pre>
+ * try (NioClient client = NioClient.connect("localhost", 9010, null)) {
+ *     Object used = client.getAttribute(new ObjectName("java.lang:type=Memory"), "HeapMemoryUsage");
+ * }
+ * </pre>
+ */
+public class NioClient implements Closeable {
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final Map<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Thread reader;
+    private final String connectionId;
+    private volatile IOException failure = null;
+
+    /**
+     * Connect to an agent using the <code>nio</code> protocol.
+     * @param host the agent's host
+     * @param port the agent's port
+     * @param credentials the credentials, usually a String[] with the user and the password, or null
+     * @return a connected and authenticated client
+     * @throws IOException if the connection failed
+     * @throws SecurityException if the authentication failed
+     */
+    public static NioClient connect(String host, int port, Object credentials) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            return new NioClient(socket, credentials);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private NioClient(Socket socket, Object credentials) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        reader = new Thread(this::readResponses, "JmxAgent-nio-client");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            connectionId = (String) get(send(NioConnectorServer.HELLO, o -> {
+                o.writeVarLong(NioConnectorServer.PROTOCOL_VERSION);
+                NioCodec.write(o, credentials);
+            }));
+        } catch (JMException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the id of the connection, given by the agent
+     */
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    private CompletableFuture<Object> send(byte op, Consumer<NioCodec.Output> args) {
+        CompletableFuture<Object> f = new CompletableFuture<>();
+        IOException failed = failure;
+        if (failed != null) {
+            f.completeExceptionally(failed);
+            return f;
+        }
+        int id = ids.incrementAndGet();
+        NioCodec.Output o = new NioCodec.Output().startFrame();
+        o.writeInt(id);
+        o.writeByte(op);
+        args.accept(o);
+        ByteBuffer frame = o.toFrame();
+        pending.put(id, f);
+        if (failure != null && pending.remove(id) != null) {
+            // The reader stopped while the request was registered
+            f.completeExceptionally(failure);
+            return f;
+        }
+        try {
+            synchronized (out) {
+                out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 5 || length > NioConnectorServer.MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                ByteBuffer response = ByteBuffer.wrap(frame);
+                CompletableFuture<Object> f = pending.remove(response.getInt());
+                if (f == null) {
+                    continue;
+                }
+                try {
+                    if (response.get() == NioConnectorServer.OK) {
+                        f.complete(NioCodec.read(response, true));
+                    } else {
+                        f.completeExceptionally(rebuild(NioCodec.readString(response), NioCodec.readString(response)));
+                    }
+                } catch (IOException e) {
+                    f.completeExceptionally(e);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            if (failure == null) {
+                failure = new IOException("Connection closed");
+            }
+            pending.values().forEach(f -> f.completeExceptionally(failure));
+            pending.clear();
+        }
+    }
+
+    private static Exception rebuild(String className, String message) {
+        switch (className) {
+        case "javax.management.InstanceNotFoundException":
+            return new InstanceNotFoundException(message);
+        case "javax.management.AttributeNotFoundException":
+            return new AttributeNotFoundException(message);
+        case "javax.management.InvalidAttributeValueException":
+            return new InvalidAttributeValueException(message);
+        case "javax.management.MBeanException":
+            return new MBeanException(new Exception(message), message);
+        case "javax.management.ReflectionException":
+            return new ReflectionException(new Exception(message), message);
+        case "javax.management.RuntimeOperationsException":
+            return new RuntimeOperationsException(new RuntimeException(message), message);
+        case "java.lang.SecurityException":
+            return new SecurityException(message);
+        case "java.lang.IllegalArgumentException":
+            return new IllegalArgumentException(message);
+        case "java.util.concurrent.RejectedExecutionException":
+            return new IOException("Agent overloaded: " + message);
+        default:
+            return new IOException(className + ": " + message);
+        }
+    }
+
+    /**
+     * Wait for a response, throwing the remote exception.
+     */
+    private static <T> T get(CompletableFuture<T> f) throws IOException, JMException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the agent");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof JMException) {
+                throw (JMException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    public CompletableFuture<Object> getAttributeAsync(ObjectName name, String attribute) {
+        return send(NioConnectorServer.GET_ATTRIBUTE, o -> {
+            NioCodec.write(o, name);
+            o.writeString(attribute);
+        });
+    }
+
+    public CompletableFuture<AttributeList> getAttributesAsync(ObjectName name, String[] attributes) {
+        return send(NioConnectorServer.GET_ATTRIBUTES, o -> {
+            NioCodec.write(o, name);
+            NioCodec.write(o, attributes);
+        }).thenApply(AttributeList.class::cast);
+    }
+
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Set<ObjectName>> queryNamesAsync(ObjectName pattern) {
+        return send(NioConnectorServer.QUERY_NAMES, o -> NioCodec.write(o, pattern)).thenApply(s -> (Set<ObjectName>) s);
+    }
+
+    public CompletableFuture<Object> invokeAsync(ObjectName name, String operation, Object[] params, String[] signature) {
+        return send(NioConnectorServer.INVOKE, o -> {
+            NioCodec.write(o, name);
+            o.writeString(operation);
+            NioCodec.write(o, params);
+            NioCodec.write(o, signature);
+        });
+    }
+
+    public Object getAttribute(ObjectName name, String attribute) throws IOException, JMException {
+        return get(getAttributeAsync(name, attribute));
+    }
+
+    public AttributeList getAttributes(ObjectName name, String[] attributes) throws IOException, JMException {
+        return get(getAttributesAsync(name, attributes));
+    }
+
+    public void setAttribute(ObjectName name, String attribute, Object value) throws IOException, JMException {
+        get(send(NioConnectorServer.SET_ATTRIBUTE, o -> {
+            NioCodec.write(o, name);
+            o.writeString(attribute);
+            NioCodec.write(o, value);
+        }));
+    }
+
+    public Object invoke(ObjectName name, String operation, Object[] params, String[] signature) throws IOException, JMException {
+        return get(invokeAsync(name, operation, params, signature));
+    }
+
+    public Set<ObjectName> queryNames(ObjectName pattern) throws IOException, JMException {
+        return get(queryNamesAsync(pattern));
+    }
+
+    public boolean isRegistered(ObjectName name) throws IOException, JMException {
+        return (Boolean) get(send(NioConnectorServer.IS_REGISTERED, o -> NioCodec.write(o, name)));
+    }
+
+    public int getMBeanCount() throws IOException, JMException {
+        return (Integer) get(send(NioConnectorServer.GET_MBEAN_COUNT, o -> { }));
+    }
+
+    public String[] getDomains() throws IOException, JMException {
+        return (String[]) get(send(NioConnectorServer.GET_DOMAINS, o -> { }));
+    }
+
+    /**
+     * Close the connection, the requests still waiting fail.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
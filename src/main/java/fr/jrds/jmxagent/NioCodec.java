@@ -0,0 +1,595 @@
+package fr.jrds.jmxagent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * The binary encoding of the values exchanged by the <code>nio</code> protocol. Each value starts with a tag byte.
+ * Integers and lengths are variable length, strings are UTF-8. Open types are sent with their values, without the
+ * descriptions, that are replaced by the names. Other serializable values use the Java serialization, but it's only
+ * decoded by the client, the server never deserializes anything.
+ * <p>
+ * The decoding never trusts the lengths read: the containers grow with the elements actually read, and the values
+ * can't be nested deeper than {@link #MAX_DEPTH}.
+ */
+final class NioCodec {
+
+    static final byte NULL = 0;
+    static final byte TRUE = 1;
+    static final byte FALSE = 2;
+    static final byte BYTE = 3;
+    static final byte SHORT = 4;
+    static final byte INT = 5;
+    static final byte LONG = 6;
+    static final byte FLOAT = 7;
+    static final byte DOUBLE = 8;
+    static final byte CHAR = 9;
+    static final byte STRING = 10;
+    static final byte OBJECT_NAME = 11;
+    static final byte PRIMITIVE_ARRAY = 12;
+    static final byte ARRAY = 13;
+    static final byte LIST = 14;
+    static final byte SET = 15;
+    static final byte MAP = 16;
+    static final byte ATTRIBUTE_LIST = 17;
+    static final byte COMPOSITE = 18;
+    static final byte TABULAR = 19;
+    static final byte SERIALIZED = 20;
+
+    static final int MAX_DEPTH = 32;
+    // The initial capacity of decoded arrays, they grow as elements are read
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final byte SIMPLE_TYPE = 0;
+    private static final byte ARRAY_TYPE = 1;
+    private static final byte COMPOSITE_TYPE = 2;
+    private static final byte TABULAR_TYPE = 3;
+
+    private static final List<SimpleType<?>> SIMPLE_TYPES = Arrays.asList(
+            SimpleType.VOID, SimpleType.BOOLEAN, SimpleType.CHARACTER, SimpleType.BYTE, SimpleType.SHORT,
+            SimpleType.INTEGER, SimpleType.LONG, SimpleType.FLOAT, SimpleType.DOUBLE, SimpleType.STRING,
+            SimpleType.BIGDECIMAL, SimpleType.BIGINTEGER, SimpleType.DATE, SimpleType.OBJECTNAME);
+
+    private static final List<Class<?>> PRIMITIVES = Arrays.asList(
+            boolean.class, byte.class, short.class, int.class, long.class, float.class, double.class, char.class);
+
+    // The component types of the arrays that can be rebuilt, others are decoded as Object[]
+    private static final Map<String, Class<?>> COMPONENTS = Arrays.<Class<?>>asList(
+            Object.class, String.class, ObjectName.class, CompositeData.class, TabularData.class, Number.class,
+            Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            BigDecimal.class, BigInteger.class, Date.class)
+            .stream().collect(Collectors.toMap(Class::getName, Function.identity()));
+
+    /**
+     * A growable buffer, used to build frames.
+     */
+    static final class Output {
+        private byte[] buffer = new byte[256];
+        private int size = 0;
+
+        private void ensure(int more) {
+            if (size + more > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + more));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buffer, size, b.length);
+            size += b.length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buffer[size++] = (byte) (v >>> 24);
+            buffer[size++] = (byte) (v >>> 16);
+            buffer[size++] = (byte) (v >>> 8);
+            buffer[size++] = (byte) v;
+        }
+
+        void writeFixedLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        /**
+         * Write an unsigned variable length integer, 7 bits by byte.
+         */
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buffer[size++] = (byte) v;
+        }
+
+        void writeSigned(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeString(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(b.length);
+            writeBytes(b);
+        }
+
+        /**
+         * Reserve the frame length, to be set by {@link #toFrame()}.
+         */
+        Output startFrame() {
+            writeInt(0);
+            return this;
+        }
+
+        ByteBuffer toFrame() {
+            int length = size - 4;
+            buffer[0] = (byte) (length >>> 24);
+            buffer[1] = (byte) (length >>> 16);
+            buffer[2] = (byte) (length >>> 8);
+            buffer[3] = (byte) length;
+            return ByteBuffer.wrap(buffer, 0, size);
+        }
+    }
+
+    private NioCodec() {
+    }
+
+    static long readVarLong(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    static long readSigned(ByteBuffer in) throws IOException {
+        long v = readVarLong(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Read a length, checked against the remaining bytes, each element using at least one byte.
+     */
+    static int readLength(ByteBuffer in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid length " + length);
+        }
+        return (int) length;
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        int length = readLength(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static void write(Output out, Object value) {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeSigned((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeSigned((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeFixedLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof ObjectName) {
+            out.writeByte(OBJECT_NAME);
+            out.writeString(((ObjectName) value).getCanonicalName());
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeSigned((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeVarLong((Character) value);
+        } else if (value instanceof CompositeData) {
+            CompositeData cd = (CompositeData) value;
+            out.writeByte(COMPOSITE);
+            writeType(out, cd.getCompositeType());
+            writeValues(out, cd);
+        } else if (value instanceof TabularData) {
+            TabularData td = (TabularData) value;
+            out.writeByte(TABULAR);
+            writeType(out, td.getTabularType());
+            out.writeVarLong(td.size());
+            for (Object row: td.values()) {
+                writeValues(out, (CompositeData) row);
+            }
+        } else if (value.getClass().isArray()) {
+            writeArray(out, value);
+        } else if (value instanceof AttributeList) {
+            List<Attribute> attributes = ((AttributeList) value).asList();
+            out.writeByte(ATTRIBUTE_LIST);
+            out.writeVarLong(attributes.size());
+            for (Attribute a: attributes) {
+                out.writeString(a.getName());
+                write(out, a.getValue());
+            }
+        } else if (value instanceof List || value instanceof Set) {
+            Collection<?> c = (Collection<?>) value;
+            out.writeByte(value instanceof List ? LIST : SET);
+            out.writeVarLong(c.size());
+            for (Object o: c) {
+                write(out, o);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeVarLong(m.size());
+            for (Map.Entry<?, ?> e: m.entrySet()) {
+                write(out, e.getKey());
+                write(out, e.getValue());
+            }
+        } else if (value instanceof Serializable) {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(value);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unserializable value: " + e.getMessage(), e);
+            }
+            out.writeVarLong(bos.size());
+            out.writeBytes(bos.toByteArray());
+        } else {
+            out.writeByte(STRING);
+            out.writeString(value.toString());
+        }
+    }
+
+    private static void writeValues(Output out, CompositeData cd) {
+        for (String key: cd.getCompositeType().keySet()) {
+            write(out, cd.get(key));
+        }
+    }
+
+    private static void writeArray(Output out, Object array) {
+        Class<?> component = array.getClass().getComponentType();
+        int length = Array.getLength(array);
+        int primitive = PRIMITIVES.indexOf(component);
+        if (primitive >= 0) {
+            out.writeByte(PRIMITIVE_ARRAY);
+            out.writeByte(primitive);
+            out.writeVarLong(length);
+            for (int i = 0; i < length; i++) {
+                switch (primitive) {
+                case 0:
+                    out.writeByte(Array.getBoolean(array, i) ? 1 : 0);
+                    break;
+                case 1:
+                    out.writeByte(Array.getByte(array, i));
+                    break;
+                case 5:
+                    out.writeInt(Float.floatToRawIntBits(Array.getFloat(array, i)));
+                    break;
+                case 6:
+                    out.writeFixedLong(Double.doubleToRawLongBits(Array.getDouble(array, i)));
+                    break;
+                case 7:
+                    out.writeVarLong(Array.getChar(array, i));
+                    break;
+                default:
+                    out.writeSigned(Array.getLong(array, i));
+                }
+            }
+        } else {
+            out.writeByte(ARRAY);
+            out.writeString(COMPONENTS.containsKey(component.getName()) ? component.getName() : Object.class.getName());
+            out.writeVarLong(length);
+            for (Object o: (Object[]) array) {
+                write(out, o);
+            }
+        }
+    }
+
+    private static void writeType(Output out, OpenType<?> type) {
+        if (type instanceof SimpleType) {
+            out.writeByte(SIMPLE_TYPE);
+            out.writeByte(SIMPLE_TYPES.indexOf(type));
+        } else if (type instanceof ArrayType) {
+            ArrayType<?> at = (ArrayType<?>) type;
+            out.writeByte(ARRAY_TYPE);
+            out.writeVarLong(at.getDimension());
+            out.writeByte(at.isPrimitiveArray() ? 1 : 0);
+            writeType(out, at.getElementOpenType());
+        } else if (type instanceof CompositeType) {
+            CompositeType ct = (CompositeType) type;
+            out.writeByte(COMPOSITE_TYPE);
+            out.writeString(ct.getTypeName());
+            out.writeVarLong(ct.keySet().size());
+            for (String key: ct.keySet()) {
+                out.writeString(key);
+                writeType(out, ct.getType(key));
+            }
+        } else if (type instanceof TabularType) {
+            TabularType tt = (TabularType) type;
+            out.writeByte(TABULAR_TYPE);
+            out.writeString(tt.getTypeName());
+            writeType(out, tt.getRowType());
+            out.writeVarLong(tt.getIndexNames().size());
+            for (String index: tt.getIndexNames()) {
+                out.writeString(index);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported open type " + type);
+        }
+    }
+
+    /**
+     * Decode a value.
+     * @param in the buffer holding the value
+     * @param allowSerialized if Java serialized values can be decoded
+     * @return the value
+     * @throws IOException if the value is invalid
+     */
+    static Object read(ByteBuffer in, boolean allowSerialized) throws IOException {
+        return read(in, allowSerialized, 0);
+    }
+
+    private static Object read(ByteBuffer in, boolean allowSerialized, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Value nested too deeply");
+        }
+        try {
+            byte tag = in.get();
+            switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return in.get();
+            case SHORT:
+                return (short) readSigned(in);
+            case INT:
+                return (int) readSigned(in);
+            case LONG:
+                return readSigned(in);
+            case FLOAT:
+                return Float.intBitsToFloat(in.getInt());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case CHAR:
+                return (char) readVarLong(in);
+            case STRING:
+                return readString(in);
+            case OBJECT_NAME:
+                return new ObjectName(readString(in));
+            case PRIMITIVE_ARRAY:
+                return readPrimitiveArray(in);
+            case ARRAY: {
+                Class<?> component = COMPONENTS.getOrDefault(readString(in), Object.class);
+                int length = readLength(in);
+                List<Object> elements = new ArrayList<>(Math.min(length, INITIAL_CAPACITY));
+                for (int i = 0; i < length; i++) {
+                    elements.add(read(in, allowSerialized, depth + 1));
+                }
+                return elements.toArray((Object[]) Array.newInstance(component, elements.size()));
+            }
+            case LIST:
+            case SET: {
+                int length = readLength(in);
+                Collection<Object> c = tag == LIST ? new ArrayList<>() : new HashSet<>();
+                for (int i = 0; i < length; i++) {
+                    c.add(read(in, allowSerialized, depth + 1));
+                }
+                return c;
+            }
+            case MAP: {
+                int length = readLength(in);
+                Map<Object, Object> m = new HashMap<>();
+                for (int i = 0; i < length; i++) {
+                    m.put(read(in, allowSerialized, depth + 1), read(in, allowSerialized, depth + 1));
+                }
+                return m;
+            }
+            case ATTRIBUTE_LIST: {
+                int length = readLength(in);
+                AttributeList attributes = new AttributeList();
+                for (int i = 0; i < length; i++) {
+                    attributes.add(new Attribute(readString(in), read(in, allowSerialized, depth + 1)));
+                }
+                return attributes;
+            }
+            case COMPOSITE:
+                return readValues(in, (CompositeType) readType(in, depth + 1), allowSerialized, depth + 1);
+            case TABULAR: {
+                TabularType type = (TabularType) readType(in, depth + 1);
+                TabularDataSupport td = new TabularDataSupport(type);
+                int length = readLength(in);
+                for (int i = 0; i < length; i++) {
+                    td.put(readValues(in, type.getRowType(), allowSerialized, depth + 1));
+                }
+                return td;
+            }
+            case SERIALIZED: {
+                if (! allowSerialized) {
+                    throw new IOException("Serialized values are not accepted");
+                }
+                int length = readLength(in);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), length))) {
+                    in.position(in.position() + length);
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown class " + e.getMessage(), e);
+                }
+            }
+            default:
+                throw new IOException("Unknown tag " + tag);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated value", e);
+        } catch (MalformedObjectNameException | OpenDataException | IllegalArgumentException | ClassCastException e) {
+            throw new IOException("Invalid value: " + e.getMessage(), e);
+        }
+    }
+
+    private static Object readPrimitiveArray(ByteBuffer in) throws IOException {
+        int primitive = in.get();
+        if (primitive < 0 || primitive >= PRIMITIVES.size()) {
+            throw new IOException("Unknown primitive type " + primitive);
+        }
+        int length = readLength(in);
+        Object array = Array.newInstance(PRIMITIVES.get(primitive), Math.min(length, INITIAL_CAPACITY));
+        for (int i = 0; i < length; i++) {
+            if (i == Array.getLength(array)) {
+                Object bigger = Array.newInstance(PRIMITIVES.get(primitive), Math.min(length, i * 2));
+                System.arraycopy(array, 0, bigger, 0, i);
+                array = bigger;
+            }
+            switch (primitive) {
+            case 0:
+                Array.setBoolean(array, i, in.get() != 0);
+                break;
+            case 1:
+                Array.setByte(array, i, in.get());
+                break;
+            case 2:
+                Array.setShort(array, i, (short) readSigned(in));
+                break;
+            case 3:
+                Array.setInt(array, i, (int) readSigned(in));
+                break;
+            case 4:
+                Array.setLong(array, i, readSigned(in));
+                break;
+            case 5:
+                Array.setFloat(array, i, Float.intBitsToFloat(in.getInt()));
+                break;
+            case 6:
+                Array.setDouble(array, i, Double.longBitsToDouble(in.getLong()));
+                break;
+            default:
+                Array.setChar(array, i, (char) readVarLong(in));
+            }
+        }
+        return array;
+    }
+
+    private static CompositeData readValues(ByteBuffer in, CompositeType type, boolean allowSerialized, int depth) throws IOException, OpenDataException {
+        Set<String> keys = type.keySet();
+        String[] names = keys.toArray(new String[keys.size()]);
+        Object[] values = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = read(in, allowSerialized, depth);
+        }
+        return new CompositeDataSupport(type, names, values);
+    }
+
+    private static OpenType<?> readType(ByteBuffer in, int depth) throws IOException, OpenDataException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Type nested too deeply");
+        }
+        byte kind = in.get();
+        switch (kind) {
+        case SIMPLE_TYPE: {
+            int index = in.get();
+            if (index < 0 || index >= SIMPLE_TYPES.size()) {
+                throw new IOException("Unknown simple type " + index);
+            }
+            return SIMPLE_TYPES.get(index);
+        }
+        case ARRAY_TYPE: {
+            long dimension = readVarLong(in);
+            if (dimension < 1 || dimension > 255) {
+                throw new IOException("Invalid array dimension " + dimension);
+            }
+            boolean primitive = in.get() != 0;
+            OpenType<?> element = readType(in, depth + 1);
+            if (primitive) {
+                ArrayType<?> base = new ArrayType<>((SimpleType<?>) element, true);
+                return dimension > 1 ? new ArrayType<>((int) dimension - 1, base) : base;
+            } else {
+                return new ArrayType<>((int) dimension, element);
+            }
+        }
+        case COMPOSITE_TYPE: {
+            String name = readString(in);
+            int length = readLength(in);
+            List<String> items = new ArrayList<>();
+            List<OpenType<?>> types = new ArrayList<>();
+            for (int i = 0; i < length; i++) {
+                items.add(readString(in));
+                types.add(readType(in, depth + 1));
+            }
+            String[] itemNames = items.toArray(new String[items.size()]);
+            return new CompositeType(name, name, itemNames, itemNames, types.toArray(new OpenType<?>[types.size()]));
+        }
+        case TABULAR_TYPE: {
+            String name = readString(in);
+            CompositeType row = (CompositeType) readType(in, depth + 1);
+            int length = readLength(in);
+            List<String> indexes = new ArrayList<>();
+            for (int i = 0; i < length; i++) {
+                indexes.add(readString(in));
+            }
+            return new TabularType(name, name, row, indexes.toArray(new String[indexes.size()]));
+        }
+        default:
+            throw new IOException("Unknown open type " + kind);
+        }
+    }
+
+}
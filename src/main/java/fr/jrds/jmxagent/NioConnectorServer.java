@@ -0,0 +1,464 @@
+package fr.jrds.jmxagent;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.Principal;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+import javax.management.remote.JMXAuthenticator;
+import javax.management.remote.JMXConnectionNotification;
+import javax.security.auth.Subject;
+
+/**
+ * A lightweight connector for the <code>nio</code> protocol. A single thread accepts the connections, reads the
+ * requests and writes the responses; the requests run in the worker pool. A client can send many requests without
+ * waiting for the responses, that are sent as they are ready, in any order.
+ * <p>
+ * Each frame is a 4 bytes big endian length, followed by the payload. A request is the request id (4 bytes), the
+ * operation (1 byte) and its arguments, encoded with {@link NioCodec}. A response is the request id, a status and
+ * either the result or the class name and the message of the exception. The first request must be
+ * {@link #HELLO}, with the credentials, checked with the same authenticator as the other protocols. The following
+ * requests run with the authenticated subject, so the access rules are enforced the same way.
+ * <p>
+ * When a connection has {@link #MAX_IN_FLIGHT} requests running or with responses not yet written, it's not read any
+ * more until some responses are sent, so a client that doesn't read its responses can't fill the heap.
+ * <p>
+ * Before the authentication, a frame can't be bigger than {@link #MAX_HELLO_FRAME}, and a connection that didn't send
+ * its credentials during the handshake timeout is closed, so unauthenticated clients can't hold much memory.
+ */
+class NioConnectorServer extends NotificationBroadcasterSupport implements Runnable {
+
+    static final int PROTOCOL_VERSION = 1;
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+    static final int MAX_HELLO_FRAME = 64 * 1024;
+    static final int MAX_IN_FLIGHT = 64;
+
+    static final byte HELLO = 0;
+    static final byte GET_ATTRIBUTE = 1;
+    static final byte GET_ATTRIBUTES = 2;
+    static final byte SET_ATTRIBUTE = 3;
+    static final byte INVOKE = 4;
+    static final byte QUERY_NAMES = 5;
+    static final byte IS_REGISTERED = 6;
+    static final byte GET_MBEAN_COUNT = 7;
+    static final byte GET_DOMAINS = 8;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String address;
+        private final AgentMonitor.Client client;
+        private final long handshakeDeadline;
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private ByteBuffer in = ByteBuffer.allocate(8192);
+        private volatile Subject subject = null;
+        private volatile String id = null;
+        private volatile boolean closing = false;
+
+        private Connection(SocketChannel channel, SelectionKey key) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            InetAddress remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            this.address = remote.getHostAddress();
+            this.client = monitor != null ? monitor.accepted(remote) : null;
+            this.handshakeDeadline = System.nanoTime() + handshakeTimeout;
+        }
+    }
+
+    private final MBeanServer mbs;
+    private final JMXAuthenticator authenticator;
+    private final Executor workers;
+    private final AgentMonitor monitor;
+    private final int maxConnections;
+    private final long handshakeTimeout;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    // The connections not yet authenticated, in accept order, only used by the selector thread
+    private final Queue<Connection> handshakes = new ArrayDeque<>();
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private int connections = 0;
+    private volatile boolean running = true;
+
+    /**
+     * @param address the listening address
+     * @param mbs the MBean server used by the requests
+     * @param authenticator checks the credentials of the clients, null if any client is accepted
+     * @param workers runs the requests
+     * @param monitor counts the connections and their bytes, can be null
+     * @param maxConnections the maximum connections, 0 if unlimited
+     * @param handshakeTimeout the time in ms a client has to send its credentials, 0 if unlimited
+     * @throws IOException if the address can't be bound
+     */
+    NioConnectorServer(InetSocketAddress address, MBeanServer mbs, JMXAuthenticator authenticator, Executor workers, AgentMonitor monitor, int maxConnections, long handshakeTimeout) throws IOException {
+        this.mbs = mbs;
+        this.authenticator = authenticator;
+        this.workers = workers;
+        this.monitor = monitor;
+        this.maxConnections = maxConnections;
+        this.handshakeTimeout = TimeUnit.MILLISECONDS.toNanos(handshakeTimeout);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this, "JmxAgent-nio");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(expireHandshakes());
+                Connection c;
+                while ((c = ready.poll()) != null) {
+                    resume(c);
+                }
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (! key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                resume(connection);
+                            }
+                        } catch (IOException e) {
+                            close(connection, true);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector is broken, nothing more can be done
+        } finally {
+            for (SelectionKey key: new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof Connection) {
+                    close((Connection) key.attachment(), false);
+                }
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Close the connections whose handshake timed out, unless their credentials are being checked.
+     * @return the time in ms until the next handshake timeout, 0 if none is pending
+     */
+    private long expireHandshakes() {
+        if (handshakeTimeout <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (Iterator<Connection> i = handshakes.iterator(); i.hasNext();) {
+            Connection c = i.next();
+            if (c.id != null || ! c.channel.isOpen()) {
+                i.remove();
+            } else if (c.inFlight.get() > 0) {
+                // Checked again when the response is sent
+                continue;
+            } else if (now - c.handshakeDeadline >= 0) {
+                i.remove();
+                close(c, false);
+            } else {
+                next = Math.min(next, c.handshakeDeadline - now);
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            if (maxConnections > 0 && connections >= maxConnections) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            Connection c = new Connection(channel, key);
+            key.attach(c);
+            if (handshakeTimeout > 0) {
+                handshakes.add(c);
+            }
+            connections++;
+        }
+    }
+
+    /**
+     * Called from the selector thread once responses are queued or written.
+     */
+    private void resume(Connection c) {
+        if (! c.key.isValid()) {
+            return;
+        }
+        try {
+            if (! c.responses.isEmpty()) {
+                write(c);
+            }
+            if (c.key.isValid() && ! c.closing && c.inFlight.get() < MAX_IN_FLIGHT && (c.key.interestOps() & SelectionKey.OP_READ) == 0) {
+                c.key.interestOps(c.key.interestOps() | SelectionKey.OP_READ);
+                // Requests might be buffered already
+                parse(c);
+            }
+        } catch (IOException e) {
+            close(c, true);
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        int n = c.channel.read(c.in);
+        if (n < 0) {
+            close(c, false);
+            return;
+        } else if (c.client != null && n > 0) {
+            c.client.read(n);
+        }
+        parse(c);
+    }
+
+    /**
+     * Dispatch the complete frames read.
+     */
+    private void parse(Connection c) throws IOException {
+        ByteBuffer in = c.in;
+        in.flip();
+        try {
+            while (in.remaining() >= 4) {
+                // Nothing else is read while the hello is checked
+                if (c.id == null && c.inFlight.get() > 0) {
+                    c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+                int length = in.getInt(in.position());
+                if (length < 5 || length > (c.id == null ? MAX_HELLO_FRAME : MAX_FRAME)) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (in.remaining() < length + 4) {
+                    if (in.capacity() < length + 4) {
+                        ByteBuffer bigger = ByteBuffer.allocate(length + 4);
+                        bigger.put(in);
+                        bigger.flip();
+                        c.in = in = bigger;
+                    }
+                    break;
+                }
+                // Stop reading while the connection is busy
+                if (c.closing || c.inFlight.get() >= MAX_IN_FLIGHT) {
+                    c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+                in.getInt();
+                byte[] frame = new byte[length];
+                in.get(frame);
+                dispatch(c, ByteBuffer.wrap(frame));
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    private void dispatch(Connection c, ByteBuffer request) {
+        int requestId = request.getInt();
+        byte op = request.get();
+        c.inFlight.incrementAndGet();
+        try {
+            workers.execute(() -> respond(c, execute(c, requestId, op, request)));
+        } catch (RejectedExecutionException e) {
+            respond(c, error(requestId, e));
+        }
+    }
+
+    private void respond(Connection c, ByteBuffer response) {
+        // Still in flight until it's written
+        c.responses.add(response);
+        ready.add(c);
+        selector.wakeup();
+    }
+
+    private void write(Connection c) throws IOException {
+        ByteBuffer response;
+        while ((response = c.responses.peek()) != null) {
+            int n = c.channel.write(response);
+            if (c.client != null && n > 0) {
+                c.client.written(n);
+            }
+            if (response.hasRemaining()) {
+                c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            c.responses.poll();
+            c.inFlight.decrementAndGet();
+        }
+        c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (c.closing && c.inFlight.get() == 0) {
+            close(c, false);
+        }
+    }
+
+    private void close(Connection c, boolean failed) {
+        if (! c.channel.isOpen()) {
+            return;
+        }
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+        }
+        connections--;
+        if (c.client != null) {
+            c.client.closed();
+        }
+        if (c.id != null) {
+            notify(failed ? JMXConnectionNotification.FAILED : JMXConnectionNotification.CLOSED, c.id);
+        }
+    }
+
+    private void notify(String type, String id) {
+        sendNotification(new JMXConnectionNotification(type, this, id, sequence.incrementAndGet(), null, null));
+    }
+
+    /**
+     * Run a request, in a worker thread.
+     */
+    private ByteBuffer execute(Connection c, int requestId, byte op, ByteBuffer args) {
+        try {
+            Object result;
+            if (op == HELLO) {
+                result = hello(c, args);
+            } else if (c.id == null) {
+                throw new SecurityException("Not authenticated");
+            } else {
+                result = Subject.doAsPrivileged(c.subject, (PrivilegedExceptionAction<Object>) () -> call(op, args), null);
+            }
+            NioCodec.Output out = new NioCodec.Output().startFrame();
+            out.writeInt(requestId);
+            out.writeByte(OK);
+            NioCodec.write(out, result);
+            return out.toFrame();
+        } catch (PrivilegedActionException e) {
+            return error(requestId, e.getException());
+        } catch (Exception | Error e) {
+            return error(requestId, e);
+        }
+    }
+
+    private ByteBuffer error(int requestId, Throwable e) {
+        NioCodec.Output out = new NioCodec.Output().startFrame();
+        out.writeInt(requestId);
+        out.writeByte(ERROR);
+        out.writeString(e.getClass().getName());
+        out.writeString(String.valueOf(e.getMessage()));
+        return out.toFrame();
+    }
+
+    private String hello(Connection c, ByteBuffer args) throws IOException {
+        if (c.id != null) {
+            throw new IllegalStateException("Already authenticated");
+        }
+        try {
+            int version = (int) NioCodec.readVarLong(args);
+            if (version != PROTOCOL_VERSION) {
+                throw new IOException("Unsupported protocol version " + version);
+            }
+            Object credentials = NioCodec.read(args, false);
+            Subject subject = authenticator != null ? authenticator.authenticate(credentials) : null;
+            String user = subject != null ? subject.getPrincipals().stream().map(Principal::getName).findFirst().orElse("") : "";
+            // The same form as the other connectors' ids
+            String id = "nio://" + c.address + " " + user + " " + connectionIds.incrementAndGet();
+            c.subject = ConnectionPrincipal.connected(id, subject);
+            c.id = id;
+            notify(JMXConnectionNotification.OPENED, id);
+            return id;
+        } catch (IOException | RuntimeException e) {
+            // The response is sent, then the connection is closed
+            c.closing = true;
+            throw e;
+        }
+    }
+
+    private Object call(byte op, ByteBuffer args) throws Exception {
+        switch (op) {
+        case GET_ATTRIBUTE:
+            return mbs.getAttribute((ObjectName) NioCodec.read(args, false), NioCodec.readString(args));
+        case GET_ATTRIBUTES:
+            return mbs.getAttributes((ObjectName) NioCodec.read(args, false), (String[]) NioCodec.read(args, false));
+        case SET_ATTRIBUTE: {
+            ObjectName name = (ObjectName) NioCodec.read(args, false);
+            String attribute = NioCodec.readString(args);
+            mbs.setAttribute(name, new Attribute(attribute, NioCodec.read(args, false)));
+            return null;
+        }
+        case INVOKE:
+            return mbs.invoke((ObjectName) NioCodec.read(args, false), NioCodec.readString(args),
+                              (Object[]) NioCodec.read(args, false), (String[]) NioCodec.read(args, false));
+        case QUERY_NAMES:
+            return mbs.queryNames((ObjectName) NioCodec.read(args, false), null);
+        case IS_REGISTERED:
+            return mbs.isRegistered((ObjectName) NioCodec.read(args, false));
+        case GET_MBEAN_COUNT:
+            return mbs.getMBeanCount();
+        case GET_DOMAINS:
+            return mbs.getDomains();
+        default:
+            throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+}
@@ -0,0 +1,8 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+public interface OperationsMXBean {
+    Map<String, LatencyStatistics> getByOperation();
+    Map<String, LatencyStatistics> getByDomain();
+}
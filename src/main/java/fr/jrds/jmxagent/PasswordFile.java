@@ -0,0 +1,94 @@
+package fr.jrds.jmxagent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.remote.JMXAuthenticator;
+import javax.management.remote.JMXPrincipal;
+import javax.security.auth.Subject;
+
+/**
+ * Checks the credentials against a password file, in the format of <code>jmxremote.password</code>. The file is
+ * parsed once, then checked for changes at most once per second and parsed again if needed.
+ */
+class PasswordFile implements JMXAuthenticator {
+
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The passwords currently used.
+     */
+    private static final class Passwords {
+        private final Properties passwords;
+        private final FileTime modified;
+        private Passwords(Properties passwords, FileTime modified) {
+            this.passwords = passwords;
+            this.modified = modified;
+        }
+    }
+
+    private final Path file;
+    private volatile Passwords current = null;
+    private volatile long nextCheck;
+
+    PasswordFile(Path file) {
+        this.file = file;
+        this.nextCheck = System.nanoTime();
+    }
+
+    private Passwords passwords() throws IOException {
+        if (current == null || System.nanoTime() - nextCheck > 0) {
+            checkFile();
+        }
+        return current;
+    }
+
+    private synchronized void checkFile() throws IOException {
+        if (current != null && System.nanoTime() - nextCheck <= 0) {
+            // Another thread just checked it
+            return;
+        }
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            if (current == null || ! modified.equals(current.modified)) {
+                Properties passwords = new Properties();
+                try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    passwords.load(r);
+                }
+                current = new Passwords(passwords, modified);
+            }
+        } finally {
+            nextCheck = System.nanoTime() + CHECK_INTERVAL;
+        }
+    }
+
+    @Override
+    public Subject authenticate(Object credentials) {
+        if (! (credentials instanceof String[]) || ((String[]) credentials).length != 2
+                || ((String[]) credentials)[0] == null || ((String[]) credentials)[1] == null) {
+            throw new SecurityException("No valid credentials");
+        }
+        String[] loginPassword = (String[]) credentials;
+        String password;
+        try {
+            password = passwords().passwords.getProperty(loginPassword[0]);
+        } catch (IOException e) {
+            throw new SecurityException("Unusable password file", e);
+        }
+        if (password == null || ! MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), loginPassword[1].getBytes(StandardCharsets.UTF_8))) {
+            throw new SecurityException("Invalid user");
+        }
+        Principal p = new JMXPrincipal(loginPassword[0]);
+        return new Subject(true, Collections.singleton(p), Collections.emptySet(), Collections.emptySet());
+    }
+
+}
@@ -0,0 +1,42 @@
+package fr.jrds.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The usage of a heap memory pool around the garbage collections, in bytes.
+ */
+public class PoolStatistics {
+
+    private final long before;
+    private final long after;
+    private final long maxAfter;
+
+    @ConstructorProperties({"before", "after", "maxAfter"})
+    public PoolStatistics(long before, long after, long maxAfter) {
+        this.before = before;
+        this.after = after;
+        this.maxAfter = maxAfter;
+    }
+
+    /**
+     * @return the bytes used before the last collection
+     */
+    public long getBefore() {
+        return before;
+    }
+
+    /**
+     * @return the bytes used after the last collection
+     */
+    public long getAfter() {
+        return after;
+    }
+
+    /**
+     * @return the maximum of the bytes used after a collection
+     */
+    public long getMaxAfter() {
+        return maxAfter;
+    }
+
+}
@@ -0,0 +1,570 @@
+package fr.jrds.jmxagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.OperationsException;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.loading.ClassLoaderRepository;
+import javax.security.auth.Subject;
+
+import fr.jrds.jmxagent.AccessRules.Access;
+import fr.jrds.jmxagent.AccessRules.Role;
+
+/**
+ * An access controller using {@link AccessRules}. The rules are read from a file, that is checked for changes at most
+ * once per second and reloaded if needed, or from the agent's bundled rules. The decisions are cached for each
+ * subject, so once warm, a check is a single hash lookup. Calls without a subject are local and always allowed.
+ */
+@SuppressWarnings("deprecation")
+class RulesAccessController extends ForwardingMBeanServer implements AccessMXBean {
+
+    private static final String DENIED = "Access denied! Invalid access level for requested MBeanServer operation.";
+    private static final String BUNDLED = "jmxremote.access";
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_DECISIONS = 4096;
+
+    private static final class Key {
+        private final Access access;
+        private final ObjectName name;
+        private final String member;
+        private final int hash;
+        private Key(Access access, ObjectName name, String member) {
+            this.access = access;
+            this.name = name;
+            this.member = member;
+            this.hash = Objects.hash(access, name, member);
+        }
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return access == other.access && name.equals(other.name) && Objects.equals(member, other.member);
+        }
+    }
+
+    /**
+     * The role of a subject, and the decisions already taken for it.
+     */
+    private static final class Decisions {
+        private final Role role;
+        private final Map<Key, Boolean> cache = new ConcurrentHashMap<>();
+        private Decisions(Role role) {
+            this.role = role;
+        }
+        private boolean isAllowed(Access access, ObjectName name, String member) {
+            Key key = new Key(access, name, member);
+            Boolean allowed = cache.get(key);
+            if (allowed == null) {
+                if (cache.size() >= MAX_DECISIONS) {
+                    cache.clear();
+                }
+                allowed = role.isAllowed(access, name, member);
+                cache.put(key, allowed);
+            }
+            return allowed;
+        }
+    }
+
+    /**
+     * The rules currently used, the decisions cache is dropped with them.
+     */
+    private static final class Rules {
+        private final AccessRules rules;
+        private final FileTime modified;
+        private final Map<Subject, Decisions> subjects = Collections.synchronizedMap(new WeakHashMap<>());
+        private Rules(AccessRules rules, FileTime modified) {
+            this.rules = rules;
+            this.modified = modified;
+        }
+    }
+
+    private final Path file;
+    private volatile Rules current;
+    private volatile long nextCheck;
+    private volatile String lastError = "";
+    private final LongAdder denied = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder reloadFailures = new LongAdder();
+
+    /**
+     * @param file the access file, or null for the agent's bundled rules
+     * @throws IOException if the rules can't be read
+     * @throws IllegalArgumentException if the rules are invalid
+     */
+    RulesAccessController(Path file) throws IOException {
+        this.file = file;
+        this.current = load();
+        this.nextCheck = System.nanoTime() + CHECK_INTERVAL;
+    }
+
+    private Rules load() throws IOException {
+        if (file == null) {
+            try (InputStream is = getClass().getClassLoader().getResourceAsStream(BUNDLED);
+                 Reader r = new InputStreamReader(Objects.requireNonNull(is, "Missing bundled access rules"), StandardCharsets.UTF_8)) {
+                return new Rules(AccessRules.parse(r), null);
+            }
+        } else {
+            FileTime modified = Files.getLastModifiedTime(file);
+            try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                return new Rules(AccessRules.parse(r), modified);
+            }
+        }
+    }
+
+    private Rules rules() {
+        if (file != null && System.nanoTime() - nextCheck > 0) {
+            checkFile();
+        }
+        return current;
+    }
+
+    private synchronized void checkFile() {
+        if (System.nanoTime() - nextCheck <= 0) {
+            // Another thread just checked it
+            return;
+        }
+        try {
+            if (! Files.getLastModifiedTime(file).equals(current.modified)) {
+                reload();
+            }
+        } catch (IOException e) {
+            reloadFailures.increment();
+            lastError = e.getMessage();
+        } finally {
+            nextCheck = System.nanoTime() + CHECK_INTERVAL;
+        }
+    }
+
+    /**
+     * @return the decisions for the current subject, or null if there is none
+     */
+    private Decisions decisions() {
+        Subject subject = Subject.getSubject(java.security.AccessController.getContext());
+        if (subject == null) {
+            return null;
+        }
+        Rules r = rules();
+        Decisions d = r.subjects.get(subject);
+        if (d == null) {
+            d = new Decisions(r.rules.resolve(subject));
+            r.subjects.put(subject, d);
+        }
+        return d;
+    }
+
+    private void check(boolean allowed) {
+        if (! allowed) {
+            denied.increment();
+            throw new SecurityException(DENIED);
+        }
+    }
+
+    private void checkRead(ObjectName name, String member) {
+        Decisions d = decisions();
+        if (d != null) {
+            check(name != null ? d.isAllowed(Access.READ, name, member) : d.role.canRead());
+        }
+    }
+
+    private void checkAccess(Access access, ObjectName name, String member) {
+        Decisions d = decisions();
+        if (d != null) {
+            check(d.isAllowed(access, name, member));
+        }
+    }
+
+    private void checkWrite() {
+        Decisions d = decisions();
+        if (d != null) {
+            check(d.role.canWrite());
+        }
+    }
+
+    private void checkCreate(String className) {
+        Decisions d = decisions();
+        if (d != null) {
+            check(d.role.canCreate(className));
+        }
+    }
+
+    /**
+     * Used by the agent's MBeans that return values they read themselves.
+     * @return true if the current subject can read the attribute
+     */
+    boolean isReadable(ObjectName name, String attribute) {
+        Decisions d = decisions();
+        return d == null || (d.isAllowed(Access.READ, name, null) && d.isAllowed(Access.READ, name, attribute));
+    }
+
+    private <T> Set<T> filter(Set<T> found, Function<T, ObjectName> getName) {
+        Decisions d = decisions();
+        if (d == null || d.role.readsAll()) {
+            return found;
+        }
+        check(d.role.canRead());
+        return found.stream().filter(i -> d.isAllowed(Access.READ, getName.apply(i), null)).collect(Collectors.toSet());
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+            NotCompliantMBeanException {
+        checkCreate(className);
+        return super.createMBean(className, name);
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+            NotCompliantMBeanException, InstanceNotFoundException {
+        checkCreate(className);
+        return super.createMBean(className, name, loaderName);
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+            NotCompliantMBeanException {
+        checkCreate(className);
+        return super.createMBean(className, name, params, signature);
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName, Object[] params,
+                                      String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+            NotCompliantMBeanException, InstanceNotFoundException {
+        checkCreate(className);
+        return super.createMBean(className, name, loaderName, params, signature);
+    }
+
+    @Override
+    public ObjectInstance registerMBean(Object object, ObjectName name)
+            throws InstanceAlreadyExistsException, MBeanRegistrationException, NotCompliantMBeanException {
+        checkCreate(object.getClass().getName());
+        return super.registerMBean(object, name);
+    }
+
+    @Override
+    public void unregisterMBean(ObjectName name) throws InstanceNotFoundException, MBeanRegistrationException {
+        Decisions d = decisions();
+        if (d != null) {
+            check(d.role.canUnregister());
+        }
+        super.unregisterMBean(name);
+    }
+
+    @Override
+    public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException {
+        checkRead(name, null);
+        return super.getObjectInstance(name);
+    }
+
+    @Override
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        return filter(super.queryMBeans(name, query), ObjectInstance::getObjectName);
+    }
+
+    @Override
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        return filter(super.queryNames(name, query), n -> n);
+    }
+
+    @Override
+    public boolean isRegistered(ObjectName name) {
+        checkRead(null, null);
+        return super.isRegistered(name);
+    }
+
+    @Override
+    public Integer getMBeanCount() {
+        checkRead(null, null);
+        return super.getMBeanCount();
+    }
+
+    @Override
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        checkRead(name, attribute);
+        return super.getAttribute(name, attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        Decisions d = decisions();
+        if (d == null) {
+            return super.getAttributes(name, attributes);
+        }
+        check(d.isAllowed(Access.READ, name, null));
+        if (attributes == null) {
+            // Refused by the MBeanServer, the same way as for a local call
+            return super.getAttributes(name, attributes);
+        }
+        // Like unreadable attributes, denied attributes are silently skipped
+        List<String> allowed = new ArrayList<>(attributes.length);
+        for (String a: attributes) {
+            if (d.isAllowed(Access.READ, name, a)) {
+                allowed.add(a);
+            }
+        }
+        return super.getAttributes(name, allowed.size() == attributes.length ? attributes : allowed.toArray(new String[allowed.size()]));
+    }
+
+    @Override
+    public void setAttribute(ObjectName name, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+            MBeanException, ReflectionException {
+        checkAccess(Access.WRITE, name, attribute.getName());
+        super.setAttribute(name, attribute);
+    }
+
+    @Override
+    public AttributeList setAttributes(ObjectName name, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        for (Attribute a: attributes.asList()) {
+            checkAccess(Access.WRITE, name, a.getName());
+        }
+        return super.setAttributes(name, attributes);
+    }
+
+    @Override
+    public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        checkAccess(Access.INVOKE, name, operationName);
+        return super.invoke(name, operationName, params, signature);
+    }
+
+    @Override
+    public String getDefaultDomain() {
+        checkRead(null, null);
+        return super.getDefaultDomain();
+    }
+
+    @Override
+    public String[] getDomains() {
+        checkRead(null, null);
+        return super.getDomains();
+    }
+
+    @Override
+    public void addNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter,
+                                        Object handback)
+            throws InstanceNotFoundException {
+        checkRead(name, null);
+        super.addNotificationListener(name, listener, filter, handback);
+    }
+
+    @Override
+    public void addNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter,
+                                        Object handback)
+            throws InstanceNotFoundException {
+        checkRead(name, null);
+        super.addNotificationListener(name, listener, filter, handback);
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, ObjectName listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        checkRead(name, null);
+        super.removeNotificationListener(name, listener);
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter,
+                                           Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        checkRead(name, null);
+        super.removeNotificationListener(name, listener, filter, handback);
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        checkRead(name, null);
+        super.removeNotificationListener(name, listener);
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener,
+                                           NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        checkRead(name, null);
+        super.removeNotificationListener(name, listener, filter, handback);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(ObjectName name)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        checkRead(name, null);
+        return super.getMBeanInfo(name);
+    }
+
+    @Override
+    public boolean isInstanceOf(ObjectName name, String className) throws InstanceNotFoundException {
+        checkRead(name, null);
+        return super.isInstanceOf(name, className);
+    }
+
+    @Override
+    public Object instantiate(String className) throws ReflectionException, MBeanException {
+        checkWrite();
+        return super.instantiate(className);
+    }
+
+    @Override
+    public Object instantiate(String className, ObjectName loaderName)
+            throws ReflectionException, MBeanException, InstanceNotFoundException {
+        checkWrite();
+        return super.instantiate(className, loaderName);
+    }
+
+    @Override
+    public Object instantiate(String className, Object[] params, String[] signature)
+            throws ReflectionException, MBeanException {
+        checkWrite();
+        return super.instantiate(className, params, signature);
+    }
+
+    @Override
+    public Object instantiate(String className, ObjectName loaderName, Object[] params, String[] signature)
+            throws ReflectionException, MBeanException, InstanceNotFoundException {
+        checkWrite();
+        return super.instantiate(className, loaderName, params, signature);
+    }
+
+    @Override
+    public ObjectInputStream deserialize(ObjectName name, byte[] data)
+            throws InstanceNotFoundException, OperationsException {
+        checkWrite();
+        return super.deserialize(name, data);
+    }
+
+    @Override
+    public ObjectInputStream deserialize(String className, byte[] data)
+            throws OperationsException, ReflectionException {
+        checkWrite();
+        return super.deserialize(className, data);
+    }
+
+    @Override
+    public ObjectInputStream deserialize(String className, ObjectName loaderName, byte[] data)
+            throws InstanceNotFoundException, OperationsException, ReflectionException {
+        checkWrite();
+        return super.deserialize(className, loaderName, data);
+    }
+
+    @Override
+    public ClassLoader getClassLoaderFor(ObjectName mbeanName) throws InstanceNotFoundException {
+        checkWrite();
+        return super.getClassLoaderFor(mbeanName);
+    }
+
+    @Override
+    public ClassLoader getClassLoader(ObjectName loaderName) throws InstanceNotFoundException {
+        checkWrite();
+        return super.getClassLoader(loaderName);
+    }
+
+    @Override
+    public ClassLoaderRepository getClassLoaderRepository() {
+        checkWrite();
+        return super.getClassLoaderRepository();
+    }
+
+    @Override
+    public String getSource() {
+        return file != null ? file.toString() : "bundled";
+    }
+
+    @Override
+    public int getRules() {
+        return current.rules.size();
+    }
+
+    @Override
+    public long getDenied() {
+        return denied.sum();
+    }
+
+    @Override
+    public int getCachedDecisions() {
+        Rules r = current;
+        synchronized (r.subjects) {
+            return r.subjects.values().stream().mapToInt(d -> d.cache.size()).sum();
+        }
+    }
+
+    @Override
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    @Override
+    public long getReloadFailures() {
+        return reloadFailures.sum();
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Read again the rules, the current ones are kept if the new ones are invalid.
+     */
+    @Override
+    public synchronized void reload() {
+        try {
+            current = load();
+            reloads.increment();
+        } catch (IOException | IllegalArgumentException e) {
+            reloadFailures.increment();
+            lastError = e.getMessage();
+        }
+    }
+
+}
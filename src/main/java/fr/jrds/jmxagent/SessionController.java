@@ -0,0 +1,567 @@
+package fr.jrds.jmxagent;
+
+import java.io.IOException;
+import java.rmi.MarshalledObject;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.remote.NotificationResult;
+import javax.management.remote.TargetedNotification;
+import javax.management.remote.rmi.RMIConnection;
+import javax.management.remote.rmi.RMIConnectionImpl;
+import javax.management.remote.rmi.RMIJRMPServerImpl;
+import javax.security.auth.Subject;
+
+/**
+ * The RMI server object of the connector, that manages the life of the sessions it creates. A session without any call
+ * during the idle timeout is closed, as if the client closed it. The sessions whose client vanished are closed by the
+ * RMI distributed GC, when their lease expires. The number of sessions opened by a principal can be limited, the
+ * new ones are then refused.
+ * <p>
+ * The connection check of the JMX client, a periodic <code>getDefaultDomain</code>, is not counted as a use, so an
+ * abandoned client is detected even if its JVM is still running.
+ */
+class SessionController extends RMIJRMPServerImpl implements SessionsMXBean {
+
+    private static final String UNAUTHENTICATED = "";
+
+    private enum Reason {
+        CLIENT,
+        IDLE,
+        UNREFERENCED,
+    }
+
+    private final class Session extends RMIConnectionImpl {
+        private final String connectionId;
+        private final String principal;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile long lastUse = System.nanoTime();
+        private volatile Reason reason = Reason.CLIENT;
+
+        private Session(String connectionId, Subject subject, String principal) {
+            super(SessionController.this, connectionId, getDefaultClassLoader(), ConnectionPrincipal.connected(connectionId, subject), env);
+            this.connectionId = connectionId;
+            this.principal = principal;
+        }
+
+        private void begin() {
+            calls.incrementAndGet();
+        }
+
+        private void end() {
+            lastUse = System.nanoTime();
+            calls.decrementAndGet();
+        }
+
+        private boolean isIdle(long now) {
+            return calls.get() == 0 && now - lastUse > idleTimeout;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (closed.compareAndSet(false, true)) {
+                    closed(this);
+                }
+            }
+        }
+
+        @Override
+        public void unreferenced() {
+            reason = Reason.UNREFERENCED;
+            super.unreferenced();
+        }
+
+        @Override
+        public ObjectInstance createMBean(String className, ObjectName name, Subject delegationSubject)
+                throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException, IOException {
+            begin();
+            try {
+                return super.createMBean(className, name, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName, Subject delegationSubject)
+                throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException, InstanceNotFoundException, IOException {
+            begin();
+            try {
+                return super.createMBean(className, name, loaderName, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public ObjectInstance createMBean(String className, ObjectName name, @SuppressWarnings("rawtypes") MarshalledObject params, String[] signature, Subject delegationSubject)
+                throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException, IOException {
+            begin();
+            try {
+                return super.createMBean(className, name, params, signature, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName, @SuppressWarnings("rawtypes") MarshalledObject params, String[] signature, Subject delegationSubject)
+                throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException, InstanceNotFoundException, IOException {
+            begin();
+            try {
+                return super.createMBean(className, name, loaderName, params, signature, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void unregisterMBean(ObjectName name, Subject delegationSubject)
+                throws InstanceNotFoundException, MBeanRegistrationException, IOException {
+            begin();
+            try {
+                super.unregisterMBean(name, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public ObjectInstance getObjectInstance(ObjectName name, Subject delegationSubject)
+                throws InstanceNotFoundException, IOException {
+            begin();
+            try {
+                return super.getObjectInstance(name, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public Set<ObjectInstance> queryMBeans(ObjectName name, @SuppressWarnings("rawtypes") MarshalledObject query, Subject delegationSubject)
+                throws IOException {
+            begin();
+            try {
+                return super.queryMBeans(name, query, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public Set<ObjectName> queryNames(ObjectName name, @SuppressWarnings("rawtypes") MarshalledObject query, Subject delegationSubject)
+                throws IOException {
+            begin();
+            try {
+                return super.queryNames(name, query, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public boolean isRegistered(ObjectName name, Subject delegationSubject) throws IOException {
+            begin();
+            try {
+                return super.isRegistered(name, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public Integer getMBeanCount(Subject delegationSubject) throws IOException {
+            begin();
+            try {
+                return super.getMBeanCount(delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public Object getAttribute(ObjectName name, String attribute, Subject delegationSubject)
+                throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
+            begin();
+            try {
+                return super.getAttribute(name, attribute, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(ObjectName name, String[] attributes, Subject delegationSubject)
+                throws InstanceNotFoundException, ReflectionException, IOException {
+            begin();
+            try {
+                return super.getAttributes(name, attributes, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void setAttribute(ObjectName name, @SuppressWarnings("rawtypes") MarshalledObject attribute, Subject delegationSubject)
+                throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException, IOException {
+            begin();
+            try {
+                super.setAttribute(name, attribute, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public AttributeList setAttributes(ObjectName name, @SuppressWarnings("rawtypes") MarshalledObject attributes, Subject delegationSubject)
+                throws InstanceNotFoundException, ReflectionException, IOException {
+            begin();
+            try {
+                return super.setAttributes(name, attributes, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public Object invoke(ObjectName name, String operationName, @SuppressWarnings("rawtypes") MarshalledObject params, String[] signature, Subject delegationSubject)
+                throws InstanceNotFoundException, MBeanException, ReflectionException, IOException {
+            begin();
+            try {
+                return super.invoke(name, operationName, params, signature, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public String[] getDomains(Subject delegationSubject) throws IOException {
+            begin();
+            try {
+                return super.getDomains(delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo(ObjectName name, Subject delegationSubject)
+                throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+            begin();
+            try {
+                return super.getMBeanInfo(name, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public boolean isInstanceOf(ObjectName name, String className, Subject delegationSubject)
+                throws InstanceNotFoundException, IOException {
+            begin();
+            try {
+                return super.isInstanceOf(name, className, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public Integer[] addNotificationListeners(ObjectName[] names, @SuppressWarnings("rawtypes") MarshalledObject[] filters, Subject[] delegationSubjects)
+                throws InstanceNotFoundException, IOException {
+            begin();
+            try {
+                return super.addNotificationListeners(names, filters, delegationSubjects);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void addNotificationListener(ObjectName name, ObjectName listener, @SuppressWarnings("rawtypes") MarshalledObject filter, @SuppressWarnings("rawtypes") MarshalledObject handback, Subject delegationSubject)
+                throws InstanceNotFoundException, IOException {
+            begin();
+            try {
+                super.addNotificationListener(name, listener, filter, handback, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void removeNotificationListeners(ObjectName name, Integer[] listenerIDs, Subject delegationSubject)
+                throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+            begin();
+            try {
+                super.removeNotificationListeners(name, listenerIDs, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void removeNotificationListener(ObjectName name, ObjectName listener, Subject delegationSubject)
+                throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+            begin();
+            try {
+                super.removeNotificationListener(name, listener, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void removeNotificationListener(ObjectName name, ObjectName listener, @SuppressWarnings("rawtypes") MarshalledObject filter, @SuppressWarnings("rawtypes") MarshalledObject handback, Subject delegationSubject)
+                throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+            begin();
+            try {
+                super.removeNotificationListener(name, listener, filter, handback, delegationSubject);
+            } finally {
+                end();
+            }
+        }
+
+        /**
+         * A client waiting for notifications is using the session. The notifications of the subscriptions are only
+         * sent to their subscriber.
+         */
+        @Override
+        public NotificationResult fetchNotifications(long clientSequenceNumber, int maxNotifications, long timeout)
+                throws IOException {
+            begin();
+            try {
+                NotificationResult result = super.fetchNotifications(clientSequenceNumber, maxNotifications, timeout);
+                if (subscriptions == null) {
+                    return result;
+                }
+                TargetedNotification[] received = result.getTargetedNotifications();
+                List<TargetedNotification> kept = new ArrayList<>(received.length);
+                for (TargetedNotification tn: received) {
+                    if (subscriptions.isDelivered(connectionId, tn.getNotification())) {
+                        kept.add(tn);
+                    }
+                }
+                if (kept.size() == received.length) {
+                    return result;
+                } else {
+                    return new NotificationResult(result.getEarliestSequenceNumber(), result.getNextSequenceNumber(),
+                                                  kept.toArray(new TargetedNotification[0]));
+                }
+            } finally {
+                end();
+            }
+        }
+    }
+
+    private final int port;
+    private final RMIClientSocketFactory csf;
+    private final RMIServerSocketFactory ssf;
+    private final Map<String, ?> env;
+    private final long idleTimeout;
+    private final int maxSessionsPerPrincipal;
+    private final Subscriptions subscriptions;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Integer> byPrincipal = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder closedByClient = new LongAdder();
+    private final LongAdder closedIdle = new LongAdder();
+    private final LongAdder closedUnreferenced = new LongAdder();
+    private volatile boolean stopping = false;
+
+    /**
+     * @param port the port of the exported objects
+     * @param csf the client socket factory, can be null
+     * @param ssf the server socket factory, can be null
+     * @param env the connector's environment
+     * @param idleTimeout the time in ms after which an unused session is closed, 0 to keep them
+     * @param maxSessionsPerPrincipal the maximum number of open sessions for a principal, 0 for no limit
+     * @param subscriptions filters the notifications of the subscriptions, can be null
+     * @throws IOException if the server can't be created
+     */
+    SessionController(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf, Map<String, ?> env, long idleTimeout, int maxSessionsPerPrincipal, Subscriptions subscriptions) throws IOException {
+        super(port, csf, ssf, env);
+        this.port = port;
+        this.csf = csf;
+        this.ssf = ssf;
+        this.env = env;
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        this.maxSessionsPerPrincipal = maxSessionsPerPrincipal;
+        this.subscriptions = subscriptions;
+        if (idleTimeout > 0) {
+            ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "JmxAgent-sessions");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(idleTimeout / 4, 10);
+            stpe.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+            reaper = stpe;
+        } else {
+            reaper = null;
+        }
+    }
+
+    private static String principal(Subject subject) {
+        if (subject == null || subject.getPrincipals().isEmpty()) {
+            return UNAUTHENTICATED;
+        }
+        Set<Principal> principals = subject.getPrincipals();
+        if (principals.size() == 1) {
+            return principals.iterator().next().getName();
+        } else {
+            return principals.stream().map(Principal::getName).sorted().collect(Collectors.joining(","));
+        }
+    }
+
+    @Override
+    protected RMIConnection makeClient(String connectionId, Subject subject) throws IOException {
+        String principal = principal(subject);
+        AtomicBoolean admitted = new AtomicBoolean(true);
+        byPrincipal.compute(principal, (k, v) -> {
+            int open = v == null ? 0 : v;
+            if (maxSessionsPerPrincipal > 0 && open >= maxSessionsPerPrincipal) {
+                admitted.set(false);
+                return v;
+            }
+            return open + 1;
+        });
+        if (! admitted.get()) {
+            rejected.increment();
+            throw new SecurityException("Too many sessions for " + (principal.isEmpty() ? "unauthenticated clients" : principal));
+        }
+        Session session = new Session(connectionId, subject, principal);
+        try {
+            UnicastRemoteObject.exportObject(session, port, csf, ssf);
+        } catch (IOException | RuntimeException e) {
+            release(principal);
+            throw e;
+        }
+        sessions.put(connectionId, session);
+        return session;
+    }
+
+    private void release(String principal) {
+        byPrincipal.computeIfPresent(principal, (k, v) -> v <= 1 ? null : v - 1);
+    }
+
+    private void closed(Session session) {
+        sessions.remove(session.connectionId);
+        release(session.principal);
+        if (stopping) {
+            return;
+        }
+        switch (session.reason) {
+        case IDLE:
+            closedIdle.increment();
+            break;
+        case UNREFERENCED:
+            closedUnreferenced.increment();
+            break;
+        default:
+            closedByClient.increment();
+        }
+    }
+
+    private void closeIdle() {
+        long now = System.nanoTime();
+        for (Session s: sessions.values()) {
+            if (s.isIdle(now)) {
+                s.reason = Reason.IDLE;
+                try {
+                    s.close();
+                } catch (IOException | RuntimeException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void closeServer() throws IOException {
+        stopping = true;
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        super.closeServer();
+    }
+
+    @Override
+    public long getIdleTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(idleTimeout);
+    }
+
+    @Override
+    public int getMaxSessionsPerPrincipal() {
+        return maxSessionsPerPrincipal;
+    }
+
+    @Override
+    public long getLeaseValue() {
+        return Long.getLong("java.rmi.dgc.leaseValue", 600_000L);
+    }
+
+    @Override
+    public int getOpenSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public Map<String, Integer> getSessionsByPrincipal() {
+        return new TreeMap<>(byPrincipal);
+    }
+
+    @Override
+    public long getRejectedSessions() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getClosedByClient() {
+        return closedByClient.sum();
+    }
+
+    @Override
+    public long getClosedIdle() {
+        return closedIdle.sum();
+    }
+
+    @Override
+    public long getClosedUnreferenced() {
+        return closedUnreferenced.sum();
+    }
+
+}
@@ -0,0 +1,15 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+public interface SessionsMXBean {
+    long getIdleTimeout();
+    int getMaxSessionsPerPrincipal();
+    long getLeaseValue();
+    int getOpenSessions();
+    Map<String, Integer> getSessionsByPrincipal();
+    long getRejectedSessions();
+    long getClosedByClient();
+    long getClosedIdle();
+    long getClosedUnreferenced();
+}
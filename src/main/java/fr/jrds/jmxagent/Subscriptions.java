@@ -0,0 +1,304 @@
+package fr.jrds.jmxagent;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.security.auth.Subject;
+
+/**
+ * Samples attributes in the agent and sends only the values that changed, as a single notification for each sample.
+ * <p>
+ * A subscription belongs to the connection that created it. Its values are read with the access rights of the
+ * subscriber, so the connector only sends its notifications to this connection. Only this connection can resync or
+ * stop it, and it's stopped when the connection is closed. The connection is only known with the <code>rmi</code> and
+ * <code>nio</code> protocols, the other connectors refuse the subscriptions of authenticated clients.
+ * <p>
+ * Notifications are sent by the worker pool. When a sample is done while the previous notification of the same
+ * subscription is still pending, the changes are merged in it, so a slow listener gets fewer notifications with the
+ * latest values, instead of a growing backlog.
+ */
+public class Subscriptions extends NotificationBroadcasterSupport implements SubscriptionsMBean, NotificationListener {
+
+    public static final String NOTIFICATION_TYPE = JmxStarter.DOMAIN + ".subscription";
+    static final long MIN_INTERVAL = 100;
+
+    private class Subscription {
+        private final long id;
+        private final String type;
+        private final ObjectName[] patterns;
+        private final String[] attributes;
+        private final Subject subject;
+        private final String connectionId;
+        private Map<ObjectName, Map<String, Object>> last = new HashMap<>();
+        private ScheduledFuture<?> task;
+        private volatile boolean resync = true;
+        // Guarded by this
+        private Map<ObjectName, Map<String, Object>> pending = new HashMap<>();
+        private boolean sending = false;
+
+        private Subscription(long id, ObjectName[] patterns, String[] attributes, Subject subject, String connectionId) {
+            this.id = id;
+            this.type = NOTIFICATION_TYPE + "." + id;
+            this.patterns = patterns;
+            this.attributes = attributes;
+            this.subject = subject;
+            this.connectionId = connectionId;
+        }
+
+        private void run() {
+            try {
+                if (subject != null) {
+                    // Attributes are read with the access rights of the subscriber
+                    Subject.doAsPrivileged(subject, (PrivilegedAction<Void>) () -> {
+                        sample();
+                        return null;
+                    }, null);
+                } else {
+                    sample();
+                }
+            } catch (RuntimeException ex) {
+                // A failed sample must not cancel the subscription, the values will be read again on the next one
+                resync = true;
+            }
+        }
+
+        private void sample() {
+            boolean full = resync;
+            resync = false;
+            Map<ObjectName, Map<String, Object>> current = new HashMap<>();
+            Map<ObjectName, Map<String, Object>> changes = new HashMap<>();
+            for (Map.Entry<ObjectName, AttributeList> e: reader.readAttributes(patterns, attributes).entrySet()) {
+                Map<String, Object> values = new HashMap<>();
+                Map<String, Object> previous = last.getOrDefault(e.getKey(), Collections.emptyMap());
+                Map<String, Object> changed = new HashMap<>();
+                for (Attribute a: e.getValue().asList()) {
+                    values.put(a.getName(), a.getValue());
+                    if (full || ! previous.containsKey(a.getName()) || ! Objects.deepEquals(previous.get(a.getName()), a.getValue())) {
+                        changed.put(a.getName(), a.getValue());
+                    }
+                }
+                current.put(e.getKey(), values);
+                if (! changed.isEmpty()) {
+                    changes.put(e.getKey(), changed);
+                }
+            }
+            last = current;
+            if (changes.isEmpty()) {
+                return;
+            }
+            synchronized (this) {
+                if (! pending.isEmpty()) {
+                    coalesced.increment();
+                }
+                changes.forEach((k, v) -> pending.computeIfAbsent(k, i -> new HashMap<>()).putAll(v));
+                if (sending) {
+                    return;
+                }
+                sending = true;
+            }
+            try {
+                executor.execute(this::flush);
+            } catch (RejectedExecutionException ex) {
+                // Kept in pending, it will be sent with the next sample
+                synchronized (this) {
+                    sending = false;
+                }
+            }
+        }
+
+        private void flush() {
+            while (true) {
+                Map<ObjectName, Map<String, Object>> batch;
+                synchronized (this) {
+                    if (pending.isEmpty() || task.isCancelled()) {
+                        sending = false;
+                        return;
+                    }
+                    batch = pending;
+                    pending = new HashMap<>();
+                }
+                HashMap<ObjectName, AttributeList> values = new HashMap<>(batch.size() * 2);
+                batch.forEach((k, v) -> {
+                    AttributeList al = new AttributeList(v.size());
+                    v.forEach((n, o) -> al.add(new Attribute(n, o)));
+                    values.put(k, al);
+                });
+                Notification n = new Notification(type, Subscriptions.this, sequence.incrementAndGet(), System.currentTimeMillis());
+                n.setUserData(values);
+                sendNotification(n);
+                notifications.increment();
+            }
+        }
+    }
+
+    private final BulkReader reader;
+    private final Executor executor;
+    private final int maxSubscriptions;
+    private final ScheduledExecutorService sampler;
+    private final Map<Long, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder notifications = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public Subscriptions(BulkReader reader, Executor executor, int maxSubscriptions) {
+        super(new MBeanNotificationInfo(new String[] {NOTIFICATION_TYPE},
+                                        Notification.class.getName(),
+                                        "Attributes changed since the previous sample"));
+        this.reader = reader;
+        this.executor = executor;
+        this.maxSubscriptions = maxSubscriptions;
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "JmxAgent-subscriptions");
+            t.setDaemon(true);
+            return t;
+        });
+        stpe.setRemoveOnCancelPolicy(true);
+        sampler = stpe;
+    }
+
+    @Override
+    public long subscribe(ObjectName[] patterns, String[] attributes, long interval) {
+        if (patterns == null || patterns.length == 0) {
+            throw new IllegalArgumentException("No ObjectName patterns");
+        }
+        if (interval < MIN_INTERVAL) {
+            throw new IllegalArgumentException("Sampling interval must be at least " + MIN_INTERVAL + " ms");
+        }
+        Subject subject = Subject.getSubject(AccessController.getContext());
+        String connectionId = ConnectionPrincipal.current();
+        if (subject != null && connectionId == null) {
+            // The notifications would be sent to any client of the connector
+            throw new UnsupportedOperationException("Subscriptions are not supported by this connector");
+        }
+        Subscription s = new Subscription(ids.incrementAndGet(), patterns.clone(), attributes != null ? attributes.clone() : null, subject, connectionId);
+        synchronized (subscriptions) {
+            if (subscriptions.size() >= maxSubscriptions) {
+                throw new IllegalStateException("Too many subscriptions");
+            }
+            synchronized (s) {
+                subscriptions.put(s.id, s);
+                s.task = sampler.scheduleAtFixedRate(s::run, 0, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+        return s.id;
+    }
+
+    /**
+     * @return the subscription, if it belongs to the connection of the caller
+     */
+    private Subscription owned(long id) {
+        Subscription s = subscriptions.get(id);
+        return s != null && Objects.equals(s.connectionId, ConnectionPrincipal.current()) ? s : null;
+    }
+
+    @Override
+    public boolean unsubscribe(long id) {
+        Subscription s = owned(id);
+        return s != null && cancel(s);
+    }
+
+    private boolean cancel(Subscription s) {
+        if (subscriptions.remove(s.id, s)) {
+            synchronized (s) {
+                s.task.cancel(false);
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public void resync(long id) {
+        Subscription s = owned(id);
+        if (s == null) {
+            throw new IllegalArgumentException("Unknown subscription " + id);
+        }
+        s.resync = true;
+    }
+
+    /**
+     * Used by the connector, to send the notifications of a subscription only to its connection.
+     * @param connectionId the connection that will receive the notification
+     * @param n the notification
+     * @return false if the notification belongs to another connection's subscription
+     */
+    boolean isDelivered(String connectionId, Notification n) {
+        if (! n.getType().startsWith(NOTIFICATION_TYPE + ".")) {
+            return true;
+        }
+        try {
+            Subscription s = subscriptions.get(Long.parseLong(n.getType().substring(NOTIFICATION_TYPE.length() + 1)));
+            return s != null && connectionId.equals(s.connectionId);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Receives the {@link JMXConnectionNotification} of the connector server, to stop the subscriptions of the closed
+     * connections.
+     */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (! (notification instanceof JMXConnectionNotification)) {
+            return;
+        }
+        switch (notification.getType()) {
+        case JMXConnectionNotification.CLOSED:
+        case JMXConnectionNotification.FAILED:
+            String id = ((JMXConnectionNotification) notification).getConnectionId();
+            for (Subscription s: subscriptions.values()) {
+                if (id.equals(s.connectionId)) {
+                    cancel(s);
+                }
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public long getNotifications() {
+        return notifications.sum();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    void shutdown() {
+        sampler.shutdownNow();
+        subscriptions.clear();
+    }
+
+}
@@ -0,0 +1,43 @@
+package fr.jrds.jmxagent;
+
+import javax.management.ObjectName;
+
+public interface SubscriptionsMBean {
+
+    /**
+     * Sample attributes at a fixed interval and send the changed values as notifications. The notification type is
+     * <code>fr.jrds.jmxagent.subscription.</code> followed by the subscription id, the user data is a
+     * <code>Map&lt;ObjectName, AttributeList&gt;</code> of the attributes that changed since the previous sample.
+     * @param patterns the ObjectName patterns to resolve, at each sample.
+     * @param attributes the attributes to read, all the readable attributes if null or empty.
+     * @param interval the sampling interval, in ms.
+     * @return the subscription id.
+     */
+    long subscribe(ObjectName[] patterns, String[] attributes, long interval);
+
+    /**
+     * Stop a subscription.
+     * @param id the subscription id.
+     * @return true if the subscription existed.
+     */
+    boolean unsubscribe(long id);
+
+    /**
+     * The next notification of the subscription will contain all the values, not only the changed ones.
+     * @param id the subscription id.
+     */
+    void resync(long id);
+
+    int getSubscriptionCount();
+
+    /**
+     * @return the number of notifications sent.
+     */
+    long getNotifications();
+
+    /**
+     * @return the number of samples merged in a pending notification, because the previous one was not yet delivered.
+     */
+    long getCoalesced();
+
+}
@@ -0,0 +1,49 @@
+package fr.jrds.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The CPU used by a thread between two samples of the thread summary. The ratio is the CPU time divided by the
+ * time between the samples, so 1 is a whole core.
+ */
+public class ThreadCpu {
+
+    private final long id;
+    private final String name;
+    private final String state;
+    private final long cpuTime;
+    private final double ratio;
+
+    @ConstructorProperties({"id", "name", "state", "cpuTime", "ratio"})
+    public ThreadCpu(long id, String name, String state, long cpuTime, double ratio) {
+        this.id = id;
+        this.name = name;
+        this.state = state;
+        this.cpuTime = cpuTime;
+        this.ratio = ratio;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * @return the CPU time, in ns
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+}
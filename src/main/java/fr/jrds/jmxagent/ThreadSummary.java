@@ -0,0 +1,345 @@
+package fr.jrds.jmxagent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A summary of the threads, computed in the background, so a collector doesn't need
+ * {@link ThreadMXBean#dumpAllThreads(boolean, boolean)}, that stops the JVM to walk all the stacks and returns a huge
+ * array. The summary is the count of threads by state and by group, the threads that used the most CPU since the
+ * previous sample, the number of contentions on monitors, and the deadlocked threads.
+ * <p>
+ * The thread infos are read without stack and without locks. The group of a thread is its name with each number
+ * replaced by <code>#</code>, so <code>pool-1-thread-12</code> is in <code>pool-#-thread-#</code>. Only the biggest
+ * groups are kept, the others are counted in <code>other</code>. The previous CPU and blocked counts are kept in
+ * arrays sorted by thread id, replaced at each sample.
+ * <p>
+ * Finding the deadlocks is a safepoint operation that walks all the locks, so it's only done every
+ * <code>deadlocks</code> samples, the other samples keep the previous result.
+ */
+class ThreadSummary implements ThreadSummaryMXBean {
+
+    static final int MAX_GROUPS = 32;
+    static final String OTHER = "other";
+
+    /**
+     * The result of a sample, immutable.
+     */
+    private static final class Summary {
+        private final long time;
+        private final int threadCount;
+        private final Map<String, Integer> states;
+        private final Map<String, Integer> groups;
+        private final ThreadCpu[] topCpu;
+        private final int blocked;
+        private final long contentions;
+        private final int deadlocked;
+        private final String[] deadlockedThreads;
+        private Summary(long time, int threadCount, Map<String, Integer> states, Map<String, Integer> groups,
+                        ThreadCpu[] topCpu, int blocked, long contentions, int deadlocked, String[] deadlockedThreads) {
+            this.time = time;
+            this.threadCount = threadCount;
+            this.states = states;
+            this.groups = groups;
+            this.topCpu = topCpu;
+            this.blocked = blocked;
+            this.contentions = contentions;
+            this.deadlocked = deadlocked;
+            this.deadlockedThreads = deadlockedThreads;
+        }
+    }
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final long interval;
+    private final int top;
+    private final int deadlocks;
+    private final ScheduledExecutorService sampler;
+    private volatile Summary summary = new Summary(0, 0, Collections.emptyMap(), Collections.emptyMap(), new ThreadCpu[0], 0, 0, 0, new String[0]);
+
+    // Only used by the sampling thread
+    private long[] previousIds = new long[0];
+    private long[] previousCpu = new long[0];
+    private long[] previousBlocked = new long[0];
+    private long previousTime = -1;
+    private long sampled = 0;
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram sampleTime = new LatencyHistogram();
+
+    /**
+     * @param interval the sampling interval, in ms
+     * @param top the number of threads in the top CPU users and the deadlocked threads
+     * @param deadlocks the deadlocks are searched every this number of samples, never if 0
+     */
+    ThreadSummary(long interval, int top, int deadlocks) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid thread summary interval " + interval);
+        }
+        this.interval = interval;
+        this.top = top;
+        this.deadlocks = deadlocks;
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "JmxAgent-threads");
+            t.setDaemon(true);
+            return t;
+        });
+        stpe.setRemoveOnCancelPolicy(true);
+        sampler = stpe;
+    }
+
+    void start() {
+        sampler.scheduleAtFixedRate(this::sample, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        sampler.shutdownNow();
+    }
+
+    private void sample() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            summary = summarize(start);
+            failed = false;
+        } catch (RuntimeException e) {
+            failures.increment();
+        } finally {
+            samples.increment();
+            sampleTime.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    private Summary summarize(long now) {
+        long[] ids = threads.getAllThreadIds();
+        Arrays.sort(ids);
+        ThreadInfo[] infos = threads.getThreadInfo(ids, 0);
+        long[] cpu = cpuTimes(ids);
+        long[] blockedCounts = new long[ids.length];
+        long elapsed = previousTime >= 0 ? now - previousTime : 0;
+
+        Map<Thread.State, Integer> states = new EnumMap<>(Thread.State.class);
+        for (Thread.State s: Thread.State.values()) {
+            states.put(s, 0);
+        }
+        Map<String, Integer> groups = new HashMap<>();
+        // The top CPU users, the indexes of the threads sorted by decreasing CPU delta
+        int[] topIndexes = new int[top];
+        long[] topDeltas = new long[top];
+        int topCount = 0;
+        int count = 0;
+        long contentions = 0;
+        for (int i = 0; i < ids.length; i++) {
+            ThreadInfo ti = infos[i];
+            if (ti == null) {
+                // Died since getAllThreadIds
+                cpu[i] = -1;
+                continue;
+            }
+            count++;
+            states.merge(ti.getThreadState(), 1, Integer::sum);
+            groups.merge(group(ti.getThreadName()), 1, Integer::sum);
+            blockedCounts[i] = ti.getBlockedCount();
+            if (elapsed == 0) {
+                continue;
+            }
+            // A new thread was started after the previous sample, all its CPU and contentions are new
+            int previous = Arrays.binarySearch(previousIds, ids[i]);
+            contentions += previous >= 0 ? blockedCounts[i] - previousBlocked[previous] : blockedCounts[i];
+            if (cpu[i] < 0) {
+                continue;
+            }
+            long delta = previous >= 0 && previousCpu[previous] >= 0 ? cpu[i] - previousCpu[previous] : cpu[i];
+            // Insert in the top, if better than its last one
+            int pos = topCount;
+            while (pos > 0 && topDeltas[pos - 1] < delta) {
+                pos--;
+            }
+            if (pos < top) {
+                int moved = Math.min(topCount, top - 1) - pos;
+                System.arraycopy(topIndexes, pos, topIndexes, pos + 1, moved);
+                System.arraycopy(topDeltas, pos, topDeltas, pos + 1, moved);
+                topIndexes[pos] = i;
+                topDeltas[pos] = delta;
+                topCount = Math.min(topCount + 1, top);
+            }
+        }
+        ThreadCpu[] topCpu = new ThreadCpu[topCount];
+        for (int i = 0; i < topCount; i++) {
+            ThreadInfo ti = infos[topIndexes[i]];
+            topCpu[i] = new ThreadCpu(ti.getThreadId(), ti.getThreadName(), ti.getThreadState().name(), topDeltas[i], (double) topDeltas[i] / elapsed);
+        }
+        previousIds = ids;
+        previousCpu = cpu;
+        previousBlocked = blockedCounts;
+        previousTime = now;
+
+        Map<String, Integer> statesCount = new LinkedHashMap<>();
+        states.forEach((k, v) -> statesCount.put(k.name(), v));
+        int deadlockedCount = summary.deadlocked;
+        String[] deadlockedThreads = summary.deadlockedThreads;
+        if (deadlocks > 0 && sampled++ % deadlocks == 0) {
+            long[] deadlocked = threads.isSynchronizerUsageSupported() ? threads.findDeadlockedThreads() : threads.findMonitorDeadlockedThreads();
+            if (deadlocked == null) {
+                deadlocked = new long[0];
+            }
+            deadlockedCount = deadlocked.length;
+            deadlockedThreads = names(deadlocked);
+        }
+        return new Summary(System.currentTimeMillis(), count, statesCount, biggest(groups), topCpu,
+                           states.get(Thread.State.BLOCKED), contentions, deadlockedCount, deadlockedThreads);
+    }
+
+    /**
+     * @return the names of the first threads
+     */
+    private String[] names(long[] ids) {
+        List<String> names = new ArrayList<>(Math.min(ids.length, top));
+        for (ThreadInfo ti: threads.getThreadInfo(Arrays.copyOf(ids, Math.min(ids.length, top)), 0)) {
+            if (ti != null) {
+                names.add(ti.getThreadName());
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * @return the CPU time of each thread, -1 if unknown
+     */
+    private long[] cpuTimes(long[] ids) {
+        long[] cpu;
+        if (! threads.isThreadCpuTimeSupported() || ! threads.isThreadCpuTimeEnabled()) {
+            cpu = new long[ids.length];
+            Arrays.fill(cpu, -1);
+        } else if (threads instanceof com.sun.management.ThreadMXBean) {
+            cpu = ((com.sun.management.ThreadMXBean) threads).getThreadCpuTime(ids);
+        } else {
+            cpu = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                cpu[i] = threads.getThreadCpuTime(ids[i]);
+            }
+        }
+        return cpu;
+    }
+
+    static String group(String name) {
+        StringBuilder group = new StringBuilder(name.length());
+        boolean inNumber = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (! inNumber) {
+                    group.append('#');
+                }
+                inNumber = true;
+            } else {
+                group.append(c);
+                inNumber = false;
+            }
+        }
+        return group.toString();
+    }
+
+    /**
+     * Keep the {@link #MAX_GROUPS} biggest groups, the others are summed in {@link #OTHER}.
+     */
+    private static Map<String, Integer> biggest(Map<String, Integer> groups) {
+        Map<String, Integer> kept = new TreeMap<>();
+        if (groups.size() <= MAX_GROUPS) {
+            kept.putAll(groups);
+            return kept;
+        }
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(groups.entrySet());
+        sorted.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        int other = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i < MAX_GROUPS - 1) {
+                kept.put(sorted.get(i).getKey(), sorted.get(i).getValue());
+            } else {
+                other += sorted.get(i).getValue();
+            }
+        }
+        kept.merge(OTHER, other, Integer::sum);
+        return kept;
+    }
+
+    @Override
+    public long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public long getLastSample() {
+        return summary.time;
+    }
+
+    @Override
+    public int getThreadCount() {
+        return summary.threadCount;
+    }
+
+    @Override
+    public Map<String, Integer> getStates() {
+        return summary.states;
+    }
+
+    @Override
+    public Map<String, Integer> getGroups() {
+        return summary.groups;
+    }
+
+    @Override
+    public ThreadCpu[] getTopCpu() {
+        return summary.topCpu.clone();
+    }
+
+    @Override
+    public int getBlocked() {
+        return summary.blocked;
+    }
+
+    @Override
+    public long getContentions() {
+        return summary.contentions;
+    }
+
+    @Override
+    public int getDeadlocked() {
+        return summary.deadlocked;
+    }
+
+    @Override
+    public String[] getDeadlockedThreads() {
+        return summary.deadlockedThreads.clone();
+    }
+
+    @Override
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public LatencyStatistics getSampleTime() {
+        return sampleTime.snapshot();
+    }
+
+}
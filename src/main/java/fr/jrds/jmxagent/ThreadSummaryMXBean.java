@@ -0,0 +1,19 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+public interface ThreadSummaryMXBean {
+    long getInterval();
+    long getLastSample();
+    int getThreadCount();
+    Map<String, Integer> getStates();
+    Map<String, Integer> getGroups();
+    ThreadCpu[] getTopCpu();
+    int getBlocked();
+    long getContentions();
+    int getDeadlocked();
+    String[] getDeadlockedThreads();
+    long getSamples();
+    long getFailures();
+    LatencyStatistics getSampleTime();
+}
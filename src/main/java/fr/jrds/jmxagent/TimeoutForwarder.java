@@ -0,0 +1,434 @@
+package fr.jrds.jmxagent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * A forwarder that reads attributes in a dedicated pool, waiting at most a timeout for each of them, so a slow getter
+ * doesn't block a whole <code>getAttributes</code>. On timeout, the last value read is returned if there is one, or
+ * the attribute is omitted. A standard {@link AttributeList} can't tell a value is stale without breaking the clients,
+ * so the stale values are only counted and the attributes served stale are listed by the MBean.
+ * <p>
+ * Only one read of an attribute runs at a time, the other callers wait for it, and a read that times out is counted
+ * once, whatever the number of callers waiting for it. An attribute that timed out many times in a row is slow: it's
+ * then read in the background and the callers get the last value immediately, until a read is fast again.
+ * <p>
+ * <code>getAttributes</code> reads all the attributes that are not slow with a single call in the pool; only the
+ * slow ones without a value are read separately. When this call times out, all its attributes are counted as timed
+ * out, so a slow attribute hidden in a batch is isolated after a few calls, and the fast ones are read again in a
+ * batch once the background reads found them fast.
+ * <p>
+ * When the pool is full, the read runs in the calling thread, so no attribute is silently dropped.
+ */
+class TimeoutForwarder extends ForwardingMBeanServer implements TimeoutsMXBean {
+
+    private static final Object ABSENT = new Object();
+    private static final int SLOW_AFTER = 3;
+    private static final int MAX_ATTRIBUTES = 10000;
+
+    private static final class Key {
+        private final ObjectName name;
+        private final String attribute;
+        private Key(ObjectName name, String attribute) {
+            this.name = name;
+            this.attribute = attribute;
+        }
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, attribute);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return name.equals(other.name) && attribute.equals(other.attribute);
+        }
+        @Override
+        public String toString() {
+            return name.getCanonicalName() + "#" + attribute;
+        }
+    }
+
+    private static final class State {
+        private volatile Object value = ABSENT;
+        private volatile long time;
+        private volatile boolean slow = false;
+        private final AtomicInteger timeouts = new AtomicInteger();
+        private final AtomicReference<Read> pending = new AtomicReference<>();
+    }
+
+    /**
+     * A running read of a single attribute, shared by the callers waiting for it.
+     */
+    private static final class Read {
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private final AtomicBoolean timedOut = new AtomicBoolean(false);
+    }
+
+    private final long timeout;
+    private final boolean staleValues;
+    private final WorkerPool pool;
+    private final ScheduledExecutorService refresher;
+    private final Map<Key, State> states = new ConcurrentHashMap<>();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder omitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyHistogram slowReads = new LatencyHistogram();
+
+    /**
+     * @param timeout the maximum time in ms to wait for an attribute
+     * @param staleValues if true, the last value is returned on timeout, otherwise the attribute is omitted
+     * @param refresh the interval in ms between background reads of slow attributes
+     * @param threads the threads reading attributes
+     * @param queue the reads that can wait for a thread
+     */
+    TimeoutForwarder(long timeout, boolean staleValues, long refresh, int threads, int queue) {
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.staleValues = staleValues;
+        this.pool = new WorkerPool(WorkerPool.MODEL.bounded, threads, queue);
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "JmxAgent-refresher");
+            t.setDaemon(true);
+            return t;
+        });
+        stpe.scheduleWithFixedDelay(this::refresh, refresh, refresh, TimeUnit.MILLISECONDS);
+        this.refresher = stpe;
+    }
+
+    void shutdown() {
+        refresher.shutdownNow();
+        pool.shutdown();
+    }
+
+    private State state(Key key) {
+        State s = states.get(key);
+        if (s == null) {
+            if (states.size() >= MAX_ATTRIBUTES) {
+                // Forget the attributes that are neither slow nor being read
+                states.values().removeIf(i -> ! i.slow && i.pending.get() == null);
+            }
+            s = states.computeIfAbsent(key, k -> new State());
+        }
+        return s;
+    }
+
+    /**
+     * Read the slow attributes ahead of the callers.
+     */
+    private void refresh() {
+        for (Map.Entry<Key, State> e: states.entrySet()) {
+            if (e.getValue().slow) {
+                read(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Start a read of the attribute, or join the one running.
+     */
+    private Read read(Key key, State s) {
+        while (true) {
+            Read running = s.pending.get();
+            if (running != null) {
+                return running;
+            }
+            Read created = new Read();
+            if (s.pending.compareAndSet(null, created)) {
+                long start = System.nanoTime();
+                boolean wasSlow = s.slow;
+                execute(() -> {
+                    try {
+                        Object value = super.getAttribute(key.name, key.attribute);
+                        long duration = System.nanoTime() - start;
+                        store(s, value, duration);
+                        if (wasSlow) {
+                            slowReads.record(duration, false);
+                        }
+                        s.pending.set(null);
+                        created.future.complete(value);
+                    } catch (Exception | Error ex) {
+                        if (ex instanceof InstanceNotFoundException) {
+                            states.remove(key, s);
+                        }
+                        if (wasSlow) {
+                            slowReads.record(System.nanoTime() - start, true);
+                        }
+                        s.pending.set(null);
+                        created.future.completeExceptionally(ex);
+                    }
+                });
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Read the attributes with a single call.
+     */
+    private CompletableFuture<AttributeList> readAll(ObjectName name, String[] attributes, Map<String, State> batched) {
+        CompletableFuture<AttributeList> f = new CompletableFuture<>();
+        long start = System.nanoTime();
+        execute(() -> {
+            try {
+                AttributeList values = super.getAttributes(name, attributes);
+                long duration = System.nanoTime() - start;
+                for (Attribute a: values.asList()) {
+                    State s = batched.get(a.getName());
+                    if (s != null) {
+                        store(s, a.getValue(), duration);
+                    }
+                }
+                f.complete(values);
+            } catch (Exception | Error ex) {
+                if (ex instanceof InstanceNotFoundException) {
+                    states.keySet().removeIf(k -> k.name.equals(name));
+                }
+                f.completeExceptionally(ex);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Keep a value read.
+     */
+    private void store(State s, Object value, long duration) {
+        s.value = value;
+        s.time = System.nanoTime();
+        if (duration < timeout) {
+            s.timeouts.set(0);
+            s.slow = false;
+        }
+    }
+
+    /**
+     * Run a read in the pool, or in the calling thread if the pool is full.
+     */
+    private void execute(Runnable task) {
+        reads.increment();
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            task.run();
+        }
+    }
+
+    /**
+     * Count a timeout of an attribute, it's slow after many of them in a row.
+     */
+    private void timedOut(State s) {
+        if (s.timeouts.incrementAndGet() >= SLOW_AFTER) {
+            s.slow = true;
+        }
+    }
+
+    /**
+     * Wait for a read until the deadline.
+     * @return the value, or ABSENT if it's not available in time
+     */
+    private Object await(State s, Read r, long deadline) throws Exception {
+        try {
+            return r.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            // Only the first caller that gave up counts the timeout
+            if (r.timedOut.compareAndSet(false, true)) {
+                timeouts.increment();
+                timedOut(s);
+            }
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : new ReflectionException(ex);
+        }
+        return fallback(s);
+    }
+
+    private Object fallback(State s) {
+        Object value = s.value;
+        if (staleValues && value != ABSENT) {
+            stale.increment();
+            return value;
+        } else {
+            omitted.increment();
+            return ABSENT;
+        }
+    }
+
+    @Override
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        Key key = new Key(name, attribute);
+        State s = state(key);
+        Object value;
+        if (s.slow && s.value != ABSENT) {
+            value = fallback(s);
+        } else {
+            try {
+                value = await(s, read(key, s), System.nanoTime() + timeout);
+            } catch (MBeanException | AttributeNotFoundException | InstanceNotFoundException | ReflectionException | RuntimeException ex) {
+                throw ex;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ReflectionException(ex, "Interrupted while waiting for the attribute");
+            } catch (Exception ex) {
+                throw new ReflectionException(ex);
+            }
+        }
+        if (value == ABSENT) {
+            throw new MBeanException(new TimeoutException("Timeout reading " + attribute), "Timeout reading " + attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        long deadline = System.nanoTime() + timeout;
+        State[] found = new State[attributes.length];
+        Read[] separated = new Read[attributes.length];
+        Map<String, State> batched = new HashMap<>();
+        // Start all the reads before waiting, so they run in parallel
+        for (int i = 0; i < attributes.length; i++) {
+            Key key = new Key(name, attributes[i]);
+            found[i] = state(key);
+            if (! found[i].slow) {
+                batched.put(attributes[i], found[i]);
+            } else if (found[i].value == ABSENT) {
+                separated[i] = read(key, found[i]);
+            }
+        }
+        Map<String, Object> batchValues = null;
+        if (! batched.isEmpty()) {
+            CompletableFuture<AttributeList> batch = readAll(name, batched.keySet().toArray(new String[batched.size()]), batched);
+            try {
+                AttributeList values = batch.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                batchValues = new HashMap<>(values.size() * 2);
+                for (Attribute a: values.asList()) {
+                    batchValues.put(a.getName(), a.getValue());
+                }
+            } catch (TimeoutException ex) {
+                timeouts.increment();
+                batched.values().forEach(this::timedOut);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof InstanceNotFoundException) {
+                    throw (InstanceNotFoundException) ex.getCause();
+                } else if (ex.getCause() instanceof ReflectionException) {
+                    throw (ReflectionException) ex.getCause();
+                } else if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                } else {
+                    throw new ReflectionException(ex);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ReflectionException(ex, "Interrupted while waiting for the attributes");
+            }
+        }
+        AttributeList values = new AttributeList(attributes.length);
+        for (int i = 0; i < attributes.length; i++) {
+            Object value;
+            if (batched.get(attributes[i]) == found[i]) {
+                if (batchValues == null) {
+                    value = fallback(found[i]);
+                } else if (batchValues.containsKey(attributes[i])) {
+                    value = batchValues.get(attributes[i]);
+                } else {
+                    // Like the MBeanServer, unreadable attributes are omitted
+                    continue;
+                }
+            } else if (separated[i] == null) {
+                value = fallback(found[i]);
+            } else {
+                try {
+                    value = await(found[i], separated[i], deadline);
+                } catch (InstanceNotFoundException ex) {
+                    throw ex;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ReflectionException(ex, "Interrupted while waiting for the attributes");
+                } catch (Exception ex) {
+                    // Like the MBeanServer, unreadable attributes are omitted
+                    continue;
+                }
+            }
+            if (value != ABSENT) {
+                values.add(new Attribute(attributes[i], value));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public long getTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(timeout);
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getStaleValues() {
+        return stale.sum();
+    }
+
+    @Override
+    public long getOmitted() {
+        return omitted.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public Map<String, Long> getSlowAttributes() {
+        Map<String, Long> slow = new TreeMap<>();
+        long now = System.nanoTime();
+        states.forEach((k, s) -> {
+            if (s.slow) {
+                // The age of the value served, -1 if there is none
+                slow.put(k.toString(), s.value != ABSENT ? TimeUnit.NANOSECONDS.toMillis(now - s.time) : -1L);
+            }
+        });
+        return slow;
+    }
+
+    @Override
+    public LatencyStatistics getSlowReads() {
+        return slowReads.snapshot();
+    }
+
+}
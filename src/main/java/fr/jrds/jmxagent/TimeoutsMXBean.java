@@ -0,0 +1,14 @@
+package fr.jrds.jmxagent;
+
+import java.util.Map;
+
+public interface TimeoutsMXBean {
+    long getTimeout();
+    long getReads();
+    long getTimeouts();
+    long getStaleValues();
+    long getOmitted();
+    long getRejected();
+    Map<String, Long> getSlowAttributes();
+    LatencyStatistics getSlowReads();
+}
@@ -0,0 +1,10 @@
+package fr.jrds.jmxagent;
+
+public interface TlsMXBean {
+    long getHandshakes();
+    long getResumed();
+    double getResumptionRatio();
+    LatencyStatistics getHandshakeLatency();
+    int getSessionCacheSize();
+    int getSessionTimeout();
+}
@@ -0,0 +1,146 @@
+package fr.jrds.jmxagent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the work done by the agent on behalf of clients. It's either a bounded pool of platform threads or, when
+ * the runtime provides them, a virtual thread per task. In both cases, at most <code>threads + queue</code> tasks
+ * are accepted at any time, the others are rejected.
+ */
+class WorkerPool implements Executor, ExecutorMXBean {
+
+    enum MODEL {
+        bounded,
+        virtual,
+    }
+
+    private static final AtomicInteger POOLCOUNT = new AtomicInteger();
+
+    /**
+     * A thread of a bounded pool, shared by all the clients.
+     */
+    private static final class Worker extends Thread {
+        private Worker(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+
+    private final MODEL model;
+    private final ExecutorService delegate;
+    private final int maxTasks;
+    private final Semaphore permits;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private LimitingServerSocketFactory connections = null;
+
+    WorkerPool(MODEL model, int threads, int queue) {
+        ExecutorService virtual = model == MODEL.virtual ? virtualThreads() : null;
+        if (virtual != null) {
+            this.model = MODEL.virtual;
+            this.delegate = virtual;
+        } else {
+            this.model = MODEL.bounded;
+            int poolId = POOLCOUNT.incrementAndGet();
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory tf = r -> {
+                Thread t = new Worker(r, "JmxAgent-" + poolId + "-worker-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), tf);
+            tpe.allowCoreThreadTimeOut(true);
+            this.delegate = tpe;
+        }
+        this.maxTasks = threads + queue;
+        this.permits = new Semaphore(maxTasks);
+    }
+
+    /**
+     * Virtual threads are only available since Java 21, they are resolved at runtime.
+     */
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (! permits.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException("Too many pending tasks");
+        }
+        try {
+            delegate.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    completed.increment();
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * @return true if the current thread belongs to a bounded pool, so a task blocking it delays the others
+     */
+    static boolean isWorkerThread() {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    void setConnections(LimitingServerSocketFactory connections) {
+        this.connections = connections;
+    }
+
+    @Override
+    public String getExecutionModel() {
+        return model.name();
+    }
+
+    @Override
+    public int getActiveTasks() {
+        return maxTasks - permits.availablePermits();
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getRejectedTasks() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections != null ? connections.getActiveConnections() : 0;
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return connections != null ? connections.getRejectedConnections() : 0;
+    }
+
+}
@@ -0,0 +1,585 @@
+package fr.loghub.jmxagent;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.AttributeList;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import fr.jrds.jmxagent.JmxStarter;
+import fr.jrds.jmxagent.NioClient;
+
+/**
+ * A load generator, that starts a target JVM with the agent and drives many concurrent collectors against it, for
+ * each protocol, security mode and number of clients. Each collector has its own connection and repeats a scrape: a
+ * discovery query from time to time, the memory, threads and OS attributes, the GC counters, and a bulk read of the
+ * memory pools.
+ * <p>
+ * The latency of each call is recorded, and the cost for the target JVM: the CPU time, the heap, the GC time and the
+ * threads started. A line is appended to a CSV report for each run, so the
+ * results of different builds can be compared. It's run with the <code>loadtest</code> profile, the arguments are
+ * given as <code>key=value</code>:
+ * <ul>
+ * <li>agent, the agent's jar, required</li>
+ * <li>protocols, default to <code>rmi,nio,jmxmp</code>, jmxmp is skipped when it's not in the class path, and only
+ * used in strict mode</li>
+ * <li>modes, default to <code>strict,password,jaas</code></li>
+ * <li>clients, the numbers of concurrent clients, default to <code>10,100,1000</code></li>
+ * <li>duration, the measure duration in seconds, default to 10</li>
+ * <li>warmup, the warmup duration in seconds, default to 3</li>
+ * <li>interval, the time in ms between the start of two scrapes of a client, default to 0, scrape without pause</li>
+ * <li>agentArgs, more arguments for the agent, separated like in <code>-javaagent</code></li>
+ * <li>jvmArgs, the target JVM arguments, separated by spaces, default to <code>-Xmx256m</code></li>
+ * <li>report, the CSV file, default to <code>target/loadtest-report.csv</code></li>
+ * <li>label, identify the build in the report, default to the agent's jar name</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    private static final String READY = "READY";
+    private static final String USAGE = "USAGE";
+    private static final String REPORT_HEADER = "time,label,protocol,mode,clients,interval,duration,calls,errors,"
+            + "throughput,p50_us,p99_us,p999_us,max_us,cpu_percent,heap_used_mb,heap_peak_mb,gc_ms,threads,threads_created";
+
+    private static final ObjectName ALL_JAVA_LANG;
+    private static final ObjectName MEMORY;
+    private static final ObjectName THREADING;
+    private static final ObjectName OS;
+    private static final ObjectName GC;
+    private static final ObjectName MEMORY_POOLS;
+    private static final ObjectName BULK_READER;
+    static {
+        try {
+            ALL_JAVA_LANG = new ObjectName("java.lang:*");
+            MEMORY = new ObjectName("java.lang:type=Memory");
+            THREADING = new ObjectName("java.lang:type=Threading");
+            OS = new ObjectName("java.lang:type=OperatingSystem");
+            GC = new ObjectName("java.lang:type=GarbageCollector,*");
+            MEMORY_POOLS = new ObjectName("java.lang:type=MemoryPool,*");
+            BULK_READER = new ObjectName("fr.jrds.jmxagent:type=BulkReader");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The main class of the target JVM, the agent is started by <code>-javaagent</code>. It answers its usage to each
+     * line read from its standard input, and runs until it's closed, so it doesn't outlive the generator.
+     */
+    public static class Target {
+        public static void main(String[] args) throws IOException {
+            if (JmxStarter.getState() != JmxStarter.State.RUNNING) {
+                System.out.println("Agent not running: " + JmxStarter.getState());
+                System.exit(1);
+            }
+            System.out.println(READY);
+            System.out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            while (in.readLine() != null) {
+                System.out.println(Usage.local());
+                System.out.flush();
+            }
+            System.exit(0);
+        }
+    }
+
+    /**
+     * The calls used by a scrape, through a JMX connector or the nio client.
+     */
+    private interface Scraper extends Closeable {
+        Object getAttribute(ObjectName name, String attribute) throws Exception;
+        AttributeList getAttributes(ObjectName name, String[] attributes) throws Exception;
+        Set<ObjectName> queryNames(ObjectName pattern) throws Exception;
+        Object invoke(ObjectName name, String operation, Object[] params, String[] signature) throws Exception;
+    }
+
+    private static Scraper connect(String protocol, int port, String[] credentials) throws IOException {
+        if ("nio".equals(protocol)) {
+            NioClient client = NioClient.connect("127.0.0.1", port, credentials);
+            return new Scraper() {
+                @Override
+                public Object getAttribute(ObjectName name, String attribute) throws Exception {
+                    return client.getAttribute(name, attribute);
+                }
+                @Override
+                public AttributeList getAttributes(ObjectName name, String[] attributes) throws Exception {
+                    return client.getAttributes(name, attributes);
+                }
+                @Override
+                public Set<ObjectName> queryNames(ObjectName pattern) throws Exception {
+                    return client.queryNames(pattern);
+                }
+                @Override
+                public Object invoke(ObjectName name, String operation, Object[] params, String[] signature) throws Exception {
+                    return client.invoke(name, operation, params, signature);
+                }
+                @Override
+                public void close() throws IOException {
+                    client.close();
+                }
+            };
+        } else {
+            JMXServiceURL url;
+            if ("rmi".equals(protocol)) {
+                url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + port + "/jmxrmi");
+            } else {
+                url = new JMXServiceURL(protocol, "127.0.0.1", port);
+            }
+            Map<String, ?> env = credentials != null ? Collections.singletonMap(JMXConnector.CREDENTIALS, credentials) : Collections.emptyMap();
+            JMXConnector connector = JMXConnectorFactory.connect(url, env);
+            MBeanServerConnection mbsc = connector.getMBeanServerConnection();
+            return new Scraper() {
+                @Override
+                public Object getAttribute(ObjectName name, String attribute) throws Exception {
+                    return mbsc.getAttribute(name, attribute);
+                }
+                @Override
+                public AttributeList getAttributes(ObjectName name, String[] attributes) throws Exception {
+                    return mbsc.getAttributes(name, attributes);
+                }
+                @Override
+                public Set<ObjectName> queryNames(ObjectName pattern) throws Exception {
+                    return mbsc.queryNames(pattern, null);
+                }
+                @Override
+                public Object invoke(ObjectName name, String operation, Object[] params, String[] signature) throws Exception {
+                    return mbsc.invoke(name, operation, params, signature);
+                }
+                @Override
+                public void close() throws IOException {
+                    connector.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * The latencies of a client, in ns. Only written by the client's thread, read after it's finished.
+     */
+    private static class Recorder {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private long errors = 0;
+        private void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+
+    /**
+     * What the target JVM used. It's read by the target itself and sent through its standard output, so the measure
+     * doesn't load the agent, and still works when it's overloaded.
+     */
+    private static class Usage {
+        private long cpuTime;
+        private long heapUsed;
+        private long gcTime;
+        private int threads;
+        private long startedThreads;
+
+        private static Usage local() {
+            Usage u = new Usage();
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            u.cpuTime = os instanceof com.sun.management.OperatingSystemMXBean ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+            u.heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+                u.gcTime += Math.max(gc.getCollectionTime(), 0);
+            }
+            ThreadMXBean threading = ManagementFactory.getThreadMXBean();
+            u.threads = threading.getThreadCount();
+            u.startedThreads = threading.getTotalStartedThreadCount();
+            return u;
+        }
+
+        private static Usage parse(String line) {
+            String[] values = line.split(" ");
+            Usage u = new Usage();
+            u.cpuTime = Long.parseLong(values[0]);
+            u.heapUsed = Long.parseLong(values[1]);
+            u.gcTime = Long.parseLong(values[2]);
+            u.threads = Integer.parseInt(values[3]);
+            u.startedThreads = Long.parseLong(values[4]);
+            return u;
+        }
+
+        @Override
+        public String toString() {
+            return cpuTime + " " + heapUsed + " " + gcTime + " " + threads + " " + startedThreads;
+        }
+    }
+
+    /**
+     * The target JVM, it answers a {@link Usage} to each line written to it.
+     */
+    private static class TargetJvm implements Closeable {
+        private final Process process;
+        private final BufferedReader out;
+        private final PrintWriter in;
+
+        private TargetJvm(Process process) {
+            this.process = process;
+            this.out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            this.in = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8), true);
+        }
+
+        private Usage usage() throws IOException {
+            in.println(USAGE);
+            String line = out.readLine();
+            if (line == null) {
+                throw new IOException("Target JVM stopped");
+            }
+            return Usage.parse(line);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            try {
+                if (! process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly().waitFor();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final Map<String, String> settings = new HashMap<>();
+    private final String agent;
+    private final Path report;
+    private final String label;
+
+    LoadGenerator(String[] args) {
+        settings.put("protocols", "rmi,nio,jmxmp");
+        settings.put("modes", "strict,password,jaas");
+        settings.put("clients", "10,100,1000");
+        settings.put("duration", "10");
+        settings.put("warmup", "3");
+        settings.put("interval", "0");
+        settings.put("agentArgs", "");
+        settings.put("jvmArgs", "-Xmx256m");
+        settings.put("report", "target/loadtest-report.csv");
+        for (String arg: args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Invalid argument '" + arg + "', should be key=value");
+            }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        agent = settings.get("agent");
+        if (agent == null || ! new File(agent).isFile()) {
+            throw new IllegalArgumentException("The agent's jar is required: agent=" + agent);
+        }
+        report = Paths.get(settings.get("report"));
+        label = settings.getOrDefault("label", new File(agent).getName().replaceFirst("\\.jar$", ""));
+    }
+
+    private List<String> list(String key) {
+        List<String> values = new ArrayList<>();
+        for (String v: settings.get(key).split(",")) {
+            if (! v.trim().isEmpty()) {
+                values.add(v.trim());
+            }
+        }
+        return values;
+    }
+
+    private int integer(String key) {
+        return Integer.parseInt(settings.get(key));
+    }
+
+    void run() throws Exception {
+        boolean withJmxmp = isJmxmpAvailable();
+        for (String protocol: list("protocols")) {
+            for (String mode: list("modes")) {
+                if ("jmxmp".equals(protocol) && (! withJmxmp || ! "strict".equals(mode))) {
+                    // Without a SASL profile, a jmxmp client doesn't send credentials
+                    continue;
+                }
+                for (String clients: list("clients")) {
+                    run(protocol, mode, Integer.parseInt(clients));
+                }
+            }
+        }
+    }
+
+    private static boolean isJmxmpAvailable() {
+        try {
+            Class.forName("com.sun.jmx.remote.protocol.jmxmp.ClientProvider");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void run(String protocol, String mode, int clients) throws Exception {
+        int port = freePort();
+        String[] credentials = "strict".equals(mode) ? null : new String[] {"login", "password"};
+        try (TargetJvm target = startTarget(protocol, mode, port)) {
+            Usage before = target.usage();
+            Recorder[] recorders = new Recorder[clients];
+            long interval = TimeUnit.MILLISECONDS.toNanos(integer("interval"));
+            CountDownLatch connected = new CountDownLatch(clients);
+            AtomicLong measureStart = new AtomicLong(Long.MAX_VALUE);
+            AtomicLong deadline = new AtomicLong(Long.MAX_VALUE);
+            AtomicLong connectFailures = new AtomicLong();
+            List<Thread> threads = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                Recorder r = new Recorder();
+                recorders[i] = r;
+                Thread t = new Thread(() -> collect(protocol, port, credentials, r, interval, connected, measureStart, deadline, connectFailures), "LoadGenerator-" + i);
+                t.setDaemon(true);
+                threads.add(t);
+                t.start();
+            }
+            connected.await();
+            long warmup = TimeUnit.SECONDS.toNanos(integer("warmup"));
+            long duration = TimeUnit.SECONDS.toNanos(integer("duration"));
+            long start = System.nanoTime() + warmup;
+            measureStart.set(start);
+            deadline.set(start + duration);
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(warmup));
+            Usage first = target.usage();
+            long heapPeak = first.heapUsed;
+            while (System.nanoTime() < start + duration) {
+                Thread.sleep(250);
+                heapPeak = Math.max(heapPeak, target.usage().heapUsed);
+            }
+            Usage last = target.usage();
+            long elapsed = System.nanoTime() - start;
+            for (Thread t: threads) {
+                t.join();
+            }
+            long errors = connectFailures.get();
+            int count = 0;
+            for (Recorder r: recorders) {
+                count += r.count;
+                errors += r.errors;
+            }
+            long[] latencies = new long[count];
+            int offset = 0;
+            for (Recorder r: recorders) {
+                System.arraycopy(r.latencies, 0, latencies, offset, r.count);
+                offset += r.count;
+            }
+            Arrays.sort(latencies);
+            double throughput = count / (elapsed / 1e9);
+            double cpu = (last.cpuTime - first.cpuTime) / (double) elapsed * 100;
+            long threadsCreated = last.startedThreads - before.startedThreads;
+            String line = String.format(Locale.ROOT, "%s,%s,%s,%s,%d,%d,%d,%d,%d,%.1f,%d,%d,%d,%d,%.1f,%.1f,%.1f,%d,%d,%d",
+                                        Instant.now(), label, protocol, mode, clients, integer("interval"), integer("duration"), count, errors,
+                                        throughput,
+                                        percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                                        count > 0 ? latencies[count - 1] / 1000 : 0,
+                                        cpu, last.heapUsed / 1048576.0, heapPeak / 1048576.0,
+                                        last.gcTime - first.gcTime,
+                                        last.threads, threadsCreated);
+            System.out.format(Locale.ROOT, "%-5s %-8s %5d clients: %8.1f calls/s, p50 %6d us, p99 %7d us, p999 %7d us, %5d errors, cpu %5.1f%%, heap peak %5.1f MB, %d threads created%n",
+                              protocol, mode, clients, throughput,
+                              percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999), errors,
+                              cpu, heapPeak / 1048576.0, threadsCreated);
+            append(line);
+        }
+    }
+
+    /**
+     * The loop of a collector: it connects, waits for the others, then scrapes until the deadline. Only the calls
+     * started during the measure are recorded.
+     */
+    private static void collect(String protocol, int port, String[] credentials, Recorder r, long interval,
+                                CountDownLatch connected, AtomicLong measureStart, AtomicLong deadline, AtomicLong connectFailures) {
+        Scraper s;
+        try {
+            s = connect(protocol, port, credentials);
+        } catch (IOException | RuntimeException e) {
+            connectFailures.incrementAndGet();
+            connected.countDown();
+            return;
+        }
+        connected.countDown();
+        try {
+            long next = System.nanoTime() + (interval > 0 ? ThreadLocalRandom.current().nextLong(interval) : 0);
+            List<ObjectName> collectors = new ArrayList<>();
+            for (int scrape = 0; System.nanoTime() < deadline.get(); scrape++) {
+                if (interval > 0) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    next += interval;
+                }
+                // A collector discovers the MBeans from time to time, and read them
+                if (scrape % 10 == 0) {
+                    Set<ObjectName> names = call(r, measureStart, () -> s.queryNames(ALL_JAVA_LANG));
+                    if (names != null) {
+                        collectors.clear();
+                        names.stream().filter(GC::apply).forEach(collectors::add);
+                    }
+                }
+                call(r, measureStart, () -> s.getAttributes(MEMORY, new String[] {"HeapMemoryUsage", "NonHeapMemoryUsage", "ObjectPendingFinalizationCount"}));
+                call(r, measureStart, () -> s.getAttributes(THREADING, new String[] {"ThreadCount", "DaemonThreadCount", "PeakThreadCount"}));
+                call(r, measureStart, () -> s.getAttribute(OS, "SystemLoadAverage"));
+                for (ObjectName gc: collectors) {
+                    call(r, measureStart, () -> s.getAttributes(gc, new String[] {"CollectionCount", "CollectionTime"}));
+                }
+                call(r, measureStart, () -> s.invoke(BULK_READER, "readAttributes",
+                                                     new Object[] {new ObjectName[] {MEMORY_POOLS}, new String[] {"Usage", "CollectionUsage"}},
+                                                     new String[] {ObjectName[].class.getName(), String[].class.getName()}));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // The target might be overloaded, it's not part of the measure
+            }
+        }
+    }
+
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    private static <T> T call(Recorder r, AtomicLong measureStart, Call<T> call) {
+        long start = System.nanoTime();
+        boolean measured = start >= measureStart.get();
+        try {
+            T value = call.call();
+            if (measured) {
+                r.record(System.nanoTime() - start);
+            }
+            return value;
+        } catch (Exception e) {
+            if (measured) {
+                r.errors++;
+            }
+            return null;
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000;
+    }
+
+    private TargetJvm startTarget(String protocol, String mode, int port) throws IOException {
+        StringBuilder args = new StringBuilder();
+        args.append("port=").append(port)
+            .append(File.pathSeparator).append("hostname=127.0.0.1")
+            .append(File.pathSeparator).append("protocol=").append(protocol);
+        switch (mode) {
+        case "strict":
+            break;
+        case "password":
+            args.append(File.pathSeparator).append("passwordFile=").append(resource("passwd"));
+            break;
+        case "jaas":
+            args.append(File.pathSeparator).append("jaasName=jmxAuthentication")
+                .append(File.pathSeparator).append("jaasConfiguration=").append(resource("jaas.config"));
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        if (! settings.get("agentArgs").isEmpty()) {
+            args.append(File.pathSeparator).append(settings.get("agentArgs"));
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String a: settings.get("jvmArgs").split(" ")) {
+            if (! a.isEmpty()) {
+                command.add(a);
+            }
+        }
+        command.add("-javaagent:" + agent + "=" + args);
+        command.add("-classpath");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Target.class.getName());
+        Path log = report.toAbsolutePath().resolveSibling("loadtest-target.log");
+        TargetJvm target = new TargetJvm(new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.appendTo(log.toFile()))
+                .start());
+        String line = target.out.readLine();
+        if (! READY.equals(line)) {
+            target.close();
+            throw new IllegalStateException("Target JVM not started: " + line + ", see " + log);
+        }
+        return target;
+    }
+
+    private static String resource(String name) {
+        try {
+            return Paths.get(LoadGenerator.class.getClassLoader().getResource(name).toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void append(String line) throws IOException {
+        if (report.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(report.toAbsolutePath().getParent());
+        }
+        boolean created = ! Files.exists(report);
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(report, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (created) {
+                w.println(REPORT_HEADER);
+            }
+            w.println(line);
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            ss.setReuseAddress(true);
+            return ss.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(args).run();
+    }
+
+}
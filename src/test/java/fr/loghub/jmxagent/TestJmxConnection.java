@@ -1,29 +1,68 @@
 package fr.loghub.jmxagent;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
 import javax.management.ObjectName;
 import javax.management.RuntimeOperationsException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.rmi.ssl.SslRMIClientSocketFactory;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import fr.jrds.jmxagent.ExportReader;
 import fr.jrds.jmxagent.JmxStarter;
+import fr.jrds.jmxagent.NioClient;
 
 public class TestJmxConnection {
 
@@ -47,6 +86,14 @@ public class TestJmxConnection {
         env.put("java.rmi.server.disableHttp", "true");
         env.put("sun.rmi.transport.tcp.handshakeTimeout", "500");
         env.put("sun.rmi.transport.tcp.responseTimeout", "500");
+        // Used by the default SSL context, for both the agent and the client
+        String keystore = TestJmxConnection.class.getClassLoader().getResource("keystore.p12").getFile();
+        env.put("javax.net.ssl.keyStore", keystore);
+        env.put("javax.net.ssl.keyStorePassword", "changeit");
+        env.put("javax.net.ssl.keyStoreType", "PKCS12");
+        env.put("javax.net.ssl.trustStore", keystore);
+        env.put("javax.net.ssl.trustStorePassword", "changeit");
+        env.put("javax.net.ssl.trustStoreType", "PKCS12");
 
         System.getProperties().putAll(env);
     }
@@ -75,6 +122,35 @@ public class TestJmxConnection {
         connect(loopbackip, hostip);
     }
 
+    @Test
+    public void asyncStart() throws Exception {
+        String configStr = "port=" + port + File.pathSeparator + "hostname=" + hostip;
+        JmxStarter.premain(configStr);
+        Assert.assertEquals(JmxStarter.State.RUNNING, JmxStarter.getState());
+        JmxStarter.stop();
+        Assert.assertEquals(JmxStarter.State.STOPPED, JmxStarter.getState());
+
+        int asyncPort = tryGetPort();
+        configStr = "port=" + asyncPort + File.pathSeparator + "hostname=" + hostip + File.pathSeparator + "async";
+        // The starter publishes the agent with the class lock, holding it keeps the agent starting
+        synchronized (JmxStarter.class) {
+            JmxStarter.premain(configStr);
+            // The asynchronous premain doesn't wait for the connector
+            Assert.assertEquals(JmxStarter.State.STARTING, JmxStarter.getState());
+            Assert.assertFalse(JmxStarter.awaitReady(100, TimeUnit.MILLISECONDS));
+        }
+        Assert.assertTrue(JmxStarter.awaitReady(10, TimeUnit.SECONDS));
+        Assert.assertEquals(JmxStarter.State.RUNNING, JmxStarter.getState());
+        // A second start keeps the running agent
+        JmxStarter.agentmain("port=" + tryGetPort() + File.pathSeparator + "hostname=" + hostip, null);
+        Assert.assertTrue(JmxStarter.awaitReady(10, TimeUnit.SECONDS));
+        Assert.assertEquals(JmxStarter.State.RUNNING, JmxStarter.getState());
+        JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + hostip + ":" + asyncPort + "/jmxrmi");
+        try (JMXConnector jmxc = JMXConnectorFactory.connect(url)) {
+            Assert.assertNotEquals(0, jmxc.getMBeanServerConnection().getDomains().length);
+        }
+    }
+
     @Test
     public void checkStrict() throws Exception {
         String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip;
@@ -97,6 +173,910 @@ public class TestJmxConnection {
         Assert.assertEquals("Exception occurred during MBean creation", ex.getMessage());
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void bulkRead() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip;
+        JmxStarter.premain(configStr);
+        JMXConnector jmxc = connect(hostip, loopbackip);
+        ObjectName[] patterns = new ObjectName[] {new ObjectName("java.lang:type=Memory"), new ObjectName("java.lang:type=MemoryPool,*")};
+        Map<ObjectName, AttributeList> values = (Map<ObjectName, AttributeList>) jmxc.getMBeanServerConnection().invoke(new ObjectName("fr.jrds.jmxagent:type=BulkReader"),
+                "readAttributes",
+                new Object[] {patterns, new String[] {"HeapMemoryUsage", "Usage"}},
+                new String[] {ObjectName[].class.getName(), String[].class.getName()});
+        Assert.assertTrue(values.size() > 1);
+        Assert.assertEquals(1, values.get(new ObjectName("java.lang:type=Memory")).size());
+        Map<ObjectName, AttributeList> none = (Map<ObjectName, AttributeList>) jmxc.getMBeanServerConnection().invoke(new ObjectName("fr.jrds.jmxagent:type=BulkReader"),
+                "readAttributes",
+                new Object[] {null, null},
+                new String[] {ObjectName[].class.getName(), String[].class.getName()});
+        Assert.assertTrue(none.isEmpty());
+        // Only the agent's operations that read are allowed in strict mode
+        Assert.assertThrows(SecurityException.class, () -> jmxc.getMBeanServerConnection().invoke(new ObjectName("fr.jrds.jmxagent:type=Subscriptions"), "unsubscribe", new Object[] {1L}, new String[] {long.class.getName()}));
+        Assert.assertThrows(SecurityException.class, () -> jmxc.getMBeanServerConnection().invoke(new ObjectName("fr.jrds.jmxagent:type=Access"), "reload", new Object[0], new String[0]));
+    }
+
+    public interface CounterMBean {
+        int getValue();
+    }
+
+    public static class Counter implements CounterMBean {
+        private volatile int value = 0;
+        @Override
+        public int getValue() {
+            return value;
+        }
+    }
+
+    public interface PairMBean {
+        long getA();
+        long getB();
+    }
+
+    /**
+     * A is incremented each time it's read, B is the last value of A, so a consistent sample reading A then B always
+     * sees equal values.
+     */
+    public static class Pair implements PairMBean {
+        private long value = 0;
+        @Override
+        public synchronized long getA() {
+            return ++value;
+        }
+        @Override
+        public synchronized long getB() {
+            return value;
+        }
+    }
+
+    public interface SlowMBean {
+        long getFast();
+        long getSlow();
+    }
+
+    public static class Slow implements SlowMBean {
+        private volatile long delay = 0;
+        private final AtomicLong reads = new AtomicLong();
+        @Override
+        public long getFast() {
+            return 1;
+        }
+        @Override
+        public long getSlow() {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return reads.incrementAndGet();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void subscription() throws Exception {
+        // resync and unsubscribe are denied in strict mode
+        String configStr = "port=" +  port + File.pathSeparator + "strict=false" + File.pathSeparator + "hostname=" + hostip;
+        JmxStarter.premain(configStr);
+        ObjectName counterName = new ObjectName("fr.loghub.jmxagent:type=Counter");
+        Counter counter = new Counter();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(counter, counterName);
+        try {
+            JMXConnector jmxc = connect(hostip, loopbackip);
+            MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+            ObjectName subscriptions = new ObjectName("fr.jrds.jmxagent:type=Subscriptions");
+            BlockingQueue<Notification> received = new LinkedBlockingQueue<>();
+            NotificationFilterSupport filter = new NotificationFilterSupport();
+            filter.enableType("fr.jrds.jmxagent.subscription");
+            mbsc.addNotificationListener(subscriptions, (n, h) -> received.add(n), filter, null);
+            // Another client doesn't receive the notifications and can't manage the subscription
+            JMXConnector otherc = connect(hostip, loopbackip);
+            MBeanServerConnection other = otherc.getMBeanServerConnection();
+            BlockingQueue<Notification> otherReceived = new LinkedBlockingQueue<>();
+            other.addNotificationListener(subscriptions, (n, h) -> otherReceived.add(n), filter, null);
+            long id = (Long) mbsc.invoke(subscriptions, "subscribe",
+                                         new Object[] {new ObjectName[] {counterName}, new String[] {"Value"}, 100L},
+                                         new String[] {ObjectName[].class.getName(), String[].class.getName(), long.class.getName()});
+            Notification n = received.poll(5, TimeUnit.SECONDS);
+            Assert.assertEquals("fr.jrds.jmxagent.subscription." + id, n.getType());
+            Map<ObjectName, AttributeList> values = (Map<ObjectName, AttributeList>) n.getUserData();
+            Assert.assertEquals(0, values.get(counterName).asList().get(0).getValue());
+            // Nothing changed, nothing sent
+            Assert.assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+            counter.value = 1;
+            values = (Map<ObjectName, AttributeList>) received.poll(5, TimeUnit.SECONDS).getUserData();
+            Assert.assertEquals(1, values.get(counterName).asList().get(0).getValue());
+            mbsc.invoke(subscriptions, "resync", new Object[] {id}, new String[] {long.class.getName()});
+            values = (Map<ObjectName, AttributeList>) received.poll(5, TimeUnit.SECONDS).getUserData();
+            Assert.assertEquals(1, values.get(counterName).asList().get(0).getValue());
+            Assert.assertEquals(false, other.invoke(subscriptions, "unsubscribe", new Object[] {id}, new String[] {long.class.getName()}));
+            Assert.assertNull(otherReceived.poll(100, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(true, mbsc.invoke(subscriptions, "unsubscribe", new Object[] {id}, new String[] {long.class.getName()}));
+            Assert.assertEquals(0, mbsc.getAttribute(subscriptions, "SubscriptionCount"));
+            // Stopped when its connection is closed
+            mbsc.invoke(subscriptions, "subscribe",
+                        new Object[] {new ObjectName[] {counterName}, new String[] {"Value"}, 100L},
+                        new String[] {ObjectName[].class.getName(), String[].class.getName(), long.class.getName()});
+            Assert.assertEquals(1, other.getAttribute(subscriptions, "SubscriptionCount"));
+            jmxc.close();
+            long end = System.currentTimeMillis() + 5000;
+            while ((Integer) other.getAttribute(subscriptions, "SubscriptionCount") != 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, other.getAttribute(subscriptions, "SubscriptionCount"));
+            Assert.assertNull(otherReceived.poll(100, TimeUnit.MILLISECONDS));
+            otherc.close();
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(counterName);
+        }
+    }
+
+    @Test
+    public void indexedQueries() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator + "index=true";
+        JmxStarter.premain(configStr);
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName[] names = new ObjectName[3];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = new ObjectName("fr.loghub.jmxagent:type=Indexed,name=n" + i);
+            platform.registerMBean(new Counter(), names[i]);
+        }
+        try {
+            JMXConnector jmxc = connect(hostip, loopbackip);
+            MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+            Assert.assertEquals(3, mbsc.queryNames(new ObjectName("fr.loghub.jmxagent:type=Indexed,*"), null).size());
+            Assert.assertEquals(Collections.singleton(names[1]), mbsc.queryNames(new ObjectName("fr.loghub.*:name=n1,*"), null));
+            Assert.assertEquals(Collections.singleton(names[2]), mbsc.queryNames(names[2], null));
+            Assert.assertEquals(3, mbsc.queryMBeans(new ObjectName("fr.loghub.jmxagent:name=n?,*"), null).size());
+            platform.unregisterMBean(names[0]);
+            Assert.assertEquals(2, mbsc.queryNames(new ObjectName("fr.loghub.jmxagent:type=Indexed,*"), null).size());
+            Assert.assertEquals(platform.queryNames(new ObjectName("java.lang:*"), null), mbsc.queryNames(new ObjectName("java.lang:*"), null));
+            ObjectName index = new ObjectName("fr.jrds.jmxagent:type=Index");
+            Assert.assertEquals(platform.getMBeanCount(), mbsc.getAttribute(index, "Size"));
+            Assert.assertTrue((Long) mbsc.getAttribute(index, "IndexedQueries") >= 6);
+        } finally {
+            for (ObjectName name: names) {
+                if (platform.isRegistered(name)) {
+                    platform.unregisterMBean(name);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void admission() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                + "rateLimit=4" + File.pathSeparator + "rateBurst=10" + File.pathSeparator
+                + "maxConcurrentCalls=2" + File.pathSeparator + "admissionWait=600";
+        JmxStarter.premain(configStr);
+        JMXConnector jmxc = connect(hostip, loopbackip);
+        MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+        ObjectName pattern = new ObjectName("java.lang:*");
+        ObjectName runtime = new ObjectName("java.lang:type=Runtime");
+        // A query costs 5, the bucket is empty after two queries
+        mbsc.queryNames(pattern, null);
+        mbsc.queryNames(pattern, null);
+        // Another query would need to wait 1250 ms
+        SecurityException ex = Assert.assertThrows(SecurityException.class, () -> mbsc.queryNames(pattern, null));
+        Assert.assertEquals("Too many requests", ex.getMessage());
+        // A read waits 250 ms
+        Assert.assertNotNull(mbsc.getAttribute(runtime, "VmName"));
+        // Read the statistics directly, so they are not throttled
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName admission = new ObjectName("fr.jrds.jmxagent:type=Admission");
+        Assert.assertEquals(3L, platform.getAttribute(admission, "Admitted"));
+        Assert.assertEquals(1L, platform.getAttribute(admission, "Throttled"));
+        Assert.assertEquals(1L, platform.getAttribute(admission, "Rejected"));
+        TabularData byClient = (TabularData) platform.getAttribute(admission, "RejectedByClient");
+        Assert.assertEquals(1L, byClient.get(new Object[] {"anonymous"}).get("value"));
+        Assert.assertEquals(0, platform.getAttribute(admission, "ActiveCalls"));
+        // Another connection of the same principal has its own bucket
+        JMXConnector otherc = connect(hostip, loopbackip);
+        otherc.getMBeanServerConnection().queryNames(pattern, null);
+        otherc.close();
+        JmxStarter.stop();
+
+        // Calls running in the worker pool don't wait
+        int nioPort = tryGetPort();
+        configStr = "port=" + nioPort + File.pathSeparator + "protocol=nio" + File.pathSeparator
+                + "rateLimit=4" + File.pathSeparator + "rateBurst=10";
+        JmxStarter.premain(configStr);
+        try (NioClient client = NioClient.connect(loopbackip, nioPort, null)) {
+            client.queryNames(pattern);
+            client.queryNames(pattern);
+            ex = Assert.assertThrows(SecurityException.class, () -> client.getAttribute(runtime, "VmName"));
+            Assert.assertEquals("Too many requests", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void agentMetrics() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                + "passwordFile=" + getClass().getClassLoader().getResource("passwd").getFile();
+        JmxStarter.premain(configStr);
+        Assert.assertThrows(SecurityException.class, () -> connect(hostip, loopbackip, Collections.singletonMap("jmx.remote.credentials", new String[] {"login" , "bad"})));
+        JMXConnector jmxc = connect(hostip, loopbackip, Collections.singletonMap("jmx.remote.credentials", new String[] {"login" , "password"}));
+        Assert.assertNotNull(jmxc.getMBeanServerConnection().getAttribute(new ObjectName("java.lang:type=Runtime"), "VmName"));
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName agent = new ObjectName("fr.jrds.jmxagent:type=Agent");
+        Assert.assertEquals(1L, platform.getAttribute(agent, "AuthenticationSuccesses"));
+        Assert.assertEquals(1L, platform.getAttribute(agent, "AuthenticationFailures"));
+        Assert.assertEquals(0.5, (Double) platform.getAttribute(agent, "AuthenticationFailureRatio"), 1e-9);
+        Assert.assertEquals(1L, platform.getAttribute(agent, "OpenedSessions"));
+        Assert.assertEquals(1, platform.getAttribute(agent, "ActiveSessions"));
+        Assert.assertTrue((Long) platform.getAttribute(agent, "AcceptedConnections") >= 1);
+        Assert.assertTrue((Long) platform.getAttribute(agent, "BytesIn") > 0);
+        Assert.assertTrue((Long) platform.getAttribute(agent, "BytesOut") > 0);
+        TabularData clients = (TabularData) platform.getAttribute(agent, "Clients");
+        Assert.assertFalse(clients.isEmpty());
+        jmxc.close();
+        for (int i = 0; i < 50 && ! Long.valueOf(1).equals(platform.getAttribute(agent, "ClosedSessions")); i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(1L, platform.getAttribute(agent, "ClosedSessions"));
+        Assert.assertEquals(0, platform.getAttribute(agent, "ActiveSessions"));
+        Assert.assertEquals(1L, ((CompositeData) platform.getAttribute(agent, "SessionDurations")).get("count"));
+    }
+
+    @Test
+    public void exportFile() throws Exception {
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pair = new ObjectName("fr.loghub.jmxagent:type=Pair");
+        platform.registerMBean(new Pair(), pair);
+        Path config = Files.createTempFile("jmxagent", ".properties");
+        Path export = Files.createTempFile("jmxagent", ".export");
+        Files.delete(export);
+        try {
+            Files.write(config, Arrays.asList("exportFile=" + export, "exportPatterns=fr.loghub.jmxagent:type=Pair;java.lang:type=Threading", "exportInterval=1"));
+            String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator + "configFile=" + config;
+            JmxStarter.premain(configStr);
+            Assert.assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(export));
+            try (ExportReader reader = new ExportReader(export)) {
+                long lastSequence = -1;
+                long lastValue = -1;
+                int changes = 0;
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                // Read while the file is rewritten every ms, a torn read would see different A and B
+                while (changes < 200 && System.nanoTime() < deadline) {
+                    ExportReader.Snapshot snapshot = reader.read();
+                    Assert.assertTrue(snapshot.getSequence() >= lastSequence);
+                    lastSequence = snapshot.getSequence();
+                    Map<String, Number> values = snapshot.asMap().get(pair.getCanonicalName());
+                    if (values == null) {
+                        continue;
+                    }
+                    Assert.assertEquals(values.get("A"), values.get("B"));
+                    if (values.get("A").longValue() != lastValue) {
+                        lastValue = values.get("A").longValue();
+                        changes++;
+                    }
+                }
+                Assert.assertEquals(200, changes);
+                ExportReader.Snapshot snapshot = reader.read();
+                Assert.assertTrue(snapshot.asMap().get("java.lang:type=Threading").get("ThreadCount").longValue() > 0);
+            }
+            ObjectName exporter = new ObjectName("fr.jrds.jmxagent:type=Export");
+            Assert.assertEquals(0L, platform.getAttribute(exporter, "Failures"));
+            Assert.assertTrue((Integer) platform.getAttribute(exporter, "Entries") > 2);
+            JmxStarter.stop();
+            Assert.assertFalse(Files.exists(export));
+        } finally {
+            platform.unregisterMBean(pair);
+            Files.delete(config);
+            Files.deleteIfExists(export);
+        }
+    }
+
+    @Test
+    public void history() throws Exception {
+        Path config = Files.createTempFile("jmxagent", ".properties");
+        Path rules = Files.createTempFile("jmxagent", ".access");
+        try {
+            Files.write(config, Arrays.asList("historyAttributes=java.lang:type=Memory#HeapMemoryUsage.used;java.lang:type=Threading#ThreadCount;java.lang:type=GarbageCollector,name=*#CollectionCount",
+                                              "historyInterval=10", "historySize=50"));
+            String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator + "configFile=" + config;
+            JmxStarter.premain(configStr);
+            JMXConnector jmxc = connect(hostip, loopbackip);
+            MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+            ObjectName history = new ObjectName("fr.jrds.jmxagent:type=History");
+            String[] signature = new String[] {String[].class.getName(), "long", "int"};
+            // Wait for the ring buffers to wrap
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ((Long) mbsc.getAttribute(history, "Samples") < 60 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            String[] series = (String[]) mbsc.getAttribute(history, "Series");
+            Assert.assertTrue(Arrays.asList(series).contains("java.lang:type=Memory#HeapMemoryUsage.used"));
+            Assert.assertTrue(Arrays.stream(series).anyMatch(i -> i.startsWith("java.lang:name=") && i.endsWith("#CollectionCount")));
+
+            TabularData all = (TabularData) mbsc.invoke(history, "samples", new Object[] {new String[] {"java.lang:type=Threading#ThreadCount"}, 0L, 0}, signature);
+            Assert.assertEquals(1, all.size());
+            CompositeData threads = (CompositeData) all.get(new Object[] {"java.lang:type=Threading#ThreadCount"}).get("value");
+            long[] times = (long[]) threads.get("times");
+            double[] values = (double[]) threads.get("values");
+            // At most size - 1 samples, one less if the sampler wrote during the copy
+            Assert.assertTrue(times.length >= 45 && times.length <= 49);
+            Assert.assertEquals(times.length, values.length);
+            for (int i = 0; i < times.length; i++) {
+                Assert.assertTrue(values[i] > 0);
+                Assert.assertTrue(i == 0 || times[i] >= times[i - 1]);
+            }
+            // Only the newer samples
+            TabularData newer = (TabularData) mbsc.invoke(history, "samples", new Object[] {new String[] {"java.lang:type=Threading#*"}, times[40], 0}, signature);
+            long[] newerTimes = (long[]) ((CompositeData) newer.get(new Object[] {"java.lang:type=Threading#ThreadCount"}).get("value")).get("times");
+            Assert.assertTrue(newerTimes.length > 0 && newerTimes.length < times.length);
+            Assert.assertTrue(newerTimes[0] > times[40]);
+
+            TabularData downsampled = (TabularData) mbsc.invoke(history, "samples", new Object[] {new String[] {"java.lang:type=Memory#HeapMemoryUsage"}, 0L, 5}, signature);
+            CompositeData heap = (CompositeData) downsampled.get(new Object[] {"java.lang:type=Memory#HeapMemoryUsage.used"}).get("value");
+            double[] mean = (double[]) heap.get("values");
+            double[] min = (double[]) heap.get("min");
+            double[] max = (double[]) heap.get("max");
+            Assert.assertEquals(5, mean.length);
+            for (int i = 0; i < mean.length; i++) {
+                Assert.assertTrue(min[i] > 0 && min[i] <= mean[i] && mean[i] <= max[i]);
+            }
+            Assert.assertEquals(0L, mbsc.getAttribute(history, "Failures"));
+            JmxStarter.stop();
+
+            // The samples are filtered by the access rules of the caller
+            Files.write(rules, Arrays.asList("login readonly",
+                                             "login deny read java.lang:type=Threading",
+                                             "login allow invoke fr.jrds.jmxagent:type=History samples"));
+            int rulesPort = tryGetPort();
+            JmxStarter.premain("port=" + rulesPort + File.pathSeparator + "hostname=" + hostip + File.pathSeparator + "configFile=" + config
+                               + File.pathSeparator + "accessFile=" + rules + File.pathSeparator
+                               + "passwordFile=" + getClass().getClassLoader().getResource("passwd").getFile());
+            JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + hostip + ":" + rulesPort + "/jmxrmi");
+            JMXConnector authenticated = JMXConnectorFactory.connect(url, Collections.singletonMap("jmx.remote.credentials", new String[] {"login" , "password"}));
+            MBeanServerConnection mbsa = authenticated.getMBeanServerConnection();
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ((Long) mbsa.getAttribute(history, "Samples") < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            List<String> readable = Arrays.asList((String[]) mbsa.getAttribute(history, "Series"));
+            Assert.assertTrue(readable.contains("java.lang:type=Memory#HeapMemoryUsage.used"));
+            Assert.assertFalse(readable.contains("java.lang:type=Threading#ThreadCount"));
+            TabularData filtered = (TabularData) mbsa.invoke(history, "samples", new Object[] {new String[0], 0L, 0}, signature);
+            Assert.assertNotNull(filtered.get(new Object[] {"java.lang:type=Memory#HeapMemoryUsage.used"}));
+            Assert.assertNull(filtered.get(new Object[] {"java.lang:type=Threading#ThreadCount"}));
+        } finally {
+            Files.delete(config);
+            Files.delete(rules);
+        }
+    }
+
+    @Test
+    public void threadSummary() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator + "threadSummaryInterval=50";
+        JmxStarter.premain(configStr);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread busy = new Thread(() -> {
+            long i = 0;
+            while (running.get()) {
+                i++;
+            }
+        }, "busy-spinner-7");
+        // Two threads waiting for each other's lock
+        ReentrantLock lockA = new ReentrantLock();
+        ReentrantLock lockB = new ReentrantLock();
+        CountDownLatch locked = new CountDownLatch(2);
+        Thread deadlockA = new Thread(() -> crossLock(lockA, lockB, locked), "deadlock-a-1");
+        Thread deadlockB = new Thread(() -> crossLock(lockB, lockA, locked), "deadlock-b-1");
+        for (Thread t: new Thread[] {busy, deadlockA, deadlockB}) {
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            JMXConnector jmxc = connect(hostip, loopbackip);
+            MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+            ObjectName threads = new ObjectName("fr.jrds.jmxagent:type=Threads");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (((Integer) mbsc.getAttribute(threads, "Deadlocked") < 2 || (Long) mbsc.getAttribute(threads, "Samples") < 3) && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(2, mbsc.getAttribute(threads, "Deadlocked"));
+            List<String> deadlocked = Arrays.asList((String[]) mbsc.getAttribute(threads, "DeadlockedThreads"));
+            Assert.assertTrue(deadlocked.contains("deadlock-a-1") && deadlocked.contains("deadlock-b-1"));
+            TabularData states = (TabularData) mbsc.getAttribute(threads, "States");
+            Assert.assertEquals(Thread.State.values().length, states.size());
+            Assert.assertTrue((Integer) states.get(new Object[] {"RUNNABLE"}).get("value") > 0);
+            Assert.assertTrue((Integer) states.get(new Object[] {"WAITING"}).get("value") >= 2);
+            TabularData groups = (TabularData) mbsc.getAttribute(threads, "Groups");
+            Assert.assertEquals(1, groups.get(new Object[] {"busy-spinner-#"}).get("value"));
+            Assert.assertEquals(1, groups.get(new Object[] {"deadlock-a-#"}).get("value"));
+            CompositeData[] topCpu = (CompositeData[]) mbsc.getAttribute(threads, "TopCpu");
+            Assert.assertTrue(topCpu.length > 0 && topCpu.length <= 10);
+            Assert.assertTrue(Arrays.stream(topCpu).anyMatch(c -> "busy-spinner-7".equals(c.get("name")) && (Double) c.get("ratio") > 0.1));
+            for (int i = 1; i < topCpu.length; i++) {
+                Assert.assertTrue((Long) topCpu[i - 1].get("cpuTime") >= (Long) topCpu[i].get("cpuTime"));
+            }
+            Assert.assertEquals(0L, mbsc.getAttribute(threads, "Failures"));
+        } finally {
+            running.set(false);
+            deadlockA.interrupt();
+            deadlockB.interrupt();
+        }
+    }
+
+    @Test
+    public void garbageCollections() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator + "gcNotifications=true";
+        JmxStarter.premain(configStr);
+        JMXConnector jmxc = connect(hostip, loopbackip);
+        MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+        ObjectName gcs = new ObjectName("fr.jrds.jmxagent:type=GarbageCollections");
+        // Allocate between two collections
+        List<byte[]> garbage = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            garbage.add(new byte[64 * 1024]);
+        }
+        garbage.clear();
+        System.gc();
+        System.gc();
+        // The notifications are sent asynchronously
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((Long) mbsc.getAttribute(gcs, "Notifications") < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue((Long) mbsc.getAttribute(gcs, "Notifications") >= 2);
+        Assert.assertTrue((Long) mbsc.getAttribute(gcs, "AllocatedBytes") >= 64 * 64 * 1024);
+        CompositeData pauses = (CompositeData) mbsc.getAttribute(gcs, "Pauses");
+        Assert.assertTrue((Long) pauses.get("count") >= 2);
+        CompositeData cycles = (CompositeData) mbsc.getAttribute(gcs, "Cycles");
+        TabularData collectors = (TabularData) mbsc.getAttribute(gcs, "Collectors");
+        Assert.assertEquals(ManagementFactory.getGarbageCollectorMXBeans().size(), collectors.size());
+        long counted = 0;
+        boolean explicit = false;
+        for (Object row: collectors.values()) {
+            CompositeData collector = (CompositeData) ((CompositeData) row).get("value");
+            counted += (Long) ((CompositeData) collector.get("pauses")).get("count");
+            explicit |= "System.gc()".equals(collector.get("lastCause"));
+        }
+        // Another collection can happen between the two reads
+        Assert.assertTrue(counted >= (Long) pauses.get("count") + (Long) cycles.get("count"));
+        Assert.assertTrue(explicit);
+        TabularData pools = (TabularData) mbsc.getAttribute(gcs, "Pools");
+        Assert.assertFalse(pools.isEmpty());
+        for (Object row: pools.values()) {
+            CompositeData pool = (CompositeData) ((CompositeData) row).get("value");
+            Assert.assertTrue((Long) pool.get("maxAfter") >= (Long) pool.get("after"));
+        }
+    }
+
+    private static void crossLock(ReentrantLock first, ReentrantLock second, CountDownLatch locked) {
+        first.lock();
+        try {
+            locked.countDown();
+            locked.await();
+            second.lockInterruptibly();
+            second.unlock();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            first.unlock();
+        }
+    }
+
+    @Test
+    public void attributeTimeout() throws Exception {
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName slowName = new ObjectName("fr.loghub.jmxagent:type=Slow");
+        Slow slow = new Slow();
+        platform.registerMBean(slow, slowName);
+        try {
+            String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                    + "attributeTimeout=100" + File.pathSeparator + "slowRefresh=200";
+            JmxStarter.premain(configStr);
+            JMXConnector jmxc = connect(hostip, loopbackip);
+            MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+            ObjectName timeouts = new ObjectName("fr.jrds.jmxagent:type=Timeouts");
+            String[] attributes = new String[] {"Fast", "Slow"};
+            Assert.assertEquals(Arrays.asList(new Attribute("Fast", 1L), new Attribute("Slow", 1L)), mbsc.getAttributes(slowName, attributes).asList());
+
+            slow.delay = 2000;
+            // The stale value is returned after the timeout, three timeouts make the attribute slow
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                Assert.assertEquals(Arrays.asList(new Attribute("Fast", 1L), new Attribute("Slow", 1L)), mbsc.getAttributes(slowName, attributes).asList());
+                Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+            }
+            // Both attributes are read with one call, that timed out three times
+            Assert.assertEquals(3L, platform.getAttribute(timeouts, "Timeouts"));
+            Assert.assertEquals(6L, platform.getAttribute(timeouts, "StaleValues"));
+            TabularData slowTable = (TabularData) platform.getAttribute(timeouts, "SlowAttributes");
+            Assert.assertNotNull(slowTable.get(new Object[] {slowName.getCanonicalName() + "#Slow"}));
+            // The background reads find the fast attribute
+            for (int i = 0; i < 100 && ((TabularData) platform.getAttribute(timeouts, "SlowAttributes")).size() > 1; i++) {
+                Thread.sleep(50);
+            }
+            slowTable = (TabularData) platform.getAttribute(timeouts, "SlowAttributes");
+            Assert.assertEquals(1, slowTable.size());
+            Assert.assertNotNull(slowTable.get(new Object[] {slowName.getCanonicalName() + "#Slow"}));
+
+            // A slow attribute is returned without waiting
+            long start = System.nanoTime();
+            Assert.assertEquals(1L, mbsc.getAttribute(slowName, "Slow"));
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+
+            // Fast again, the background reads will notice it
+            slow.delay = 0;
+            for (int i = 0; i < 100 && ! ((TabularData) platform.getAttribute(timeouts, "SlowAttributes")).isEmpty(); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(((TabularData) platform.getAttribute(timeouts, "SlowAttributes")).isEmpty());
+            Assert.assertTrue((Long) mbsc.getAttribute(slowName, "Slow") > 2);
+        } finally {
+            platform.unregisterMBean(slowName);
+        }
+    }
+
+    @Test
+    public void cachedAttributes() throws Exception {
+        Path config = Files.createTempFile("jmxagent", ".properties");
+        try {
+            Files.write(config, Arrays.asList("cachePatterns=java.lang:type=Threading;java.lang:type=Runtime", "cacheTtl=60000", "instrument=true"));
+            String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator + "configFile=" + config;
+            JmxStarter.premain(configStr);
+        } finally {
+            Files.delete(config);
+        }
+        JMXConnector jmxc = connect(hostip, loopbackip);
+        MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+        ObjectName threading = new ObjectName("java.lang:type=Threading");
+        ObjectName cache = new ObjectName("fr.jrds.jmxagent:type=Cache");
+        Object first = mbsc.getAttribute(threading, "TotalStartedThreadCount");
+        new Thread(() -> { }).start();
+        Assert.assertEquals(first, mbsc.getAttribute(threading, "TotalStartedThreadCount"));
+        Assert.assertEquals(first, mbsc.getAttributes(threading, new String[] {"TotalStartedThreadCount", "Unknown"}).asList().get(0).getValue());
+        Assert.assertEquals(2L, mbsc.getAttribute(cache, "Misses"));
+        Assert.assertEquals(2L, mbsc.getAttribute(cache, "Hits"));
+        Assert.assertThrows(AttributeNotFoundException.class, () -> mbsc.getAttribute(threading, "Unknown"));
+        TabularData operations = (TabularData) mbsc.getAttribute(new ObjectName("fr.jrds.jmxagent:type=Operations"), "ByOperation");
+        CompositeData getAttribute = (CompositeData) operations.get(new Object[] {"getAttribute"}).get("value");
+        Assert.assertEquals(1L, getAttribute.get("failures"));
+        Assert.assertTrue((Long) getAttribute.get("count") >= 5);
+        // Unknown domains don't grow the statistics
+        for (int i = 0; i < 100; i++) {
+            ObjectName unknown = new ObjectName("unknown" + i + ":type=Unknown");
+            Assert.assertThrows(InstanceNotFoundException.class, () -> mbsc.getAttribute(unknown, "Unknown"));
+            mbsc.queryNames(unknown, null);
+        }
+        TabularData domains = (TabularData) mbsc.getAttribute(new ObjectName("fr.jrds.jmxagent:type=Operations"), "ByDomain");
+        Assert.assertTrue(domains.size() <= 64);
+        Assert.assertNotNull(domains.get(new Object[] {"java.lang"}));
+        Assert.assertTrue((Long) ((CompositeData) domains.get(new Object[] {"other"}).get("value")).get("count") >= 100);
+    }
+
+    @Test
+    public void httpScrape() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "protocol=http" + File.pathSeparator
+                + "passwordFile=" + getClass().getClassLoader().getResource("passwd").getFile();
+        JmxStarter.premain(configStr);
+        URL metrics = new URL("http://" + loopbackip + ":" + port + "/metrics");
+        HttpURLConnection anonymous = (HttpURLConnection) metrics.openConnection();
+        Assert.assertEquals(401, anonymous.getResponseCode());
+        anonymous.disconnect();
+        HttpURLConnection cnx = (HttpURLConnection) metrics.openConnection();
+        cnx.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString("login:password".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(200, cnx.getResponseCode());
+        try (Scanner s = new Scanner(cnx.getInputStream(), "UTF-8")) {
+            String body = s.useDelimiter("\\A").next();
+            Assert.assertTrue(body, body.contains("java_lang_HeapMemoryUsage_used{type=\"Memory\"}"));
+            // The samples of a metric are contiguous, even when they come from many MBeans
+            List<String> seen = new ArrayList<>();
+            for (String line: body.split("\n")) {
+                String metric = line.substring(0, line.indexOf('{') > 0 ? line.indexOf('{') : line.indexOf(' '));
+                if (seen.isEmpty() || ! seen.get(seen.size() - 1).equals(metric)) {
+                    Assert.assertFalse(metric, seen.contains(metric));
+                    seen.add(metric);
+                }
+            }
+        }
+        cnx.disconnect();
+        URL json = new URL("http://" + loopbackip + ":" + port + "/json?name=java.lang:type%3DRuntime&attribute=VmName");
+        cnx = (HttpURLConnection) json.openConnection();
+        cnx.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString("login:password".getBytes(StandardCharsets.UTF_8)));
+        try (Scanner s = new Scanner(cnx.getInputStream(), "UTF-8")) {
+            String body = s.useDelimiter("\\A").next();
+            Assert.assertEquals("{\"java.lang:type=Runtime\":{\"VmName\":\"" + System.getProperty("java.vm.name") + "\"}}", body);
+        }
+        cnx.disconnect();
+        // The second request used the cached authentication
+        Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName("fr.jrds.jmxagent:type=Authentication"), "Hits"));
+    }
+
+    @Test
+    public void httpAccessRules() throws Exception {
+        Path rules = Files.createTempFile("jmxagent", ".access");
+        try {
+            Files.write(rules, Arrays.asList("login readonly", "login deny read java.lang:type=Runtime"));
+            String configStr = "port=" +  port + File.pathSeparator + "protocol=http" + File.pathSeparator
+                    + "passwordFile=" + getClass().getClassLoader().getResource("passwd").getFile() + File.pathSeparator
+                    + "accessFile=" + rules;
+            JmxStarter.premain(configStr);
+            URL json = new URL("http://" + loopbackip + ":" + port + "/json?name=java.lang:type%3DRuntime&name=java.lang:type%3DClassLoading&attribute=VmName&attribute=Verbose");
+            HttpURLConnection cnx = (HttpURLConnection) json.openConnection();
+            cnx.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString("login:password".getBytes(StandardCharsets.UTF_8)));
+            try (Scanner s = new Scanner(cnx.getInputStream(), "UTF-8")) {
+                String body = s.useDelimiter("\\A").next();
+                Assert.assertEquals("{\"java.lang:type=ClassLoading\":{\"Verbose\":false}}", body);
+            }
+            cnx.disconnect();
+            // No rule for this user, nothing can be read
+            cnx = (HttpURLConnection) json.openConnection();
+            cnx.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString("other:password".getBytes(StandardCharsets.UTF_8)));
+            Assert.assertEquals(403, cnx.getResponseCode());
+            cnx.disconnect();
+        } finally {
+            Files.delete(rules);
+        }
+    }
+
+    @Test
+    public void nioConnector() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "protocol=nio";
+        JmxStarter.premain(configStr);
+        Assert.assertEquals(JmxStarter.State.RUNNING, JmxStarter.getState());
+        ObjectName memory = new ObjectName("java.lang:type=Memory");
+        ObjectName threading = new ObjectName("java.lang:type=Threading");
+        try (NioClient client = NioClient.connect(loopbackip, port, null)) {
+            Assert.assertTrue(client.getConnectionId(), client.getConnectionId().startsWith("nio://" + loopbackip + " anonymous "));
+            CompositeData heap = (CompositeData) client.getAttribute(memory, "HeapMemoryUsage");
+            Assert.assertTrue((Long) heap.get("used") > 0);
+            TabularData properties = (TabularData) client.getAttribute(new ObjectName("java.lang:type=Runtime"), "SystemProperties");
+            Assert.assertEquals(System.getProperties().size(), properties.size());
+            // Many reads in flight on the same connection
+            List<CompletableFuture<Object>> reads = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                reads.add(client.getAttributeAsync(threading, "ThreadCount"));
+            }
+            for (CompletableFuture<Object> f: reads) {
+                Assert.assertTrue((Integer) f.get(10, TimeUnit.SECONDS) > 0);
+            }
+            AttributeList attributes = client.getAttributes(memory, new String[] {"HeapMemoryUsage", "ObjectPendingFinalizationCount"});
+            Assert.assertEquals(2, attributes.size());
+            Assert.assertTrue(client.queryNames(new ObjectName("java.lang:*")).contains(memory));
+            Assert.assertThrows(AttributeNotFoundException.class, () -> client.getAttribute(threading, "Unknown"));
+            // Strict mode is read only
+            Assert.assertThrows(SecurityException.class, () -> client.setAttribute(memory, "Verbose", true));
+            ObjectName agent = new ObjectName("fr.jrds.jmxagent:type=Agent");
+            Assert.assertEquals(1, client.getAttribute(agent, "ActiveSessions"));
+            Assert.assertTrue((Long) client.getAttribute(agent, "BytesIn") > 0);
+        }
+        JmxStarter.stop();
+
+        int passwordPort = tryGetPort();
+        configStr = "port=" + passwordPort + File.pathSeparator + "protocol=nio" + File.pathSeparator
+                + "passwordFile=" + getClass().getClassLoader().getResource("passwd").getFile();
+        JmxStarter.premain(configStr);
+        Assert.assertThrows(SecurityException.class, () -> NioClient.connect(loopbackip, passwordPort, new String[] {"login", "wrong"}));
+        Assert.assertThrows(SecurityException.class, () -> NioClient.connect(loopbackip, passwordPort, new String[] {"login", null}));
+        try (NioClient client = NioClient.connect(loopbackip, passwordPort, new String[] {"login", "password"})) {
+            Assert.assertTrue(client.getConnectionId(), client.getConnectionId().contains(" login "));
+            Assert.assertNotEquals(0, client.getDomains().length);
+        }
+    }
+
+    @Test
+    public void nioHandshake() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "protocol=nio" + File.pathSeparator + "handshakeTimeout=200";
+        JmxStarter.premain(configStr);
+        // A big frame is refused before the authentication
+        try (Socket s = new Socket(loopbackip, port)) {
+            s.setSoTimeout(5000);
+            s.getOutputStream().write(new byte[] {0, 2, 0, 0});
+            Assert.assertEquals(-1, s.getInputStream().read());
+        }
+        // Credentials nested too deeply are refused
+        try (Socket s = new Socket(loopbackip, port)) {
+            s.setSoTimeout(5000);
+            int depth = 100;
+            ByteBuffer frame = ByteBuffer.allocate(4 + 4 + 1 + 1 + depth * 2 + 1);
+            frame.putInt(frame.capacity() - 4).putInt(1).put((byte) 0).put((byte) 1);
+            for (int i = 0; i < depth; i++) {
+                // A list of one element
+                frame.put((byte) 14).put((byte) 1);
+            }
+            frame.put((byte) 0);
+            s.getOutputStream().write(frame.array());
+            byte[] response = new byte[256];
+            int read = 0;
+            for (int n; (n = s.getInputStream().read(response, read, response.length - read)) > 0;) {
+                read += n;
+            }
+            Assert.assertTrue(new String(response, 0, read, StandardCharsets.UTF_8).contains("nested too deeply"));
+        }
+        // A client that doesn't authenticate is closed
+        try (Socket s = new Socket(loopbackip, port)) {
+            s.setSoTimeout(5000);
+            long start = System.nanoTime();
+            Assert.assertEquals(-1, s.getInputStream().read());
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+        }
+        try (NioClient client = NioClient.connect(loopbackip, port, null)) {
+            Thread.sleep(300);
+            Assert.assertNotEquals(0, client.getDomains().length);
+        }
+    }
+
+    @Test
+    public void nioBackpressure() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "protocol=nio";
+        JmxStarter.premain(configStr);
+        ObjectName executor = new ObjectName("fr.jrds.jmxagent:type=Executor");
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        long before = (Long) platform.getAttribute(executor, "CompletedTasks");
+        int requests = 200_000;
+        try (Socket s = new Socket(loopbackip, port)) {
+            // A client that pipelines requests and never reads the responses
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                    out.write(ByteBuffer.allocate(11).putInt(7).putInt(0).put((byte) 0).put((byte) 1).put((byte) 0).array());
+                    ByteBuffer frame = ByteBuffer.allocate(9);
+                    for (int i = 1; i <= requests; i++) {
+                        frame.clear();
+                        // getDomains
+                        out.write(frame.putInt(5).putInt(i).put((byte) 8).array());
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    // Closed by the test
+                }
+            }, "nio-pipeliner");
+            writer.setDaemon(true);
+            writer.start();
+            // The connection is not read any more once the unsent responses fill the socket buffers
+            long completed = -1;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(500);
+                long now = (Long) platform.getAttribute(executor, "CompletedTasks") - before;
+                if (now == completed) {
+                    break;
+                }
+                completed = now;
+            }
+            Assert.assertTrue("" + completed, completed > 0 && completed < requests / 2);
+        }
+    }
+
+    @Test
+    public void sessionLifecycle() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                + "idleTimeout=300" + File.pathSeparator + "maxSessionsPerPrincipal=2";
+        JmxStarter.premain(configStr);
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        ObjectName sessions = new ObjectName("fr.jrds.jmxagent:type=Sessions");
+        JMXConnector first = connect(hostip, loopbackip);
+        JMXConnector second = connect(hostip, loopbackip);
+        // In strict mode, all the clients are anonymous
+        Assert.assertThrows(SecurityException.class, () -> connect(hostip, loopbackip));
+        Assert.assertEquals(1L, platform.getAttribute(sessions, "RejectedSessions"));
+        Assert.assertEquals(2, platform.getAttribute(sessions, "OpenSessions"));
+        TabularData byPrincipal = (TabularData) platform.getAttribute(sessions, "SessionsByPrincipal");
+        Assert.assertEquals(2, byPrincipal.get(new Object[] {"anonymous"}).get("value"));
+        first.close();
+        // The second session is abandoned
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((Integer) platform.getAttribute(sessions, "OpenSessions") > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, platform.getAttribute(sessions, "OpenSessions"));
+        Assert.assertEquals(1L, platform.getAttribute(sessions, "ClosedByClient"));
+        Assert.assertEquals(1L, platform.getAttribute(sessions, "ClosedIdle"));
+        Assert.assertEquals(0, ((TabularData) platform.getAttribute(sessions, "SessionsByPrincipal")).size());
+        // A client still alive gets a new session transparently
+        Assert.assertTrue(second.getMBeanServerConnection().getMBeanCount() > 0);
+        Assert.assertEquals(1, platform.getAttribute(sessions, "OpenSessions"));
+        JMXConnector third = connect(hostip, loopbackip);
+        Assert.assertTrue(third.getMBeanServerConnection().getMBeanCount() > 0);
+        third.close();
+        second.close();
+    }
+
+    @Test
+    public void boundedConnections() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                + "maxConnections=8" + File.pathSeparator + "executionModel=virtual";
+        JmxStarter.premain(configStr);
+        JMXConnector jmxc = connect(hostip, loopbackip);
+        MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+        ObjectName executor = new ObjectName("fr.jrds.jmxagent:type=Executor");
+        Assert.assertTrue((Integer) mbsc.getAttribute(executor, "ActiveConnections") > 0);
+        Assert.assertEquals(0L, mbsc.getAttribute(executor, "RejectedConnections"));
+        boolean withVirtual = Arrays.stream(Thread.class.getMethods()).anyMatch(m -> "ofVirtual".equals(m.getName()));
+        Assert.assertEquals(withVirtual ? "virtual" : "bounded", mbsc.getAttribute(executor, "ExecutionModel"));
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                + "compression=true" + File.pathSeparator + "maxConnections=8";
+        JmxStarter.premain(configStr);
+        JMXConnector jmxc = connect(hostip, loopbackip);
+        MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+        TabularData properties = (TabularData) mbsc.getAttribute(new ObjectName("java.lang:type=Runtime"), "SystemProperties");
+        Assert.assertEquals(System.getProperties().size(), properties.size());
+        ObjectName compression = new ObjectName("fr.jrds.jmxagent:type=Compression");
+        Assert.assertTrue((Long) mbsc.getAttribute(compression, "Connections") > 0);
+        Assert.assertTrue((Long) mbsc.getAttribute(compression, "CompressedFrames") > 0);
+        Assert.assertTrue((Long) mbsc.getAttribute(compression, "PlainFrames") > 0);
+        long bytesOut = (Long) mbsc.getAttribute(compression, "BytesOut");
+        long wireBytesOut = (Long) mbsc.getAttribute(compression, "WireBytesOut");
+        Assert.assertTrue(wireBytesOut < bytesOut);
+    }
+
+    @Test
+    public void tlsResumption() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                + "withSsl=true" + File.pathSeparator + "sslProtocols=TLSv1.2" + File.pathSeparator
+                + "sslSessionCacheSize=100" + File.pathSeparator + "sslSessionTimeout=600";
+        JmxStarter.premain(configStr);
+        JMXConnector jmxc = connect(hostip, loopbackip, Collections.singletonMap("com.sun.jndi.rmi.factory.socket", new SslRMIClientSocketFactory()));
+        MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+        Assert.assertNotEquals(0, mbsc.getDomains().length);
+        SSLSocketFactory factory = SSLContext.getDefault().getSocketFactory();
+        for (int i = 0; i < 2; i++) {
+            try (SSLSocket s = (SSLSocket) factory.createSocket(hostip, port)) {
+                s.startHandshake();
+                Assert.assertEquals("TLSv1.2", s.getSession().getProtocol());
+            }
+        }
+        ObjectName tls = new ObjectName("fr.jrds.jmxagent:type=Tls");
+        // Handshake listeners are called asynchronously
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((Long) mbsc.getAttribute(tls, "Resumed") < 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue((Long) mbsc.getAttribute(tls, "Resumed") >= 1);
+        Assert.assertTrue((Long) mbsc.getAttribute(tls, "Handshakes") >= 3);
+        Assert.assertTrue((Long) ((CompositeData) mbsc.getAttribute(tls, "HandshakeLatency")).get("count") >= 3);
+        Assert.assertEquals(100, mbsc.getAttribute(tls, "SessionCacheSize"));
+        Assert.assertEquals(600, mbsc.getAttribute(tls, "SessionTimeout"));
+        // The JVM's default context is not changed
+        Assert.assertNotEquals(100, SSLContext.getDefault().getServerSessionContext().getSessionCacheSize());
+        Assert.assertNotEquals(600, SSLContext.getDefault().getServerSessionContext().getSessionTimeout());
+    }
+
+    @Test
+    public void accessRules() throws Exception {
+        Path rules = Files.createTempFile("jmxagent", ".access");
+        try {
+            Files.write(rules, Arrays.asList("login readonly",
+                                             "login deny read java.lang:type=Runtime SystemProperties,ClassPath",
+                                             "login allow invoke java.lang:type=Memory gc",
+                                             "login allow invoke fr.jrds.jmxagent:*"));
+            String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                    + "passwordFile=" + getClass().getClassLoader().getResource("passwd").getFile() + File.pathSeparator
+                    + "accessFile=" + rules;
+            JmxStarter.premain(configStr);
+            JMXConnector jmxc = connect(hostip, loopbackip, Collections.singletonMap("jmx.remote.credentials", new String[] {"login" , "password"}));
+            MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+            ObjectName runtime = new ObjectName("java.lang:type=Runtime");
+            ObjectName access = new ObjectName("fr.jrds.jmxagent:type=Access");
+            Assert.assertNotNull(mbsc.getAttribute(runtime, "VmName"));
+            Assert.assertThrows(SecurityException.class, () -> mbsc.getAttribute(runtime, "SystemProperties"));
+            Assert.assertEquals(1, mbsc.getAttributes(runtime, new String[] {"VmName", "ClassPath"}).size());
+            // Refused like a call without a subject
+            Assert.assertThrows(RuntimeOperationsException.class, () -> mbsc.getAttributes(runtime, null));
+            Assert.assertThrows(RuntimeOperationsException.class, () -> ManagementFactory.getPlatformMBeanServer().getAttributes(runtime, null));
+            mbsc.invoke(new ObjectName("java.lang:type=Memory"), "gc", new Object[0], new String[0]);
+            Assert.assertThrows(SecurityException.class, () -> mbsc.invoke(new ObjectName("java.lang:type=Threading"), "resetPeakThreadCount", new Object[0], new String[0]));
+            Assert.assertEquals(2L, mbsc.getAttribute(access, "Denied"));
+            Assert.assertEquals(4, mbsc.getAttribute(access, "Rules"));
+
+            Files.write(rules, Arrays.asList("login readonly", "login allow invoke fr.jrds.jmxagent:*"));
+            mbsc.invoke(access, "reload", new Object[0], new String[0]);
+            Assert.assertEquals(1L, mbsc.getAttribute(access, "Reloads"));
+            Assert.assertNotNull(mbsc.getAttribute(runtime, "SystemProperties"));
+            Assert.assertThrows(SecurityException.class, () -> mbsc.invoke(new ObjectName("java.lang:type=Memory"), "gc", new Object[0], new String[0]));
+        } finally {
+            Files.delete(rules);
+        }
+    }
+
     @Test
     public void loadExplicitJaas() throws Exception {
         String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
@@ -110,6 +1090,30 @@ public class TestJmxConnection {
         Assert.assertNotEquals(0, jmxc.getMBeanServerConnection().getDomains().length);
     }
 
+    @Test
+    public void cachedJaas() throws Exception {
+        String configStr = "port=" +  port + File.pathSeparator + "hostname=" + hostip + File.pathSeparator
+                + "jaasConfiguration=" + getClass().getClassLoader().getResource("jaas.config").getFile() + File.pathSeparator
+                + "jaasName=jmxAuthentication" + File.pathSeparator
+                + "authCacheTtl=60000" + File.pathSeparator
+                + "authMaxFailures=2";
+        JmxStarter.premain(configStr);
+        for (int i = 0; i < 3; i++) {
+            String password = "bad" + i;
+            Assert.assertThrows(SecurityException.class, () -> connect(hostip, loopbackip, Collections.singletonMap("jmx.remote.credentials", new String[] {"login" , password})));
+        }
+        // Too many failures, even the good password is rejected
+        Assert.assertThrows(SecurityException.class, () -> connect(hostip, loopbackip, Collections.singletonMap("jmx.remote.credentials", new String[] {"login" , "password"})));
+        JMXConnector jmxc = connect(hostip, loopbackip, Collections.singletonMap("jmx.remote.credentials", new String[] {"other" , "password"}));
+        jmxc.close();
+        jmxc = connect(hostip, loopbackip, Collections.singletonMap("jmx.remote.credentials", new String[] {"other" , "password"}));
+        MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
+        ObjectName authentication = new ObjectName("fr.jrds.jmxagent:type=Authentication");
+        Assert.assertEquals(2L, mbsc.getAttribute(authentication, "Throttled"));
+        Assert.assertEquals(1L, mbsc.getAttribute(authentication, "Hits"));
+        Assert.assertEquals(3L, ((CompositeData) mbsc.getAttribute(authentication, "Logins")).get("count"));
+    }
+
     private JMXConnector connect(String ip1, String ip2) throws IOException, InstanceNotFoundException {
         return connect(ip1, ip2, Collections.emptyMap());
     }